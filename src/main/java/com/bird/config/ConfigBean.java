@@ -20,6 +20,11 @@ public class ConfigBean {
      * achFieldNames:       成果字段
      * patDataDir:          专利数据目录
      * patFieldNames:       专利字段
+     * indexType:           向量索引引擎 em：聚类倒排求交  ivfpq：粗聚类倒排列表+残差量化  hnsw：HNSW图索引
+     * ivfListCount:        ivfpq的倒排列表数
+     * hnswM:               hnsw每层连接的邻居数
+     * vectorEncoding:      em引擎新建索引段的向量编码 float32：无损  float16：半精度，内存为float32的1/2
+     *                      int8：按向量线性量化，内存约为float32的1/4
      */
     private String embeddingModelDir;
     private String achDataDir;
@@ -27,4 +32,9 @@ public class ConfigBean {
 
     private String patDataDir;
     private String patFieldNames;
+
+    private String indexType = "em";
+    private int ivfListCount = 1024;
+    private int hnswM = 16;
+    private String vectorEncoding = "float32";
 }
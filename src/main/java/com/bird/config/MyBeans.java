@@ -3,6 +3,11 @@ package com.bird.config;
 import com.bird.vector.EmIndex;
 import com.bird.vector.EmPQ;
 import com.bird.vector.Embedding;
+import com.bird.vector.HnswIndex;
+import com.bird.vector.IvfPqIndex;
+import com.bird.vector.Metric;
+import com.bird.vector.VectorEncoding;
+import com.bird.vector.VectorIndex;
 import com.bird.vector.VectorSearch;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
@@ -22,9 +27,13 @@ public class MyBeans {
     /**
      * INDEX_DIR：   索引的目录名称
      * PGMODEL_DIR： 量化乘积的目录名称
+     * INDEX_TYPE_IVFPQ： IVF-PQ索引引擎
+     * INDEX_TYPE_HNSW：  HNSW图索引引擎
      */
     private final static String INDEX_DIR = "index";
     private final static String PGMODEL_DIR = "pqmodel";
+    private final static String INDEX_TYPE_IVFPQ = "ivfpq";
+    private final static String INDEX_TYPE_HNSW = "hnsw";
 
     @Resource
     private ConfigBean configBean;
@@ -36,14 +45,14 @@ public class MyBeans {
 
     @Bean
     public VectorSearch achVectorSearch() {
-        Embedding embedding = new Embedding(configBean.getEmbeddingModelDir(), false);
         EmPQ pq = new EmPQ(pqSegmentCount, clusterCount, maxIterCount, vectorDimention);
-
         String pgPath = configBean.getAchDataDir() + PGMODEL_DIR;
         pq.load(pgPath);
 
-        EmIndex emIndex = new EmIndex(pq);
-        VectorSearch vectorSearch = new VectorSearch(emIndex, embedding);
+        //内积度量要求写入单位向量
+        Embedding embedding = new Embedding(configBean.getEmbeddingModelDir(), Metric.INNER_PRODUCT == pq.getMetric());
+
+        VectorSearch vectorSearch = new VectorSearch(createIndex(pq), embedding);
         String achIndexPath = configBean.getAchDataDir() + INDEX_DIR;
         vectorSearch.load(achIndexPath);
 
@@ -52,17 +61,36 @@ public class MyBeans {
 
     @Bean
     public VectorSearch patVectorSearch() {
-        Embedding embedding = new Embedding(configBean.getEmbeddingModelDir(), false);
         EmPQ pq = new EmPQ(pqSegmentCount, clusterCount, maxIterCount, vectorDimention);
-
         String pgPath = configBean.getPatDataDir() + PGMODEL_DIR;
         pq.load(pgPath);
 
-        EmIndex emIndex = new EmIndex(pq);
-        VectorSearch vectorSearch = new VectorSearch(emIndex, embedding);
+        //内积度量要求写入单位向量
+        Embedding embedding = new Embedding(configBean.getEmbeddingModelDir(), Metric.INNER_PRODUCT == pq.getMetric());
+
+        VectorSearch vectorSearch = new VectorSearch(createIndex(pq), embedding);
         String achIndexPath = configBean.getPatDataDir() + INDEX_DIR;
         vectorSearch.load(achIndexPath);
 
         return vectorSearch;
     }
+
+    /**
+     * 按配置选择索引引擎
+     *
+     * @param pq 量化模型
+     * @return 向量索引
+     */
+    private VectorIndex createIndex(EmPQ pq) {
+        if (INDEX_TYPE_IVFPQ.equalsIgnoreCase(configBean.getIndexType())) {
+            return new IvfPqIndex(pq, configBean.getIvfListCount());
+        }
+        if (INDEX_TYPE_HNSW.equalsIgnoreCase(configBean.getIndexType())) {
+            return new HnswIndex(pq, configBean.getHnswM());
+        }
+
+        EmIndex emIndex = new EmIndex(pq);
+        emIndex.setVectorEncoding(VectorEncoding.valueOf(configBean.getVectorEncoding().toUpperCase()));
+        return emIndex;
+    }
 }
@@ -3,6 +3,8 @@ package com.bird.controller;
 import com.alibaba.fastjson.JSONArray;
 import com.alibaba.fastjson.JSONObject;
 import com.bird.config.ConfigBean;
+import com.bird.vector.Metric;
+import com.bird.vector.SearchHits;
 import com.bird.vector.VectorSearch;
 import com.bird.vector.utils.Separators;
 import com.github.xiaoymin.knife4j.annotations.ApiOperationSupport;
@@ -10,7 +12,6 @@ import io.swagger.annotations.ApiImplicitParam;
 import io.swagger.annotations.ApiImplicitParams;
 import io.swagger.annotations.ApiOperation;
 import lombok.extern.slf4j.Slf4j;
-import org.apache.commons.lang3.tuple.Pair;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.web.bind.annotation.RequestMapping;
@@ -48,7 +49,7 @@ public class SearchController {
             @ApiImplicitParam(name = "requestId", value = "请求id", defaultValue = "12345678"),
             @ApiImplicitParam(name = "userId", value = "用户标识", defaultValue = "12345678"),
             @ApiImplicitParam(name = "query", value = "搜索词汇", defaultValue = "创新", required = true),
-            @ApiImplicitParam(name = "clusterTopn", value = "聚类数", defaultValue = "8", required = false),
+            @ApiImplicitParam(name = "clusterTopn", value = "聚类数，不大于0时按召回结果数自适应", defaultValue = "8", required = false),
             @ApiImplicitParam(name = "topn", value = "搜索结果数", defaultValue = "10", required = true),
     })
     @ApiOperation(value = "成果搜索")
@@ -63,30 +64,37 @@ public class SearchController {
         JSONObject jsonObject = new JSONObject(true);
 
         long start = System.currentTimeMillis();
-        List<Pair<Integer, Pair<Float, List<String>>>> result = achVectorSearch.searchText(query, clusterTopn, topn);
+        SearchHits result = achVectorSearch.searchText(query, clusterTopn, topn);
         long end = System.currentTimeMillis();
         long took = end - start;
 
+        //相似度度量时返回相似度，L2时返回欧式距离
+        Metric metric = achVectorSearch.getVectorIndex().getPq().getMetric();
+        String scoreField = metric.isSimilarity() ? "similarity" : "distance";
         JSONArray jsonArray = new JSONArray();
-        result.forEach(doc -> {
-            int id = doc.getKey();
-            Pair<Float, List<String>> simTexts = doc.getValue();
-            float sim = simTexts.getKey();
-            //该场景每个文档只有一个
-            String text = simTexts.getValue().get(0);
+        for (int i = 0; i < result.size(); i++) {
+            int id = result.getId(i);
+            float score = result.getScore(i);
+            //该场景每个文档只有一个，查询与删除并发时文档可能已被删除，跳过
+            List<String> texts = achVectorSearch.getTexts(id);
+            if (null == texts || texts.isEmpty()) {
+                continue;
+            }
+            String text = texts.get(0);
 
             JSONObject docObj = new JSONObject(true);
             docObj.put("id", id);
-            docObj.put("similary", sim);
+            docObj.put(scoreField, score);
             parseAchFields(text, docObj);
 
             jsonArray.add(docObj);
-        });
+        }
 
         jsonObject.put("query", query);
         jsonObject.put("took", took);
         jsonObject.put("count", jsonArray.size());
-        jsonObject.put("clusterCount", achVectorSearch.getEmIndex().getPq().getClusterCount());
+        jsonObject.put("metric", metric.name());
+        jsonObject.put("clusterCount", achVectorSearch.getVectorIndex().getPq().getClusterCount());
         jsonObject.put("patents", jsonArray);
 
         return jsonObject;
@@ -98,7 +106,7 @@ public class SearchController {
             @ApiImplicitParam(name = "requestId", value = "请求id", defaultValue = "12345678"),
             @ApiImplicitParam(name = "userId", value = "用户标识", defaultValue = "12345678"),
             @ApiImplicitParam(name = "query", value = "搜索词汇", defaultValue = "创新", required = true),
-            @ApiImplicitParam(name = "clusterTopn", value = "聚类数", defaultValue = "8", required = false),
+            @ApiImplicitParam(name = "clusterTopn", value = "聚类数，不大于0时按召回结果数自适应", defaultValue = "8", required = false),
             @ApiImplicitParam(name = "topn", value = "搜索结果数", defaultValue = "10", required = true),
     })
     @ApiOperation(value = "专利搜索")
@@ -113,30 +121,37 @@ public class SearchController {
         JSONObject jsonObject = new JSONObject(true);
 
         long start = System.currentTimeMillis();
-        List<Pair<Integer, Pair<Float, List<String>>>> result = patVectorSearch.searchText(query, clusterTopn, topn);
+        SearchHits result = patVectorSearch.searchText(query, clusterTopn, topn);
         long end = System.currentTimeMillis();
         long took = end - start;
 
+        //相似度度量时返回相似度，L2时返回欧式距离
+        Metric metric = patVectorSearch.getVectorIndex().getPq().getMetric();
+        String scoreField = metric.isSimilarity() ? "similarity" : "distance";
         JSONArray jsonArray = new JSONArray();
-        result.forEach(doc -> {
-            int id = doc.getKey();
-            Pair<Float, List<String>> simTexts = doc.getValue();
-            float sim = simTexts.getKey();
-            //该场景每个文档只有一个
-            String text = simTexts.getValue().get(0);
+        for (int i = 0; i < result.size(); i++) {
+            int id = result.getId(i);
+            float score = result.getScore(i);
+            //该场景每个文档只有一个，查询与删除并发时文档可能已被删除，跳过
+            List<String> texts = patVectorSearch.getTexts(id);
+            if (null == texts || texts.isEmpty()) {
+                continue;
+            }
+            String text = texts.get(0);
 
             JSONObject docObj = new JSONObject(true);
             docObj.put("id", id);
-            docObj.put("similary", sim);
+            docObj.put(scoreField, score);
             parsePatFields(text, docObj);
 
             jsonArray.add(docObj);
-        });
+        }
 
         jsonObject.put("query", query);
         jsonObject.put("took", took);
         jsonObject.put("count", jsonArray.size());
-        jsonObject.put("clusterCount", patVectorSearch.getEmIndex().getPq().getClusterCount());
+        jsonObject.put("metric", metric.name());
+        jsonObject.put("clusterCount", patVectorSearch.getVectorIndex().getPq().getClusterCount());
         jsonObject.put("patents", jsonArray);
 
         return jsonObject;
@@ -0,0 +1,40 @@
+package com.bird.vector;
+
+import lombok.Data;
+
+/**
+ * 自适应召回：查询参数clusterTopn不大于0时，EmIndex在每个索引段内按召回结果数逐步扩大各向量段的聚类数
+ * 1.每个向量段先取最近的minClusterTopn个聚类，倒排链并集求交集得到候选文档
+ * 2.候选数不足minCandidates时，扩大距离比值最小的一半向量段，扩大后超过maxCandidates则减半重试，至少扩大一个段
+ * 3.向量段下一个聚类的距离超过最近聚类的gapRatio倍时不再扩大该段（候选数不足topn时除外）
+ * 4.各段最多maxClusterTopn个聚类，段内累计合并的倒排链文档数超过maxPostings时停止，保证单次查询的代价有上限
+ * 各索引段、各向量段的聚类数相互独立
+ *
+ * @description：
+ * @author： liuxiangqian
+ * @date： 2024/10/24
+ */
+@Data
+public class AdaptiveRecall {
+    /**
+     * MIN_CANDIDATES：    候选文档数的目标下限
+     * MAX_CANDIDATES：    候选文档数的目标上限
+     * MIN_CLUSTER_TOPN：  每个向量段初始的聚类数
+     * MAX_CLUSTER_TOPN：  每个向量段最多的聚类数
+     * GAP_RATIO：         下一个聚类与最近聚类的距离比值超过该值时不再扩大
+     * MAX_POSTINGS：      索引段内累计合并的倒排链文档数上限
+     */
+    public static final int MIN_CANDIDATES = 1000;
+    public static final int MAX_CANDIDATES = 20000;
+    public static final int MIN_CLUSTER_TOPN = 1;
+    public static final int MAX_CLUSTER_TOPN = 32;
+    public static final float GAP_RATIO = 2.0f;
+    public static final long MAX_POSTINGS = 2000000L;
+
+    private int minCandidates = MIN_CANDIDATES;
+    private int maxCandidates = MAX_CANDIDATES;
+    private int minClusterTopn = MIN_CLUSTER_TOPN;
+    private int maxClusterTopn = MAX_CLUSTER_TOPN;
+    private float gapRatio = GAP_RATIO;
+    private long maxPostings = MAX_POSTINGS;
+}
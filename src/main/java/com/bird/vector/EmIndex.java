@@ -1,25 +1,37 @@
 package com.bird.vector;
 
-import com.bird.vector.common.VectorTools;
 import com.bird.vector.utils.FolderTools;
-import com.bird.vector.utils.MMapTools;
-import com.bird.vector.utils.TermSignature;
-import com.bird.vector.utils.UnMmap;
+import com.google.common.util.concurrent.RateLimiter;
 import lombok.Data;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.tuple.Pair;
-import org.apache.commons.lang3.tuple.Triple;
-import org.roaringbitmap.IntConsumer;
 import org.roaringbitmap.RoaringBitmap;
 
-import java.io.*;
-import java.nio.ByteBuffer;
-import java.nio.MappedByteBuffer;
-import java.nio.channels.FileChannel;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Pattern;
+import java.util.stream.IntStream;
 
 /**
  * 给向量构建倒排索引
+ * 并发模型：
+ * 1.查询线程只读取已发布的段列表segments，段发布后不再修改
+ * 2.写入线程持有写锁（this）向写入段activeSegment追加，写入段达到refreshVectors个向量或距上次发布超过
+ * refreshIntervalMs时，写入段与待删除文档一起原子发布为新的段列表
+ * 3.段列表变化后由后台线程按mergePolicy合并小段，合并读写按mergeRateLimiter限速
+ * 存储结构：索引目录下 前缀.segments 记录段文件名，每个段一个 段名.seg 索引文件和一个 段名.tomb 删除文档文件，
+ * 文件格式见SegmentFile
  *
  * @description：
  * @author： liuxiangqian
@@ -27,41 +39,107 @@ import java.util.*;
  */
 @Data
 @Slf4j
-public class EmIndex {
+public class EmIndex implements VectorIndex {
     /**
      * MAX_THREAD_NUM:      索引创建最大线程数
      * MIN_INDEX_GOODS_NUM: 每个线程索引时候，尽量满足这么多文档数
-     * MAX_RECALL:          最大的召回数目，用来减少距离计算的量
+     * MAX_RECALL:          精确距离计算的最大文档数，召回超过该值时按聚类距离估计值择优
+     * MAX_CODE_CLUSTER:    量化编码每段一个byte，聚类数不能超过该值
+     * RERANK_COUNT:        ADC打分后进行精确距离重排的文档数
+     * MIN_CHUNK_DOCS:      并行打分时每个线程至少处理的文档数
+     * REFRESH_VECTORS:     写入段达到该向量数时发布
+     * REFRESH_INTERVAL_MS: 写入段距上次发布超过该时间时，下一次写入触发发布
+     * MERGE_BYTES_PER_SECOND: 后台合并的读写限速
+     * BRUTE_FORCE_FILTER_DOCS: 过滤条件的文档数不超过该值时，跳过倒排召回，直接对过滤后的文档打分
+     * RECHECK_FACTOR:      向量有损编码时，按编码距离选出topn的该倍数个文档，再用float向量精确复核
      */
-    public static final int MAX_MMAP_SIZE = 500 * 1024 * 1024;
-    public static final int WARN_MMAP_SIZE = 250 * 1024 * 1024;
     public static final int MAX_RECALL = 100000;
+    public static final int MAX_CODE_CLUSTER = 256;
+    public static final int RERANK_COUNT = 1000;
+    public static final int MIN_CHUNK_DOCS = 2048;
+    public static final int REFRESH_VECTORS = 10000;
+    public static final long REFRESH_INTERVAL_MS = 1000L;
+    public static final double MERGE_BYTES_PER_SECOND = 64 * 1024 * 1024;
+    public static final int BRUTE_FORCE_FILTER_DOCS = 20000;
+    public static final int RECHECK_FACTOR = 2;
+    private static final int PARALLELISM = Runtime.getRuntime().availableProcessors();
+    private static final String MANIFEST_SUFFIX = ".segments";
 
     /**
-     * IVT_KEY_FORMAT：  倒排索引的key格式  向量段编号_聚类编号
+     * MERGE_EXECUTOR： 段合并线程，所有索引共用一个后台线程，同一索引同时只有一个合并任务
      */
-    private static String IVT_KEY_FORMAT = "%d_%d";
+    private static final ExecutorService MERGE_EXECUTOR = new ThreadPoolExecutor(1, 1,
+            0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), runnable -> {
+        Thread thread = new Thread(runnable, "em-merge");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     /**
      * pq:              量化模型
-     * termToDocList：  倒排信息
-     * delDocs：        由Index传过来的删除文档
-     * indexVectors：   参与索引的向量集合
+     * segments：       已发布的索引段，不可修改的列表，整体替换
+     * activeSegment：  写入段，发布前对查询不可见
+     * pendingDeletes： 更新文档时旧文档的删除，与写入段一起发布，避免新旧文档同时可见或同时不可见
+     * pendingVectors： 写入段中未发布的向量数
+     * lastRefreshTime：上次发布时间
+     * refreshVectors： 写入段发布的向量数阈值
+     * refreshIntervalMs： 写入段发布的时间间隔
+     * mergePolicy：    段合并策略
+     * mergeRateLimiter：后台合并读写限速，单位字节/秒
+     * mergeEnabled：   是否在后台合并段
+     * merging：        是否有合并任务在排队或执行
+     * storeDir：       段落盘的索引目录，store或load之后才有
+     * storePrefix：    段落盘的索引前缀
+     * segmentGeneration：段文件名的最大序号
+     * mmapPostings：   加载时倒排链是否直接使用映射文件中的只读视图，关闭时反序列化到堆内
+     * verifyChecksums：加载时是否校验段文件各分区的CRC32
+     * adcEnabled：     是否使用量化编码查表打分（ADC），关闭时对所有召回文档计算精确距离
+     * rerankCount：    ADC打分后取前rerankCount个文档计算精确距离重排，0表示不重排
+     * maxRecall：      不使用ADC时精确距离计算的最大文档数
+     * bruteForceFilterDocs： 过滤查询中过滤条件的文档数不超过该值时，对过滤后的全部文档打分
+     * vectorEncoding： 新写入段的向量编码，FLOAT16、INT8的内存和带宽约为FLOAT32的1/2、1/4，已落盘的段以文件中的编码为准
+     * exactRecheck：   INT8编码时是否额外保留float向量，对最终topn按精确距离复核
+     * adaptiveRecall： 查询参数clusterTopn不大于0时的自适应召回参数
      */
     private EmPQ pq;
-    private Map<Long, RoaringBitmap> termToDocList = new HashMap<>(1024);
-    private BitSet delDocs;
-    private Map<Integer, List<float[]>> indexVectors = new HashMap<>();
+    private volatile List<IndexSegment> segments;
+    private IndexSegment activeSegment;
+    private RoaringBitmap pendingDeletes;
+    private int pendingVectors;
+    private long lastRefreshTime;
+    private int refreshVectors = REFRESH_VECTORS;
+    private long refreshIntervalMs = REFRESH_INTERVAL_MS;
+    private TieredMergePolicy mergePolicy = new TieredMergePolicy();
+    private RateLimiter mergeRateLimiter = RateLimiter.create(MERGE_BYTES_PER_SECOND);
+    private boolean mergeEnabled = true;
+    private final AtomicBoolean merging = new AtomicBoolean();
+    private String storeDir;
+    private String storePrefix;
+    private int segmentGeneration;
+    private boolean mmapPostings = true;
+    private boolean verifyChecksums = true;
+    private boolean adcEnabled = true;
+    private int rerankCount = RERANK_COUNT;
+    private int maxRecall = MAX_RECALL;
+    private int bruteForceFilterDocs = BRUTE_FORCE_FILTER_DOCS;
+    private VectorEncoding vectorEncoding = VectorEncoding.FLOAT32;
+    private boolean exactRecheck = true;
+    private AdaptiveRecall adaptiveRecall = new AdaptiveRecall();
 
     public EmIndex(EmPQ pq) {
+        assert pq.getClusterCount() <= MAX_CODE_CLUSTER;
         this.pq = pq;
-        this.delDocs = new BitSet();
+        this.segments = Collections.emptyList();
+        this.activeSegment = newSegment();
+        this.pendingDeletes = new RoaringBitmap();
+        this.lastRefreshTime = System.currentTimeMillis();
     }
 
     public void addVectors(List<Pair<Integer, float[]>> pairs) {
         pairs.forEach(pair -> {
             addVector(pair.getRight(), pair.getKey());
         });
+        refresh();
     }
 
     public void addVector(List<float[]> vectors, List<Integer> ids) {
@@ -75,6 +153,7 @@ public class EmIndex {
                 log.info("当前向量索引数:{}", i);
             }
         }
+        refresh();
 
         long took = (System.currentTimeMillis() - start) / 1000;
         log.info("索引向量数：{} 索引耗时：{}秒", vectors.size(), took);
@@ -85,570 +164,953 @@ public class EmIndex {
      * 步骤一： 向量切割      向量段长度，向量段类数
      * 步骤二： 向量段聚类    聚类数
      * 步骤三： 向量索引      基于rb实现
+     * 写入段满足发布条件前对查询不可见，需要立即可见时调用refresh
      *
      * @param vector 向量
      * @param id     向量对应的文档id（一个id可以对应多个向量）
      */
     public void addVector(float[] vector, int id) {
-        //步骤一： 量化
-        List<Integer> pqIds = pq.pq(vector);
-
-        //步骤二： 加入索引
-        for (int i = 0; i < pqIds.size(); i++) {
-            int segNum = i;
-            int clusterId = pqIds.get(i);
-            String ivtKey = String.format(IVT_KEY_FORMAT, segNum, clusterId);
-            long ivtKeySig = TermSignature.signatureTerm(ivtKey);
-            if (!termToDocList.containsKey(ivtKeySig)) {
-                termToDocList.put(ivtKeySig, new RoaringBitmap());
-            }
-            termToDocList.get(ivtKeySig).add(id);
+        //步骤一： 按度量处理向量并量化，不需要持有写锁
+        vector = pq.prepare(vector);
+        if (!pq.accepts(Collections.singletonList(vector), id)) {
+            return;
         }
+        int[] pqIds = pq.quantize(vector);
 
-        //步骤三： 收集向量集合
-        List<float[]> vectorList = indexVectors.getOrDefault(id, new ArrayList<>(1));
-        vectorList.add(vector);
-        indexVectors.put(id, vectorList);
+        //步骤二： 加入写入段
+        addQuantized(id, vector, pqIds);
+    }
+
+    private synchronized void addQuantized(int id, float[] vector, int[] pqIds) {
+        activeSegment.add(id, vector, pqIds);
+        pendingVectors++;
+        if (pendingVectors >= refreshVectors || System.currentTimeMillis() - lastRefreshTime >= refreshIntervalMs) {
+            refresh();
+        }
     }
 
     /**
-     * 向量查询
-     * 步骤一： 向量分段
-     * 步骤二： 向量距离表
-     * 步骤三： 向量召回
-     * 步骤四： 向量距离计算并排序
-     *
-     * @param vector      查询向量
-     * @param clusterTopn 向量每个字段获取的类别数
-     * @param topn        获取最相近向量个数
-     * @return 获取id列表和最小相似距离(1个id可能有多个向量 ）
+     * @return 按当前向量编码配置创建的写入段
      */
-    public List<Pair<Integer, Float>> searchDocs(float[] vector, int clusterTopn, int topn) {
-        //步骤一： 聚类查询，获取距离表
-        List<List<Pair<Integer, Float>>> segDisListList = pq.search(vector, clusterTopn);
+    private IndexSegment newSegment() {
+        return new IndexSegment(pq, vectorEncoding, exactRecheck);
+    }
 
-        //步骤二： 生成需要的rb
-        long start = System.currentTimeMillis();
-        RoaringBitmap resultRb = searchRb(segDisListList);
-        log.info("召回结果数:{} 召回耗时:{}毫秒", resultRb.getCardinality(), (System.currentTimeMillis() - start));
+    /**
+     * 设置新写入段的向量编码，写入段为空时立即生效，否则从下一个写入段开始生效
+     *
+     * @param vectorEncoding 向量编码
+     */
+    public synchronized void setVectorEncoding(VectorEncoding vectorEncoding) {
+        this.vectorEncoding = vectorEncoding;
+        if (0 == pendingVectors) {
+            activeSegment = newSegment();
+        }
+    }
 
-        //步骤三： 收集最匹配的topn向量编号与距离
-        start = System.currentTimeMillis();
-        final List<Pair<Integer, Float>> docList = Collections.synchronizedList(new ArrayList<>(topn));
-        int count = 0;
-        List<Integer> docIds = new ArrayList<>(topn);
-        for (int id : resultRb) {
-            docIds.add(id);
-            if (count++ >= MAX_RECALL) {
-                break;
-            }
+    /**
+     * @param exactRecheck INT8编码时是否保留float向量用于精确复核，生效时机同setVectorEncoding
+     */
+    public synchronized void setExactRecheck(boolean exactRecheck) {
+        this.exactRecheck = exactRecheck;
+        if (0 == pendingVectors) {
+            activeSegment = newSegment();
         }
-        log.info("收集文档: 文档数{} 耗时{}毫秒", docIds.size(), (System.currentTimeMillis() - start));
+    }
 
-        docIds.parallelStream().forEach(id -> {
-            float disSum = computeDis(id, vector);
-            Pair<Integer, Float> pair = Pair.of(id, disSum);
-            docList.add(pair);
-        });
-        log.info("距离计算耗时:{}毫秒", (System.currentTimeMillis() - start));
+    /**
+     * 发布写入段：写入段和待删除文档原子地生效，之后的查询可见
+     */
+    public synchronized void refresh() {
+        if (0 == pendingVectors && pendingDeletes.isEmpty()) {
+            return;
+        }
 
-        //步骤四： 排序
-        docList.sort(Comparator.comparing(Pair::getValue));
+        List<IndexSegment> published = new ArrayList<>(segments.size() + 1);
+        for (IndexSegment segment : segments) {
+            published.add(segment.withDeleted(pendingDeletes));
+        }
+        if (pendingVectors > 0) {
+            activeSegment.seal();
+            published.add(activeSegment);
+            activeSegment = newSegment();
+        }
+        segments = Collections.unmodifiableList(published);
 
-        List<Pair<Integer, Float>> returnDocs = docList.size() > topn ? docList.subList(0, topn) : docList;
-        return returnDocs;
+        pendingDeletes = new RoaringBitmap();
+        pendingVectors = 0;
+        lastRefreshTime = System.currentTimeMillis();
+        scheduleMerge();
     }
 
+    /**
+     * 删除文档，已发布的段立即生效，写入段中的向量直接清除
+     *
+     * @param id 文档id
+     */
+    public synchronized void delete(int id) {
+        pendingVectors -= activeSegment.purge(id);
+        RoaringBitmap deleted = RoaringBitmap.bitmapOf(id);
+        List<IndexSegment> published = new ArrayList<>(segments.size());
+        for (IndexSegment segment : segments) {
+            published.add(segment.withDeleted(deleted));
+        }
+        segments = Collections.unmodifiableList(published);
+        scheduleMerge();
+    }
 
     /**
-     * 获取满足条件的Rb列表
-     * 与基于文本的索引进行倒排链求交
+     * 更新文档：旧文档的删除与新向量在同一次发布中生效
      *
-     * @param vector
-     * @param clusterTopn
-     * @return
+     * @param vectors 文档的新向量
+     * @param id      文档id
      */
-    public RoaringBitmap searchRb(float[] vector, int clusterTopn) {
-        //步骤一： 聚类查询，获取距离表
-        List<List<Pair<Integer, Float>>> segDisListList = pq.search(vector, clusterTopn);
+    public void update(List<float[]> vectors, int id) {
+        List<float[]> prepared = pq.prepare(vectors);
+        if (!pq.accepts(prepared, id)) {
+            return;
+        }
+        List<int[]> pqIdsList = new ArrayList<>(vectors.size());
+        prepared.forEach(vector -> pqIdsList.add(pq.quantize(vector)));
+
+        synchronized (this) {
+            pendingVectors -= activeSegment.purge(id);
+            pendingDeletes.add(id);
+            for (int i = 0; i < prepared.size(); i++) {
+                activeSegment.add(id, prepared.get(i), pqIdsList.get(i));
+            }
+            pendingVectors += vectors.size();
+            refresh();
+        }
+    }
 
-        //步骤二： 生成需要的rb
-        RoaringBitmap resultRb = searchRb(segDisListList);
+    /**
+     * 整理索引：把已发布的段合并为一个段，清除合并前已删除的文档
+     * 合并不持有写锁，提交方式同后台合并；段列表被后台合并改变时基于新的段列表重试，段文件写入失败时放弃
+     */
+    public void compact() {
+        while (true) {
+            List<IndexSegment> published;
+            synchronized (this) {
+                refresh();
+                published = segments;
+            }
+            if (published.isEmpty() || (published.size() == 1 && published.get(0).getTombstones().isEmpty())) {
+                return;
+            }
+            if (MergeResult.CHANGED != mergeSegments(published)) {
+                return;
+            }
+        }
+    }
 
-        return resultRb;
+    /**
+     * 提交后台合并任务，已有任务时不重复提交
+     */
+    private void scheduleMerge() {
+        if (!mergeEnabled || !merging.compareAndSet(false, true)) {
+            return;
+        }
+
+        MERGE_EXECUTOR.execute(() -> {
+            try {
+                List<IndexSegment> candidates = mergePolicy.findMerge(segments);
+                while (!candidates.isEmpty() && mergeEnabled) {
+                    if (MergeResult.FAILED == mergeSegments(candidates)) {
+                        log.warn("段文件写入失败，停止本轮后台合并，下次段列表变化时再合并");
+                        break;
+                    }
+                    candidates = mergePolicy.findMerge(segments);
+                }
+            } catch (Exception e) {
+                log.error("索引段后台合并失败", e);
+            } finally {
+                merging.set(false);
+            }
+        });
     }
 
     /**
-     * 对索引进行合并
+     * 合并段：合并和落盘不持有写锁，提交时补上合并期间新增的删除文档
      *
-     * @param ivt
+     * @param candidates 待合并的段
+     * @return 合并结果
      */
-    public void merge(EmIndex ivt) {
-        if (this.pq != ivt.getPq()) {
-            log.error("量化模型不一致");
+    private MergeResult mergeSegments(List<IndexSegment> candidates) {
+        //步骤一： 合并，索引已落盘时合并结果写为新的段文件
+        IndexSegment merged = IndexSegment.merge(pq, candidates, mergeRateLimiter);
+        String dir;
+        String name = null;
+        synchronized (this) {
+            dir = storeDir;
+            if (null != dir) {
+                name = nextSegmentName();
+            }
+        }
+        if (null != dir && !merged.store(dir, name, mergeRateLimiter)) {
+            deleteSegmentFiles(dir, name);
+            return MergeResult.FAILED;
+        }
+
+        //步骤二： 用合并结果替换候选段
+        synchronized (this) {
+            List<IndexSegment> published = new ArrayList<>(segments.size());
+            RoaringBitmap deletedSince = new RoaringBitmap();
+            int matched = 0;
+            for (IndexSegment segment : segments) {
+                IndexSegment candidate = null;
+                for (IndexSegment c : candidates) {
+                    if (c.sameData(segment)) {
+                        candidate = c;
+                        break;
+                    }
+                }
+
+                if (null == candidate) {
+                    published.add(segment);
+                    continue;
+                }
+                matched++;
+                deletedSince.or(RoaringBitmap.andNot(segment.getTombstones(), candidate.getTombstones()));
+            }
+
+            if (matched != candidates.size()) {
+                log.info("合并期间段列表已变化，放弃本次合并");
+                if (null != dir) {
+                    deleteSegmentFiles(dir, name);
+                }
+                return MergeResult.CHANGED;
+            }
+
+            IndexSegment committed = merged.withDeleted(deletedSince);
+            if (null != dir && !dir.equals(storeDir)) {
+                committed.setName(null);
+            }
+            published.add(committed);
+            segments = Collections.unmodifiableList(published);
+
+            //步骤三： 合并期间的删除可能只存在被合并段的删除文档文件中，先写入新段，再更新段清单并删除被合并的段文件
+            if (null != storeDir && null != committed.getName()) {
+                if (committed != merged && !committed.storeTombstones(storeDir, committed.getName())) {
+                    log.error("合并段删除文档存储失败，暂不更新段清单, segment:{}", committed.getName());
+                    return MergeResult.COMMITTED;
+                }
+                writeManifest(published);
+            }
         }
+        return MergeResult.COMMITTED;
+    }
 
-        // 倒排索引合并
-        Map<Long, RoaringBitmap> rightTermToDocList = ivt.getTermToDocList();
-        for (Map.Entry<Long, RoaringBitmap> entry : rightTermToDocList.entrySet()) {
-            long ivtKey = entry.getKey();
-            RoaringBitmap rightRb = entry.getValue();
-            RoaringBitmap leftRb = rightTermToDocList.getOrDefault(ivtKey, new RoaringBitmap());
-            leftRb.or(rightRb);
-            termToDocList.put(ivtKey, leftRb);
+    /**
+     * @param id 文档id
+     * @return 文档在已发布段中的向量
+     */
+    public List<float[]> getVectors(int id) {
+        List<float[]> vectors = new ArrayList<>(1);
+        for (IndexSegment segment : segments) {
+            if (segment.isLive(id)) {
+                vectors.addAll(segment.getVectorStore().getVectors(id));
+            }
         }
 
-        //删除文档合并
-        delDocs.or(ivt.getDelDocs());
-        //向量合并
-        indexVectors.putAll(ivt.getIndexVectors());
+        return vectors;
     }
 
     /**
-     * 索引存储
-     * 1.清理删除文档的位图索引并存储
-     * 2.清理删除文档的向量并存储
+     * 向量查询
+     * 步骤一： 向量分段
+     * 步骤二： 向量距离表
+     * 步骤三： 各个已发布段内召回并选出topn
+     * 步骤四： 合并各段topn
      *
-     * @param indexDir    索引目录
-     * @param indexPrefix 索引前缀（分片，nas盘存储等进行区分用）
+     * @param vector      查询向量
+     * @param clusterTopn 向量每个字段获取的类别数，不大于0时各段按召回结果数自适应，见AdaptiveRecall
+     * @param topn        获取最相近向量个数
+     * @return 按相似程度从高到低的文档id和分数(1个id可能有多个向量，取最相似的）
      */
-    public void store(String indexDir, String indexPrefix) {
-        indexDir = FolderTools.folderAppendSlash(indexDir);
-        FolderTools.createFolder(indexDir);
+    public SearchHits searchDocs(float[] vector, int clusterTopn, int topn) {
+        return searchDocs(vector, clusterTopn, topn, null);
+    }
 
-        storeBitmapIndex(indexDir, indexPrefix);
-        storeVectors(indexDir, indexPrefix);
+    /**
+     * 带过滤条件的向量查询：召回结果先与过滤条件求交集再计算距离
+     * 过滤条件的文档数不超过bruteForceFilterDocs时不走倒排召回，直接对过滤后的文档打分，不会因聚类召回遗漏结果
+     *
+     * @param vector      查询向量
+     * @param clusterTopn 向量每个字段获取的类别数，不大于0时自适应
+     * @param topn        获取最相近向量个数
+     * @param filter      允许返回的文档，null表示不过滤
+     * @return 按相似程度从高到低的文档id和分数(1个id可能有多个向量，取最相似的），分数按pq的度量换算
+     */
+    public SearchHits searchDocs(float[] vector, int clusterTopn, int topn, RoaringBitmap filter) {
+        float[] query = pq.prepare(vector);
+        return pq.getMetric().toScores(searchDistances(query, clusterTopn, topn, filter), query);
     }
 
     /**
-     * 加载索引
-     * 1.位图索引加载
-     * 2.索引向量加载
+     * @return 按欧式距离升序的文档id和最小距离
+     */
+    private SearchHits searchDistances(float[] vector, int clusterTopn, int topn, RoaringBitmap filter) {
+        if (null != filter && filter.isEmpty()) {
+            return new SearchHits(new int[0], new float[0]);
+        }
+
+        //步骤一： 聚类查询，获取距离表
+        boolean bruteForce = null != filter && filter.getLongCardinality() <= bruteForceFilterDocs;
+        List<List<Pair<Integer, Float>>> segDisListList = bruteForce ? null
+                : pq.search(vector, searchClusterTopn(clusterTopn));
+        float[] table = adcEnabled ? pq.distanceTable(vector) : null;
+
+        //步骤二： 各段查询，查询期间使用同一个段列表快照
+        List<IndexSegment> snapshot = segments;
+        List<SearchHits> hitsList = new ArrayList<>(snapshot.size());
+        for (IndexSegment segment : snapshot) {
+            hitsList.add(searchSegment(segment, vector, segDisListList, clusterTopn, table, topn, filter));
+        }
+
+        //步骤三： 合并各段结果
+        return hitsList.size() == 1 ? hitsList.get(0) : mergeHits(hitsList, topn);
+    }
+
+    /**
+     * 单个段内的召回和打分
      *
-     * @param modelDir
-     * @param indexPrefix
+     * @param segment        索引段
+     * @param vector         查询向量
+     * @param segDisListList 向量的各个段对应的聚类编号和距离，为null时对过滤条件中的全部文档打分
+     * @param clusterTopn    查询参数中的类别数，不大于0时自适应
+     * @param table          ADC距离表，不使用ADC时为null
+     * @param topn           获取最相近向量个数
+     * @param filter         允许返回的文档，null表示不过滤
+     * @return 段内按距离升序的topn
      */
-    public void load(String modelDir, String indexPrefix) {
+    private SearchHits searchSegment(IndexSegment segment, float[] vector,
+                                     List<List<Pair<Integer, Float>>> segDisListList, int clusterTopn,
+                                     float[] table, int topn, RoaringBitmap filter) {
+        //步骤一： 生成需要的rb，没有聚类结果时直接取过滤条件中的存活文档
         long start = System.currentTimeMillis();
-        modelDir = FolderTools.folderAppendSlash(modelDir);
-        termToDocList = loadBitmapIndex(modelDir, indexPrefix);
-        indexVectors = loadIndexVectors(modelDir, indexPrefix);
-        log.info("向量索引加载耗时:{}ms", System.currentTimeMillis() - start);
+        RoaringBitmap resultRb = recallSegment(segment, segDisListList, clusterTopn, topn, filter);
+        log.info("召回结果数:{} 召回耗时:{}毫秒", resultRb.getCardinality(), (System.currentTimeMillis() - start));
+
+        //步骤二： 收集最匹配的topn向量编号与距离
+        start = System.currentTimeMillis();
+        SearchHits hits = scoreDocs(segment, vector, resultRb.toArray(), segDisListList, table, topn, true);
+        log.info("距离计算耗时:{}毫秒", (System.currentTimeMillis() - start));
+
+        return hits;
     }
 
     /**
-     * @param segDisListList 向量的各个段对应的聚类编号和距离
-     * @return 匹配的rb列表
+     * @param clusterTopn 查询参数中的类别数
+     * @return 聚类查询的类别数，自适应时取各段可扩大到的最大类别数
      */
-    private RoaringBitmap searchRb(List<List<Pair<Integer, Float>>> segDisListList) {
-        RoaringBitmap resultRb = new RoaringBitmap();
-        for (int i = 0; i < segDisListList.size(); i++) {
-            RoaringBitmap segRb = new RoaringBitmap();
-
-            int segNum = i;
-            List<Pair<Integer, Float>> segDisList = segDisListList.get(i);
-            for (int j = 0; j < segDisList.size(); j++) {
-                Pair<Integer, Float> pair = segDisList.get(j);
-                int clusterId = pair.getLeft();
-                String key = String.format(IVT_KEY_FORMAT, segNum, clusterId);
-                long ivtKey = TermSignature.signatureTerm(key);
-                RoaringBitmap tmpRb = termToDocList.getOrDefault(ivtKey, new RoaringBitmap());
-                segRb.or(tmpRb);
-            }
+    private int searchClusterTopn(int clusterTopn) {
+        return clusterTopn > 0 ? clusterTopn : Math.max(1, adaptiveRecall.getMaxClusterTopn());
+    }
+
+    /**
+     * 单个段内召回
+     *
+     * @param segment        索引段
+     * @param segDisListList 向量的各个段对应的聚类编号和距离，为null时取过滤条件中的全部存活文档
+     * @param clusterTopn    查询参数中的类别数，不大于0时按adaptiveRecall逐步扩大
+     * @param topn           获取最相近向量个数
+     * @param filter         允许返回的文档，null表示不过滤
+     * @return 候选文档
+     */
+    private RoaringBitmap recallSegment(IndexSegment segment, List<List<Pair<Integer, Float>>> segDisListList,
+                                        int clusterTopn, int topn, RoaringBitmap filter) {
+        if (null == segDisListList) {
+            return segment.liveDocs(filter);
+        }
+
+        return clusterTopn > 0 ? segment.recall(segDisListList, filter)
+                : segment.recallAdaptive(segDisListList, filter, adaptiveRecall, topn);
+    }
+
+    /**
+     * 对段内召回的文档打分并选出topn
+     *
+     * @param segment        索引段
+     * @param vector         查询向量
+     * @param docIds         升序的召回文档
+     * @param segDisListList 向量的各个段对应的聚类编号和距离，为null时表示召回文档不是来自聚类
+     * @param table          ADC距离表，不使用ADC时为null
+     * @param topn           获取最相近向量个数
+     * @param parallel       是否并行打分，批量查询时各查询已经并行，单个查询内不再并行
+     * @return 段内按距离升序的topn
+     */
+    private SearchHits scoreDocs(IndexSegment segment, float[] vector, int[] docIds,
+                                 List<List<Pair<Integer, Float>>> segDisListList, float[] table, int topn,
+                                 boolean parallel) {
+        VectorStore vectorStore = segment.getVectorStore();
+        int clusterCount = pq.getClusterCount();
+        if (!adcEnabled && docIds.length > maxRecall && null != segDisListList) {
+            //召回过多时按聚类距离估计值选出最有希望的maxRecall个文档，而不是按文档id截断
+            float[] coarseTable = coarseTable(segDisListList);
+            docIds = selectTopk(docIds, maxRecall,
+                    (id, bound) -> vectorStore.minAdcDistance(id, coarseTable, clusterCount), parallel).ids();
+            Arrays.sort(docIds);
+        }
 
-            if (0 == i) {
-                resultRb = segRb;
-                continue;
+        //向量有损编码且保留了float向量时，编码距离多选出一些文档，最后用精确距离复核
+        //打分只比较大小，全部使用距离平方，最终结果再开方
+        //精确距离按量化段分块计算，方差大的段先算，部分和超过堆阈值即放弃该文档
+        int[] blockOrder = pq.getSegmentOrder();
+        boolean recheck = vectorStore.hasExactVectors();
+        int vectorTopn = recheck ? topn * RECHECK_FACTOR : topn;
+        TopkHeap heap;
+        if (adcEnabled) {
+            //基于量化编码查表打分，只对排名靠前的文档计算精确距离
+            //ADC打分与聚类距离估计的代价相同，因此对全部召回文档打分
+            if (rerankCount > 0) {
+                TopkHeap adcHeap = selectTopk(docIds, Math.max(vectorTopn, rerankCount),
+                        (id, bound) -> vectorStore.minAdcDistance(id, table, clusterCount), parallel);
+                int[] rerankIds = adcHeap.ids();
+                Arrays.sort(rerankIds);
+                heap = selectTopk(rerankIds, vectorTopn,
+                        (id, bound) -> vectorStore.minDistanceSquare(id, vector, blockOrder, bound), parallel);
+            } else {
+                recheck = false;
+                heap = selectTopk(docIds, topn,
+                        (id, bound) -> vectorStore.minAdcDistance(id, table, clusterCount), parallel);
             }
+        } else {
+            heap = selectTopk(docIds, vectorTopn,
+                    (id, bound) -> vectorStore.minDistanceSquare(id, vector, blockOrder, bound), parallel);
+        }
 
-            resultRb.and(segRb);
+        if (recheck) {
+            int[] recheckIds = heap.ids();
+            Arrays.sort(recheckIds);
+            heap = selectTopk(recheckIds, topn,
+                    (id, bound) -> vectorStore.minExactDistanceSquare(id, vector, blockOrder, bound), false);
         }
 
-        return resultRb;
+        //堆中结果按距离排序
+        return heap.toSqrtHits();
+    }
+
+    public SearchHits searchRadius(float[] vector, float radius) {
+        return searchRadius(vector, radius, null);
     }
 
     /**
-     * 根据向量集合和检索向量获取文档相关性
+     * 范围查询：返回与查询向量距离不超过radius的所有文档，用于去重、近似重复检测
+     * 步骤一： 各段由聚类半径得到距离下界表，每段只召回下界不超过半径的聚类
+     * 步骤二： 候选文档按量化编码查下界表，下界超过半径的直接排除
+     * 步骤三： 剩余文档计算精确距离，向量有损编码时使用保留的float向量
      *
-     * @param id           召回的文档id
-     * @param searchVector 检索向量
-     * @return
+     * @param vector 查询向量
+     * @param radius 分数阈值，L2为距离上限，相似度度量为相似度下限
+     * @param filter 允许返回的文档，null表示不过滤
+     * @return 按相似程度从高到低的所有文档id和分数
      */
-    private float computeDis(int id, float[] searchVector) {
-        List<float[]> curVectors = this.indexVectors.get(id);
-        float minDis = Float.MAX_VALUE;
-        for (float[] vector : curVectors) {
-            float dis = VectorTools.continentalDistance(vector, searchVector);
-            minDis = minDis > dis ? dis : minDis;
-        }
-
-        return minDis;
-    }
-
-    /**
-     * 生成位图索引
-     */
-    private void storeBitmapIndex(String indexDir, String indexPrefix) {
-        log.info("storeBitmapIndex begin");
-        long startTime = System.currentTimeMillis();
-        String termIdFile = indexDir + indexPrefix + ".key";
-        String bitmapFile = indexDir + indexPrefix + ".bitmap";
-        List<Long> termIdList = new ArrayList<>();
-        Triple<RandomAccessFile, FileChannel, MappedByteBuffer> mmapTriple = null;
-        long realSize = 0L;
-        try (FileOutputStream fos = new FileOutputStream(termIdFile);
-             ObjectOutputStream objOutputStream = new ObjectOutputStream(fos)) {
-            // 打开一个随机访问文件流，按读写方式
-            mmapTriple = fileMmap(bitmapFile, 0);
-            long position = 0L;
-            MappedByteBuffer mbb = null;
-            for (Long termId : termToDocList.keySet()) {
-                Pair<Triple<RandomAccessFile, FileChannel, MappedByteBuffer>, Long> mmapPositionPair
-                        = mmapFileResize(mmapTriple, bitmapFile, position);
-                position = mmapPositionPair.getValue();
-                mmapTriple = mmapPositionPair.getKey();
-                mbb = mmapTriple.getRight();
-                RoaringBitmap rb = termToDocList.get(termId);
-                termIdList.add(termId);
-
-                // 将位图索引写入文件
-                rb = clearRb(rb);
-                byte[] byteArr = serialise(rb);
-                mbb.putInt(byteArr.length);
-                mbb.put(byteArr);
-            }
+    public SearchHits searchRadius(float[] vector, float radius, RoaringBitmap filter) {
+        float[] query = pq.prepare(vector);
+        Metric metric = pq.getMetric();
+        return metric.toScores(radiusDistances(query, metric.distanceRadius(radius, query), filter), query);
+    }
 
-            // 将termid写入文件
-            objOutputStream.writeObject(termIdList);
+    /**
+     * @param radius 欧式距离阈值，负数时没有结果
+     * @return 按欧式距离升序的所有文档id和最小距离
+     */
+    private SearchHits radiusDistances(float[] vector, float radius, RoaringBitmap filter) {
+        if (radius < 0) {
+            return new SearchHits(new int[0], new float[0]);
+        }
 
-            if (null == mbb) {
-                return;
+        long start = System.currentTimeMillis();
+        float[] table = pq.distanceTable(vector);
+        float radiusSquare = radius * radius;
+        int clusterCount = pq.getClusterCount();
+
+        List<IndexSegment> snapshot = segments;
+        List<SearchHits> hitsList = new ArrayList<>(snapshot.size());
+        int candidateCount = 0;
+        for (IndexSegment segment : snapshot) {
+            float[] bounds = segment.lowerBoundTable(table);
+            int[] docIds = segment.recallRange(bounds, radiusSquare, filter).toArray();
+            candidateCount += docIds.length;
+
+            VectorStore vectorStore = segment.getVectorStore();
+            int chunkCount = Math.max(1, Math.min(PARALLELISM * 4, docIds.length / MIN_CHUNK_DOCS));
+            int chunkSize = (docIds.length + chunkCount - 1) / chunkCount;
+            int[][] chunkIds = new int[chunkCount][];
+            float[][] chunkScores = new float[chunkCount][];
+            IntStream.range(0, chunkCount).parallel().forEach(chunk -> {
+                int from = Math.min(docIds.length, chunk * chunkSize);
+                int end = Math.min(docIds.length, from + chunkSize);
+                int[] ids = new int[end - from];
+                float[] scores = new float[end - from];
+                int count = 0;
+                for (int i = from; i < end; i++) {
+                    int id = docIds[i];
+                    if (vectorStore.minAdcDistance(id, bounds, clusterCount) > radiusSquare) {
+                        continue;
+                    }
+                    float square = vectorStore.minExactDistanceSquare(id, vector);
+                    if (square <= radiusSquare) {
+                        ids[count] = id;
+                        scores[count++] = (float) Math.sqrt(square);
+                    }
+                }
+                chunkIds[chunk] = Arrays.copyOf(ids, count);
+                chunkScores[chunk] = Arrays.copyOf(scores, count);
+            });
+            for (int chunk = 0; chunk < chunkCount; chunk++) {
+                hitsList.add(new SearchHits(chunkIds[chunk], chunkScores[chunk]));
             }
+        }
 
-            FileChannel fc = mmapTriple.getMiddle();
-            realSize = MMapTools.mmapFileSize(fc, mbb);
-        } catch (IOException e) {
-            log.error("storeBitmapIndex error", e);
-        } finally {
-            if (mmapTriple != null) {
-                mmapFileClose(mmapTriple, bitmapFile, realSize);
-            }
+        int total = 0;
+        for (SearchHits hits : hitsList) {
+            total += hits.size();
         }
-        long took = (System.currentTimeMillis() - startTime) / 1000;
-        log.info("storeBitmapIndex end,总体耗时[{}]s", took);
+        SearchHits result = mergeHits(hitsList, total);
+        log.info("范围查询完毕, 候选文档数:{} 结果数:{} 耗时:{}毫秒", candidateCount, result.size(),
+                System.currentTimeMillis() - start);
+        return result;
     }
 
     /**
-     * 存储向量
+     * 批量向量查询
      *
-     * @param indexDir    索引目录
-     * @param indexPrefix 索引文件前缀
+     * @param vectors     查询向量
+     * @param clusterTopn 向量每个字段获取的类别数
+     * @param topn        获取最相近向量个数
+     * @return 与查询向量顺序一致的结果
+     */
+    public SearchHits[] searchDocs(float[][] vectors, int clusterTopn, int topn) {
+        return searchDocs(vectors, clusterTopn, topn, null);
+    }
+
+    /**
+     * 批量向量查询
+     * 步骤一： 所有查询的距离表按块一次计算，各段最近聚类直接从距离表中选出
+     * 步骤二： 聚类选择相同的查询分为一组，同组查询在每个段内只召回一次，自适应召回时不分组
+     * 步骤三： 各组并行，组内逐个查询对共享的召回文档打分
+     *
+     * @param vectors     查询向量
+     * @param clusterTopn 向量每个字段获取的类别数，不大于0时自适应
+     * @param topn        获取最相近向量个数
+     * @param filter      允许返回的文档，null表示不过滤
+     * @return 与查询向量顺序一致的结果，分数按pq的度量换算
      */
-    private void storeVectors(String indexDir, String indexPrefix) {
-        String vectorPath = indexDir + indexPrefix + ".vector";
-        try (FileOutputStream fos = new FileOutputStream(vectorPath);
-             ObjectOutputStream oos = new ObjectOutputStream(fos)) {
-            indexVectors = clearIndexVectors(indexVectors);
-            oos.writeObject(indexVectors);
-        } catch (Exception e) {
-            e.printStackTrace();
+    public SearchHits[] searchDocs(float[][] vectors, int clusterTopn, int topn, RoaringBitmap filter) {
+        float[][] queries = new float[vectors.length][];
+        for (int i = 0; i < vectors.length; i++) {
+            queries[i] = pq.prepare(vectors[i]);
         }
+
+        SearchHits[] results = searchDistances(queries, clusterTopn, topn, filter);
+        for (int i = 0; i < results.length; i++) {
+            results[i] = pq.getMetric().toScores(results[i], queries[i]);
+        }
+        return results;
     }
 
-    private Map<Long, RoaringBitmap> loadBitmapIndex(String indexDir, String indexPrefix) {
-        String bmKeyFile = indexDir + indexPrefix + ".key";
-        String bmIndexFile = indexDir + indexPrefix + ".bitmap";
-        Map<Long, RoaringBitmap> bmMap = new HashMap<>(2048);
-        List<Long> keys = null;
-        log.info("start to load bitmap indexControl ..........");
+    /**
+     * @return 与查询向量顺序一致、按欧式距离升序的结果
+     */
+    private SearchHits[] searchDistances(float[][] vectors, int clusterTopn, int topn, RoaringBitmap filter) {
         long start = System.currentTimeMillis();
+        SearchHits[] results = new SearchHits[vectors.length];
+        if (null != filter && filter.isEmpty()) {
+            Arrays.fill(results, new SearchHits(new int[0], new float[0]));
+            return results;
+        }
 
-        //步骤一： 获取位图索引的key信息
-        File bmKeyFp = new File(bmKeyFile);
-        if (!bmKeyFp.exists()) {
-            //说明索引文件为空
-            try {
-                bmKeyFp.createNewFile();
-            } catch (IOException e) {
-                log.error("loadBitmapIndex bmKeyFp.createNewFile ex,indexDir为[{}],indexPrefix为[{}]", indexDir,
-                        indexPrefix, e);
+        //步骤一： 批量计算距离表和最近聚类
+        float[][] tables = pq.distanceTables(vectors);
+        boolean bruteForce = null != filter && filter.getLongCardinality() <= bruteForceFilterDocs;
+        List<List<List<Pair<Integer, Float>>>> segDisLists = new ArrayList<>(vectors.length);
+        Map<List<Integer>, List<Integer>> groups = new LinkedHashMap<>();
+        for (int i = 0; i < vectors.length; i++) {
+            List<List<Pair<Integer, Float>>> segDisListList = bruteForce ? null
+                    : pq.searchTable(tables[i], searchClusterTopn(clusterTopn));
+            segDisLists.add(segDisListList);
+            //自适应时召回结果取决于各聚类的距离，每个查询单独一组
+            List<Integer> groupKey = clusterTopn > 0 || null == segDisListList ? clusterKey(segDisListList)
+                    : Collections.singletonList(i);
+            groups.computeIfAbsent(groupKey, key -> new ArrayList<>()).add(i);
+        }
+
+        //步骤二： 各组并行查询，查询期间使用同一个段列表快照
+        List<IndexSegment> snapshot = segments;
+        new ArrayList<>(groups.values()).parallelStream().forEach(group -> {
+            List<List<SearchHits>> groupHits = new ArrayList<>(group.size());
+            for (int i = 0; i < group.size(); i++) {
+                groupHits.add(new ArrayList<>(snapshot.size()));
+            }
+
+            for (IndexSegment segment : snapshot) {
+                List<List<Pair<Integer, Float>>> segDisListList = segDisLists.get(group.get(0));
+                RoaringBitmap resultRb = recallSegment(segment, segDisListList, clusterTopn, topn, filter);
+                int[] docIds = resultRb.toArray();
+                for (int i = 0; i < group.size(); i++) {
+                    int query = group.get(i);
+                    groupHits.get(i).add(scoreDocs(segment, vectors[query], docIds, segDisLists.get(query),
+                            adcEnabled ? tables[query] : null, topn, false));
+                }
             }
-            log.error("索引文件为空, indexDir:{}", bmKeyFile);
+
+            for (int i = 0; i < group.size(); i++) {
+                List<SearchHits> hitsList = groupHits.get(i);
+                results[group.get(i)] = hitsList.size() == 1 ? hitsList.get(0) : mergeHits(hitsList, topn);
+            }
+        });
+
+        log.info("批量查询完毕, 查询数:{} 分组数:{} 耗时:{}ms", vectors.length, groups.size(),
+                System.currentTimeMillis() - start);
+        return results;
+    }
+
+    /**
+     * @param segDisListList 向量的各个段对应的聚类编号和距离
+     * @return 各段选中的聚类编号，段内升序，聚类选择相同的查询召回结果相同
+     */
+    private static List<Integer> clusterKey(List<List<Pair<Integer, Float>>> segDisListList) {
+        if (null == segDisListList) {
+            return Collections.emptyList();
         }
-        // 如果文件中无内容就不获取位图信息了
-        if (bmKeyFp.length() == 0) {
-            return bmMap;
+
+        List<Integer> key = new ArrayList<>();
+        for (List<Pair<Integer, Float>> segDisList : segDisListList) {
+            int[] clusterIds = new int[segDisList.size()];
+            for (int i = 0; i < clusterIds.length; i++) {
+                clusterIds[i] = segDisList.get(i).getKey();
+            }
+            Arrays.sort(clusterIds);
+            for (int clusterId : clusterIds) {
+                key.add(clusterId);
+            }
+            key.add(-1);
         }
 
-        try (FileInputStream fileInputStream = new FileInputStream(bmKeyFp);
-             ObjectInputStream objectInputStream = new ObjectInputStream(fileInputStream)) {
-            keys = (ArrayList<Long>) objectInputStream.readObject();
+        return key;
+    }
 
-            long end = System.currentTimeMillis();
-            log.info("load keys, took:{}s", (end - start) / 1000);
-        } catch (FileNotFoundException e) {
-            log.error("loadBitmapIndex FileNotFoundException,indexDir为[{}],indexPrefix为[{}]", indexDir, indexPrefix, e);
-        } catch (IOException e) {
-            log.error("loadBitmapIndex IOException,indexDir为[{}],indexPrefix为[{}]", indexDir, indexPrefix, e);
-        } catch (ClassNotFoundException e) {
-            log.error("loadBitmapIndex IOException,indexDir为[{}],indexPrefix为[{}]", indexDir, indexPrefix, e);
+    /**
+     * 合并各段的结果，同一文档的向量分布在多个段时取最小距离
+     * 同一文档在每个结果中最多出现一次，距离最小的 topn * 结果数 个中一定包含距离最小的topn个文档
+     *
+     * @param hitsList 各段的结果，每个结果内文档不重复
+     * @param topn     获取最相近向量个数
+     * @return 按距离升序的topn
+     */
+    private static SearchHits mergeHits(List<SearchHits> hitsList, int topn) {
+        int total = 0;
+        for (SearchHits hits : hitsList) {
+            total += hits.size();
         }
 
-        //步骤二： 获取位图信息
-        File file = new File(bmIndexFile);
-        if (!file.exists()) {
-            try {
-                file.createNewFile();
-            } catch (IOException e) {
-                e.printStackTrace();
+        TopkHeap heap = new TopkHeap((int) Math.min(total, (long) topn * hitsList.size()));
+        for (SearchHits hits : hitsList) {
+            for (int i = 0; i < hits.size(); i++) {
+                heap.offer(hits.getId(i), hits.getScore(i));
             }
         }
 
-        long fileLength = file.length();
-        MappedByteBuffer mbf = null;
-        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
-             FileChannel fc = raf.getChannel();) {
-            if (fileLength < Integer.MAX_VALUE) {
-                mbf = fc.map(FileChannel.MapMode.READ_ONLY, 0, fileLength);
-                int i = 0;
-                while (mbf.hasRemaining()) {
-                    // 解析出 RoaringBitmap
-                    int length = mbf.getInt();
-                    byte[] bytes = new byte[length];
-                    mbf.get(bytes);
-                    ByteBuffer byteBuffer = ByteBuffer.wrap(bytes);
-
-                    RoaringBitmap rb = new RoaringBitmap();
-                    rb.deserialize(byteBuffer);
-
-                    //移除删除的Docs文档
-                    deleteFromRbmByBitSet(rb, delDocs);
-
-                    //获取对应的key
-                    long key = keys.get(i);
-
-                    //存储对应的位图索引
-                    bmMap.put(key, rb);
-                    i++;
-                }
-            } else {
-                //是否最后一次读取
-                boolean lastTime = false;
-                //每次读取大小
-                long size = Integer.MAX_VALUE / 2;
-                long mmapStart = 0;
-                int i = 0;
-                while (true) {
-                    //如果文件大小 减 起始位置 小于 批次大小，则是最后一次
-                    if (fileLength - mmapStart <= size) {
-                        size = fileLength - mmapStart;
-                        lastTime = true;
-                    }
-                    boolean noBreak = true;
-                    mbf = fc.map(FileChannel.MapMode.READ_ONLY, mmapStart, size);
-                    while (mbf.hasRemaining()) {
-                        if (4 + mbf.position() > mbf.limit()) {
-                            mmapStart = mmapStart + mbf.position();
-                            noBreak = false;
-                            break;
-                        }
-                        // 解析出 RoaringBitmap
-                        int length = mbf.getInt();
-                        byte[] bytes = new byte[length];
-                        if (bytes.length + mbf.position() > mbf.limit()) {
-                            mmapStart = mmapStart + mbf.position() - 4;
-                            noBreak = false;
-                            break;
-                        }
-                        mbf.get(bytes);
-                        ByteBuffer byteBuffer = ByteBuffer.wrap(bytes);
-
-                        RoaringBitmap rb = new RoaringBitmap();
-                        rb.deserialize(byteBuffer);
-
-                        //移除删除的Docs文档
-                        deleteFromRbmByBitSet(rb, delDocs);
-
-                        //获取对应的key
-                        long key = keys.get(i);
-
-                        //存储对应的位图索引
-                        bmMap.put(key, rb);
-                        i++;
-                    }
-                    if (lastTime) {
-                        break;
-                    }
-                    if (noBreak) {
-                        mmapStart = mmapStart + mbf.position();
-                    }
-                }
+        SearchHits sorted = heap.toHits();
+        int[] ids = new int[Math.min(topn, sorted.size())];
+        float[] scores = new float[ids.length];
+        RoaringBitmap seen = new RoaringBitmap();
+        int count = 0;
+        for (int i = 0; i < sorted.size() && count < ids.length; i++) {
+            if (seen.checkedAdd(sorted.getId(i))) {
+                ids[count] = sorted.getId(i);
+                scores[count++] = sorted.getScore(i);
             }
-        } catch (IOException e) {
-            log.info("Failed to read bitmap indexControl", e);
-        } finally {
-            UnMmap.unMmap(mbf);
         }
 
-        long end = System.currentTimeMillis();
-
-        log.info("finish loading bitmap indexControl,term数量为[{}],indexDir为[{}],indexPrefix为[{}] took[{}]s",
-                bmMap.keySet().size(), indexDir, indexPrefix, (end - start) / 1000);
-        return bmMap;
+        return new SearchHits(Arrays.copyOf(ids, count), Arrays.copyOf(scores, count));
     }
 
-    private Map<Integer, List<float[]>> loadIndexVectors(String indexDir, String indexPrefix) {
-        log.info("开始加载向量...");
-        long start = System.currentTimeMillis();
-        Map<Integer, List<float[]>> indexVectors = null;
-        String vectorPath = indexDir + indexPrefix + ".vector";
-        try (FileInputStream fis = new FileInputStream(vectorPath);
-             ObjectInputStream ois = new ObjectInputStream(fis)) {
-            indexVectors = (Map<Integer, List<float[]>>) ois.readObject();
-        } catch (Exception e) {
-            e.printStackTrace();
+    /**
+     * 用聚类查询得到的各段聚类距离构造估计距离表，召回文档在每段上的聚类都在该表中
+     *
+     * @param segDisListList 向量的各个段对应的聚类编号和距离
+     * @return 估计距离表，下标为 段号 * 聚类数 + 聚类编号，值为段内聚类距离的平方
+     */
+    private float[] coarseTable(List<List<Pair<Integer, Float>>> segDisListList) {
+        int clusterCount = pq.getClusterCount();
+        float[] table = new float[pq.getPqSegmentCount() * clusterCount];
+        Arrays.fill(table, Float.MAX_VALUE);
+        for (int segNum = 0; segNum < segDisListList.size(); segNum++) {
+            for (Pair<Integer, Float> pair : segDisListList.get(segNum)) {
+                float dis = pair.getValue();
+                table[segNum * clusterCount + pair.getKey()] = dis * dis;
+            }
         }
 
-        log.info("加载向量耗时：{}s", (System.currentTimeMillis() - start) / 1000);
-        return indexVectors;
+        return table;
     }
 
     /**
-     * 将bitmap中需要删除的文档进行删除
+     * 打分并选出距离最小的topn：并行时每个线程一个定长堆，最后合并
      *
-     * @param bitmap
-     * @param bitSet
-     */
-    private void deleteFromRbmByBitSet(RoaringBitmap bitmap, BitSet bitSet) {
-        RoaringBitmap deleteBitMap = new RoaringBitmap();
-        bitmap.forEach((IntConsumer) docId -> {
-            if (bitSet.get(docId)) {
-                deleteBitMap.add(docId);
+     * @param docIds   候选文档id
+     * @param topn     保留的文档数
+     * @param scorer   文档打分函数
+     * @param parallel 是否并行打分
+     * @return 距离最小的topn个文档
+     */
+    private TopkHeap selectTopk(int[] docIds, int topn, DocScorer scorer, boolean parallel) {
+        if (!parallel) {
+            TopkHeap heap = new TopkHeap(topn);
+            for (int id : docIds) {
+                heap.offer(id, scorer.score(id, heap.threshold()));
             }
-        });
+            return heap;
+        }
 
-        // 相当于将deleteBitMap存在的整数全部删除
-        bitmap.xor(deleteBitMap);
+        int chunkCount = Math.max(1, Math.min(PARALLELISM * 4, docIds.length / MIN_CHUNK_DOCS));
+        int chunkSize = (docIds.length + chunkCount - 1) / chunkCount;
+        return IntStream.range(0, chunkCount).parallel().mapToObj(chunk -> {
+            TopkHeap heap = new TopkHeap(topn);
+            int end = Math.min(docIds.length, (chunk + 1) * chunkSize);
+            for (int i = chunk * chunkSize; i < end; i++) {
+                heap.offer(docIds[i], scorer.score(docIds[i], heap.threshold()));
+            }
+            return heap;
+        }).reduce(TopkHeap::merge).orElseGet(() -> new TopkHeap(topn));
     }
 
     /**
-     * 对文件进行内存映射
+     * 获取满足条件的Rb列表
+     * 与基于文本的索引进行倒排链求交
      *
-     * @param filePath 映射文件
-     * @param position 映射起始位置
+     * @param vector
+     * @param clusterTopn 不大于0时各段按召回结果数自适应，避免交集过小或过大
      * @return
-     * @throws IOException
      */
-    private Triple<RandomAccessFile, FileChannel, MappedByteBuffer> fileMmap(String filePath, long position) throws IOException {
-        // 打开一个随机访问文件流，按读写方式
-        RandomAccessFile raf = new RandomAccessFile(filePath, "rw");
-        FileChannel fc = raf.getChannel();
-        MappedByteBuffer mbf = fc.map(FileChannel.MapMode.READ_WRITE, 0, MAX_MMAP_SIZE);
-        Triple triple = Triple.of(raf, fc, mbf);
+    public RoaringBitmap searchRb(float[] vector, int clusterTopn) {
+        //步骤一： 查询向量按度量处理后聚类查询，获取距离表
+        List<List<Pair<Integer, Float>>> segDisListList = pq.search(pq.prepare(vector),
+                searchClusterTopn(clusterTopn));
+
+        //步骤二： 生成需要的rb
+        RoaringBitmap resultRb = new RoaringBitmap();
+        for (IndexSegment segment : segments) {
+            resultRb.or(recallSegment(segment, segDisListList, clusterTopn, 1, null));
+        }
 
-        return triple;
+        return resultRb;
     }
 
     /**
-     * 内存映射映射位置重新调整
+     * 对索引进行合并：另一个索引的存活文档合并为一个新段加入本索引
      *
-     * @param mmapTriple 映射三元组
-     * @param filePath   映射的文件
-     * @param position   映射的当前位置
-     * @return
-     * @throws IOException
+     * @param ivt
      */
-    private Pair<Triple<RandomAccessFile, FileChannel, MappedByteBuffer>, Long> mmapFileResize(Triple<RandomAccessFile,
-            FileChannel, MappedByteBuffer> mmapTriple, String filePath, long position) throws IOException {
-        RandomAccessFile raf = mmapTriple.getLeft();
-        FileChannel fc = mmapTriple.getMiddle();
-        MappedByteBuffer mbb = mmapTriple.getRight();
+    public void merge(EmIndex ivt) {
+        if (this.pq != ivt.getPq()) {
+            log.error("量化模型不一致");
+            return;
+        }
 
-        if (mbb.remaining() < WARN_MMAP_SIZE) {
-            position += mbb.position();
-            fc.close();
-            MMapTools.unMmap(mbb);
+        ivt.refresh();
+        List<IndexSegment> ivtSegments = ivt.getSegments();
+        if (ivtSegments.isEmpty()) {
+            return;
+        }
+
+        IndexSegment merged = IndexSegment.merge(pq, ivtSegments);
+        synchronized (this) {
+            List<IndexSegment> published = new ArrayList<>(segments);
+            published.add(merged);
+            segments = Collections.unmodifiableList(published);
+            scheduleMerge();
+        }
+    }
+
+    /**
+     * 索引存储
+     * 1.未落盘的段写为新的段文件，已落盘的段只更新删除文档
+     * 2.写段清单
+     * 3.删除不在清单中的段文件
+     *
+     * @param indexDir    索引目录
+     * @param indexPrefix 索引前缀（分片，nas盘存储等进行区分用）
+     */
+    public synchronized void store(String indexDir, String indexPrefix) {
+        indexDir = FolderTools.folderAppendSlash(indexDir);
+        FolderTools.createFolder(indexDir);
 
-            log.info("position:" + position);
-            raf = new RandomAccessFile(filePath, "rw");
-            fc = raf.getChannel();
-            mbb = fc.map(FileChannel.MapMode.READ_WRITE, position, MAX_MMAP_SIZE);
+        refresh();
+        boolean sameLocation = indexDir.equals(storeDir) && indexPrefix.equals(storePrefix);
+        if (!sameLocation) {
+            storeDir = indexDir;
+            storePrefix = indexPrefix;
+            for (String name : readManifest(indexDir, indexPrefix)) {
+                segmentGeneration = Math.max(segmentGeneration, generationOf(name));
+            }
         }
 
-        mmapTriple = Triple.of(raf, fc, mbb);
-        Pair<Triple<RandomAccessFile, FileChannel, MappedByteBuffer>, Long> pair = Pair.of(mmapTriple, position);
-        return pair;
+        long start = System.currentTimeMillis();
+        List<IndexSegment> published = new ArrayList<>(segments.size());
+        for (IndexSegment segment : segments) {
+            if (!sameLocation || null == segment.getName()) {
+                segment.store(indexDir, nextSegmentName(), null);
+            } else {
+                segment.storeTombstones(indexDir, segment.getName());
+            }
+            published.add(segment);
+            log.info("索引存储进度:{}/{}段 耗时:{}ms", published.size(), segments.size(),
+                    System.currentTimeMillis() - start);
+        }
+        segments = Collections.unmodifiableList(published);
+        writeManifest(published);
     }
 
     /**
-     * 关闭内存映射，并调整映射文件大小
+     * 加载索引，替换当前所有段
+     * 有段清单时加载清单中的所有段，否则按单个段加载 前缀.seg/.tomb
      *
-     * @param mmapTriple 映射三元组
-     * @param filePath   文件路径
-     * @param realSize   文件真实大小
-     */
-    private void mmapFileClose(Triple<RandomAccessFile, FileChannel, MappedByteBuffer> mmapTriple, String filePath,
-                               long realSize) {
-        FileChannel fc = mmapTriple.getMiddle();
-        MappedByteBuffer mbb = mmapTriple.getRight();
-        RandomAccessFile raf = mmapTriple.getLeft();
-        try {
-            fc.close();
-            MMapTools.unMmap(mbb);
+     * @param modelDir
+     * @param indexPrefix
+     */
+    public void load(String modelDir, String indexPrefix) {
+        long start = System.currentTimeMillis();
+        modelDir = FolderTools.folderAppendSlash(modelDir);
+        List<String> names = readManifest(modelDir, indexPrefix);
+        if (names.isEmpty()) {
+            names = Collections.singletonList(indexPrefix);
+        }
 
-            raf = new RandomAccessFile(filePath, "rw");
-            fc = raf.getChannel();
-            fc.truncate(realSize);
-            fc.close();
-        } catch (IOException e) {
-            log.error("mmapFileClose failed", e);
-        } finally {
-            try {
-                if (fc != null) {
-                    fc.close();
-                }
-                if (raf != null) {
-                    raf.close();
-                }
-            } catch (IOException e) {
-                log.error("close stream failed", e);
+        List<IndexSegment> loaded = new ArrayList<>(names.size());
+        int generation = 0;
+        for (String name : names) {
+            IndexSegment segment = IndexSegment.load(pq, modelDir, name, mmapPostings, verifyChecksums);
+            if (null == segment) {
+                log.error("索引加载失败，保留当前索引, modelDir:{} indexPrefix:{}", modelDir, indexPrefix);
+                return;
             }
+            loaded.add(segment);
+            generation = Math.max(generation, generationOf(name));
         }
+
+        synchronized (this) {
+            segments = Collections.unmodifiableList(loaded);
+            activeSegment = newSegment();
+            pendingDeletes = new RoaringBitmap();
+            pendingVectors = 0;
+            storeDir = modelDir;
+            storePrefix = indexPrefix;
+            segmentGeneration = generation;
+            scheduleMerge();
+        }
+        log.info("向量索引加载耗时:{}ms 段数:{}", System.currentTimeMillis() - start, loaded.size());
+    }
+
+    /**
+     * @return 新的段文件名：前缀_序号
+     */
+    private synchronized String nextSegmentName() {
+        return storePrefix + "_" + (++segmentGeneration);
     }
 
-    private static byte[] serialise(RoaringBitmap input) throws IOException {
-        try (ByteArrayOutputStream bos = new ByteArrayOutputStream(input.serializedSizeInBytes());
-             DataOutputStream dos = new DataOutputStream(bos)) {
-            input.serialize(dos);
-            return bos.toByteArray();
+    private int generationOf(String name) {
+        int index = name.lastIndexOf('_');
+        if (index < 0 || !name.substring(index + 1).matches("\\d+")) {
+            return 0;
         }
+
+        return Integer.parseInt(name.substring(index + 1));
     }
 
     /**
-     * 将删除的文档id从rb中清除
+     * 写段清单（先写临时文件再替换），并删除不在清单中的段文件，只记录已落盘的段
      *
-     * @param rb
-     * @return
+     * @param published 已发布的段
      */
-    private RoaringBitmap clearRb(RoaringBitmap rb) {
-        delDocs.stream().boxed().forEach(delId -> {
-            rb.remove(delId);
-        });
+    private void writeManifest(List<IndexSegment> published) {
+        List<String> names = new ArrayList<>(published.size());
+        for (IndexSegment segment : published) {
+            if (null != segment.getName()) {
+                names.add(segment.getName());
+            }
+        }
+
+        Path manifest = Paths.get(storeDir + storePrefix + MANIFEST_SUFFIX);
+        Path tmp = Paths.get(storeDir + storePrefix + MANIFEST_SUFFIX + ".tmp");
+        try {
+            Files.write(tmp, names, StandardCharsets.UTF_8);
+            Files.move(tmp, manifest, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            log.error("段清单写入失败, manifest:{}", manifest, e);
+            return;
+        }
+
+        //映射中的文件被删除后，正在查询的旧段仍可继续读取
+        Pattern segmentFile = Pattern.compile(Pattern.quote(storePrefix) + "_\\d+\\.(seg|tomb)");
+        File[] files = new File(storeDir).listFiles();
+        if (null == files) {
+            return;
+        }
+        Set<String> live = new HashSet<>(names);
+        for (File file : files) {
+            String fileName = file.getName();
+            if (segmentFile.matcher(fileName).matches()
+                    && !live.contains(fileName.substring(0, fileName.lastIndexOf('.')))) {
+                if (!file.delete()) {
+                    log.warn("段文件删除失败:{}", file);
+                }
+            }
+        }
+    }
 
-        return rb;
+    private List<String> readManifest(String indexDir, String indexPrefix) {
+        Path manifest = Paths.get(indexDir + indexPrefix + MANIFEST_SUFFIX);
+        if (!Files.exists(manifest)) {
+            return Collections.emptyList();
+        }
+
+        try {
+            List<String> names = new ArrayList<>();
+            for (String line : Files.readAllLines(manifest, StandardCharsets.UTF_8)) {
+                if (!line.trim().isEmpty()) {
+                    names.add(line.trim());
+                }
+            }
+            return names;
+        } catch (IOException e) {
+            log.error("段清单读取失败, manifest:{}", manifest, e);
+            return Collections.emptyList();
+        }
+    }
+
+    private void deleteSegmentFiles(String dir, String name) {
+        for (String suffix : new String[]{IndexSegment.SEGMENT_SUFFIX, IndexSegment.TOMBSTONES_SUFFIX}) {
+            File file = new File(dir + name + suffix);
+            if (file.exists() && !file.delete()) {
+                log.warn("段文件删除失败:{}", file);
+            }
+        }
     }
 
     /**
-     * 将删除的文档id的向量信息中删除
-     *
-     * @param indexVectors
-     * @return
+     * 文档打分函数
      */
-    private Map<Integer, List<float[]>> clearIndexVectors(Map<Integer, List<float[]>> indexVectors) {
-        delDocs.stream().boxed().forEach(delId -> {
-            indexVectors.remove(delId);
-        });
+    @FunctionalInterface
+    private interface DocScorer {
+        /**
+         * @param id    文档id
+         * @param bound 当前堆的阈值，距离不小于bound的文档进不了堆，打分可以提前结束
+         * @return 距离
+         */
+        float score(int id, float bound);
+    }
 
-        return indexVectors;
+    /**
+     * 段合并的结果
+     * COMMITTED： 合并结果已发布
+     * CHANGED：   合并期间候选段已被替换，放弃本次合并，可以基于新的段列表重试
+     * FAILED：    合并段文件写入失败，重试也会失败
+     */
+    private enum MergeResult {
+        COMMITTED, CHANGED, FAILED
     }
 }
@@ -11,6 +11,8 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 /**
  * 量化训练
@@ -32,6 +34,10 @@ public class EmPQ {
     private static String MODEL_PARAM = "param.data";
     private static String MODEL_CENTERS = "center.data";
     private static int MAX_TRAIN_COUNT = 500000;
+    /**
+     * TABLE_BLOCK_QUERIES： 批量计算距离表时每块的查询数，同一块内的查询复用已加载到缓存的聚类中心
+     */
+    private static final int TABLE_BLOCK_QUERIES = 64;
 
 
     /**
@@ -42,12 +48,17 @@ public class EmPQ {
      * vectors：            数据集
      * centersList：     聚类中心   [段1的聚类，段2的聚类，...]
      * *    格式： [[<id1, center1><id2,center2>,....],[],[]...]
+     * segmentOrder：    按聚类中心方差从大到小排列的段号，训练或加载后计算
+     *                   方差大的段对距离贡献大，距离计算按该顺序逐段累加时能更早超过topn阈值而提前结束
+     * metric：          相似度度量，与模型参数一起保存，使用该模型的索引按它处理向量和换算分数
      */
     private int pqSegmentCount;
     private int clusterCount;
     private int maxIterCount;
     private int vectorDimension;
     private List<List<Pair<Integer, float[]>>> centersList;
+    private int[] segmentOrder;
+    private Metric metric = Metric.L2;
 
     public EmPQ(int pqSegmentCount, int clusterCount, int maxIterCount, int vectorDimension) {
         this.pqSegmentCount = pqSegmentCount;
@@ -58,7 +69,7 @@ public class EmPQ {
 
     public void train(String csvFilePath) {
         Pair<List<Integer>, List<float[]>> idsAndvectors = VectorTools.laodIdsAndVectors(csvFilePath);
-        List<float[]> vectors = idsAndvectors.getValue();
+        List<float[]> vectors = prepare(idsAndvectors.getValue());
         resizeList(vectors, MAX_TRAIN_COUNT);
         System.gc();
 
@@ -66,6 +77,7 @@ public class EmPQ {
     }
 
     public void train(List<float[]> vectors) {
+        vectors = prepare(vectors);
         Collections.shuffle(vectors);
         resizeList(vectors, MAX_TRAIN_COUNT);
         System.gc();
@@ -74,7 +86,52 @@ public class EmPQ {
     }
 
     /**
-     * 对向量集合进行分段和聚类，
+     * 向量按度量处理，写入、训练和查询前调用
+     *
+     * @param vector 向量
+     * @return COSINE时为规范化后的新数组，其他度量为原向量
+     */
+    public float[] prepare(float[] vector) {
+        return metric.prepare(vector);
+    }
+
+    /**
+     * 向量集合按度量处理，L2时原样返回，否则返回新的列表，不修改入参
+     *
+     * @param vectors 向量集合
+     * @return 处理后的向量集合
+     */
+    public List<float[]> prepare(List<float[]> vectors) {
+        if (Metric.L2 == metric) {
+            return vectors;
+        }
+
+        List<float[]> prepared = new ArrayList<>(vectors.size());
+        vectors.forEach(vector -> prepared.add(metric.prepare(vector)));
+        return prepared;
+    }
+
+    /**
+     * 写入前检查向量是否满足度量的要求（INNER_PRODUCT要求单位向量），不满足时记录错误日志
+     *
+     * @param vectors 已经过prepare的向量
+     * @param id      文档id
+     * @return 全部向量可以写入
+     */
+    public boolean accepts(List<float[]> vectors, int id) {
+        for (float[] vector : vectors) {
+            if (!metric.accepts(vector)) {
+                log.error("度量:{} 要求写入单位向量, 拒绝写入, id:{} 长度平方:{}", metric, id,
+                        VectorTools.dot(vector, vector));
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * 对向量集合进行分段和聚类，向量不再按度量处理（如IVF的残差）
      * * 每个向量段获得一组聚类中心
      *
      * @param vectors 向量集合
@@ -84,13 +141,11 @@ public class EmPQ {
         log.info("开始聚类训练...");
         long start = System.currentTimeMillis();
 
-        //步骤一： 每个向量段进行聚类
+        //步骤一： 每个向量段并行聚类，结果按向量段编号排列，第s组聚类中心只对应第s段
         List<List<float[]>> vectorsList = vectorSegment(vectors);
-        List<List<float[]>> centersList = Collections.synchronizedList(new ArrayList<>(vectorsList.size()));
-        vectorsList.parallelStream().forEach(segVectors -> {
-            List<float[]> centers = segCluster(segVectors);
-            centersList.add(centers);
-        });
+        List<List<float[]>> centersList = IntStream.range(0, vectorsList.size()).parallel()
+                .mapToObj(segNum -> segCluster(vectorsList.get(segNum)))
+                .collect(Collectors.toList());
 
         //步骤二： 收集聚类中心
         this.centersList = new ArrayList<>(centersList.size());
@@ -103,6 +158,7 @@ public class EmPQ {
 
             this.centersList.add(centerPairs);
         });
+        this.segmentOrder = segmentOrderByVariance();
 
         long took = (System.currentTimeMillis() - start) / 1000;
         log.info("聚类训练完毕，训练向量数：{} 训练耗时：{}秒", vectors.size(), took);
@@ -127,11 +183,12 @@ public class EmPQ {
             e.printStackTrace();
         }
 
-        List<Integer> params = new ArrayList<>(4);
+        List<Integer> params = new ArrayList<>(5);
         params.add(pqSegmentCount);
         params.add(clusterCount);
         params.add(maxIterCount);
         params.add(vectorDimension);
+        params.add(metric.getId());
         String paramPath = modelDir + MODEL_PARAM;
         deleteFile(paramPath);
         try (FileOutputStream fos = new FileOutputStream(paramPath);
@@ -157,7 +214,7 @@ public class EmPQ {
             e.printStackTrace();
         }
 
-        List<Integer> params = new ArrayList<>(4);
+        List<Integer> params = new ArrayList<>(5);
         String paramPath = modelDir + MODEL_PARAM;
         try (FileInputStream fis = new FileInputStream(paramPath);
              ObjectInputStream ois = new ObjectInputStream(fis)) {
@@ -166,11 +223,42 @@ public class EmPQ {
             e.printStackTrace();
         }
 
-        assert params.size() == 4;
+        //早期的模型只有4个参数，度量为L2
+        assert params.size() == 4 || params.size() == 5;
         pqSegmentCount = params.get(0);
         clusterCount = params.get(1);
         maxIterCount = params.get(2);
         vectorDimension = params.get(3);
+        metric = params.size() > 4 ? Metric.of(params.get(4)) : Metric.L2;
+        segmentOrder = null == centersList ? null : segmentOrderByVariance();
+    }
+
+    /**
+     * 各段聚类中心在段内各维度上的方差之和，作为该段数据离散程度的估计
+     *
+     * @return 按方差从大到小排列的段号
+     */
+    private int[] segmentOrderByVariance() {
+        float[] variances = new float[centersList.size()];
+        for (int segNum = 0; segNum < centersList.size(); segNum++) {
+            List<Pair<Integer, float[]>> centerPairs = centersList.get(segNum);
+            int length = centerPairs.get(0).getRight().length;
+            for (int i = 0; i < length; i++) {
+                float sum = 0.0f;
+                float squareSum = 0.0f;
+                for (Pair<Integer, float[]> centerPair : centerPairs) {
+                    float value = centerPair.getRight()[i];
+                    sum += value;
+                    squareSum += value * value;
+                }
+                float mean = sum / centerPairs.size();
+                variances[segNum] += squareSum / centerPairs.size() - mean * mean;
+            }
+        }
+
+        return IntStream.range(0, variances.length).boxed()
+                .sorted((a, b) -> Float.compare(variances[b], variances[a]))
+                .mapToInt(Integer::intValue).toArray();
     }
 
     /**
@@ -205,17 +293,153 @@ public class EmPQ {
      * @return 各个子段编号
      */
     public List<Integer> pq(float[] vector) {
+        int[] codes = quantize(vector);
+        List<Integer> pgIds = new ArrayList<>(codes.length);
+        for (int code : codes) {
+            pgIds.add(code);
+        }
+
+        return pgIds;
+    }
+
+    /**
+     * 对向量进行量化，直接在原向量上按段计算，不做分段拷贝和装箱
+     *
+     * @param vector 查询向量
+     * @return 各个子段最近的聚类编号
+     */
+    public int[] quantize(float[] vector) {
         assert vector.length == vectorDimension;
-        List<Integer> pgIds = new ArrayList<>(pqSegmentCount);
+        int[] codes = new int[pqSegmentCount];
 
         int pgSegmentLength = vectorDimension / pqSegmentCount;
-        List<float[]> segVectors = vectorSegment(vector, pgSegmentLength);
-        for (int i = 0; i < segVectors.size(); i++) {
-            List<Pair<Integer, Float>> segDisList = similary(i, segVectors.get(i), 1);
-            pgIds.add(segDisList.get(0).getKey());
+        for (int segNum = 0; segNum < pqSegmentCount; segNum++) {
+            int offset = segNum * pgSegmentLength;
+            float minDis = Float.MAX_VALUE;
+            for (Pair<Integer, float[]> centerPair : centersList.get(segNum)) {
+                float dis = VectorTools.diffSquare(vector, offset, centerPair.getRight(), 0, pgSegmentLength);
+                if (dis < minDis) {
+                    minDis = dis;
+                    codes[segNum] = centerPair.getLeft();
+                }
+            }
         }
 
-        return pgIds;
+        return codes;
+    }
+
+    /**
+     * 向量各段到所属聚类中心的距离（残差长度）
+     *
+     * @param vector 向量
+     * @param codes  向量各段的聚类编号
+     * @return 各段的欧式距离
+     */
+    public float[] residualDistances(float[] vector, int[] codes) {
+        float[] distances = new float[pqSegmentCount];
+        int pgSegmentLength = vectorDimension / pqSegmentCount;
+        for (int segNum = 0; segNum < pqSegmentCount; segNum++) {
+            float[] center = centersList.get(segNum).get(codes[segNum]).getRight();
+            distances[segNum] = (float) Math.sqrt(
+                    VectorTools.diffSquare(vector, segNum * pgSegmentLength, center, 0, pgSegmentLength));
+        }
+
+        return distances;
+    }
+
+    /**
+     * 计算查询向量各段到所有聚类中心的距离表，用于基于量化编码的非对称距离计算（ADC）
+     *
+     * @param vector 查询向量
+     * @return 距离表，下标为 段号 * 聚类数 + 聚类编号，值为段内欧式距离的平方
+     */
+    public float[] distanceTable(float[] vector) {
+        assert vector.length == vectorDimension;
+        float[] table = new float[pqSegmentCount * clusterCount];
+
+        int pgSegmentLength = vectorDimension / pqSegmentCount;
+        for (int segNum = 0; segNum < pqSegmentCount; segNum++) {
+            int offset = segNum * pgSegmentLength;
+            for (Pair<Integer, float[]> centerPair : centersList.get(segNum)) {
+                table[segNum * clusterCount + centerPair.getLeft()] =
+                        VectorTools.diffSquare(vector, offset, centerPair.getRight(), 0, pgSegmentLength);
+            }
+        }
+
+        return table;
+    }
+
+    /**
+     * 批量计算距离表：查询按块划分并行计算，块内每个聚类中心依次与块内所有查询计算距离
+     *
+     * @param vectors 查询向量
+     * @return 各查询的距离表，格式同distanceTable
+     */
+    public float[][] distanceTables(float[][] vectors) {
+        float[][] tables = new float[vectors.length][pqSegmentCount * clusterCount];
+        int pgSegmentLength = vectorDimension / pqSegmentCount;
+        int blockCount = (vectors.length + TABLE_BLOCK_QUERIES - 1) / TABLE_BLOCK_QUERIES;
+        IntStream.range(0, blockCount).parallel().forEach(block -> {
+            int from = block * TABLE_BLOCK_QUERIES;
+            int to = Math.min(vectors.length, from + TABLE_BLOCK_QUERIES);
+            for (int segNum = 0; segNum < pqSegmentCount; segNum++) {
+                int offset = segNum * pgSegmentLength;
+                for (Pair<Integer, float[]> centerPair : centersList.get(segNum)) {
+                    float[] center = centerPair.getRight();
+                    int column = segNum * clusterCount + centerPair.getLeft();
+                    for (int i = from; i < to; i++) {
+                        tables[i][column] = VectorTools.diffSquare(vectors[i], offset, center, 0, pgSegmentLength);
+                    }
+                }
+            }
+        });
+
+        return tables;
+    }
+
+    /**
+     * 根据距离表获取各段最近的topn个聚类中心，结果与search一致，不再重复计算距离
+     *
+     * @param table 查询向量的距离表
+     * @param topn  查询topn聚类中心
+     * @return 各个子段最相近的topn个聚类中心
+     */
+    public List<List<Pair<Integer, Float>>> searchTable(float[] table, int topn) {
+        if (topn > clusterCount) {
+            topn = clusterCount;
+        }
+
+        List<List<Pair<Integer, Float>>> segDisListList = new ArrayList<>(pqSegmentCount);
+        int[] topIds = new int[topn];
+        float[] topSquares = new float[topn];
+        for (int segNum = 0; segNum < pqSegmentCount; segNum++) {
+            //插入排序保留距离最小的topn个聚类
+            int size = 0;
+            int base = segNum * clusterCount;
+            for (int clusterId = 0; clusterId < clusterCount; clusterId++) {
+                float square = table[base + clusterId];
+                if (size == topn && square >= topSquares[size - 1]) {
+                    continue;
+                }
+
+                int pos = size < topn ? size++ : size - 1;
+                while (pos > 0 && topSquares[pos - 1] > square) {
+                    topSquares[pos] = topSquares[pos - 1];
+                    topIds[pos] = topIds[pos - 1];
+                    pos--;
+                }
+                topSquares[pos] = square;
+                topIds[pos] = clusterId;
+            }
+
+            List<Pair<Integer, Float>> segDisList = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                segDisList.add(Pair.of(topIds[i], (float) Math.sqrt(topSquares[i])));
+            }
+            segDisListList.add(segDisList);
+        }
+
+        return segDisListList;
     }
 
     /**
@@ -230,15 +454,20 @@ public class EmPQ {
         List<Pair<Integer, float[]>> vectorPairs = centersList.get(segNum);
         assert topn >= vectorPairs.size();
 
-        List<Pair<Integer, Float>> vectorDistances = new ArrayList<>(vectorPairs.size());
+        //按距离平方排序，只对返回的topn开方
+        List<Pair<Integer, Float>> vectorSquares = new ArrayList<>(vectorPairs.size());
         vectorPairs.forEach(vectorPair -> {
-            float conDis = VectorTools.continentalDistance(segVector, vectorPair.getRight());
-            Pair<Integer, Float> vectorDistance = Pair.of(vectorPair.getLeft(), conDis);
-            vectorDistances.add(vectorDistance);
+            float square = VectorTools.diffSquare(segVector, vectorPair.getRight());
+            vectorSquares.add(Pair.of(vectorPair.getLeft(), square));
         });
-        vectorDistances.sort(Comparator.comparing(Pair::getValue));
+        vectorSquares.sort(Comparator.comparing(Pair::getValue));
+
+        List<Pair<Integer, Float>> vectorDistances = new ArrayList<>(topn);
+        for (Pair<Integer, Float> vectorSquare : vectorSquares.subList(0, topn)) {
+            vectorDistances.add(Pair.of(vectorSquare.getKey(), (float) Math.sqrt(vectorSquare.getValue())));
+        }
 
-        return vectorDistances.subList(0, topn);
+        return vectorDistances;
     }
 
     /**
@@ -138,7 +138,7 @@ public class Embedding {
             }
             norm = (float) Math.sqrt(norm);
             for (int i = 0; i < embeddings.length; i++) {
-                embeddings[i] /= Math.sqrt(norm);
+                embeddings[i] /= norm;
             }
         }
 
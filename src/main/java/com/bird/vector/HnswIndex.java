@@ -0,0 +1,1165 @@
+package com.bird.vector;
+
+import com.bird.vector.common.VectorTools;
+import com.bird.vector.utils.FolderTools;
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+import org.roaringbitmap.RoaringBitmap;
+import org.roaringbitmap.buffer.ImmutableRoaringBitmap;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.IntPredicate;
+import java.util.stream.IntStream;
+
+/**
+ * HNSW图索引
+ * 1.每个向量是图中的一个节点，节点随机分配层数，每层与最近的m个节点相连（第0层最多2m个）
+ * 2.查询从最高层入口贪心下降，在第0层保留efSearch个最近节点，按文档去重后取topn
+ * 3.邻接表使用定长int数组分页存储：第0层每个节点 [邻居数, 2m个邻居]，上层只有少数节点，每个节点一个 层数*[邻居数, m个邻居] 数组
+ * 并发模型：
+ * 1.写入、删除互相之间可以并发，持有读锁；存储、加载持有写锁
+ * 2.节点的邻接表按节点编号分条加锁，写入时修改、查询时拷贝都在同一把锁内
+ * 3.查询不加锁，删除的节点保留在图中用于导航，只是不进入结果
+ * 4.节点记录开始可见和删除时的版本，查询开始时读取图的版本，只接受该版本下存活的节点，删除只修改节点自己的版本
+ * 5.删除节点超过节点数的maxDeletedRatio时，后台用存活节点重建图并整体替换，重建持有写锁，查询继续使用旧图
+ * 存储结构：索引目录下 前缀.hnsw 一个索引文件，向量分区加载后只读内存映射，邻接表读入堆内以便继续写入
+ *
+ * @description：
+ * @author： liuxiangqian
+ * @date： 2024/10/15
+ */
+@Data
+@Slf4j
+public class HnswIndex implements VectorIndex {
+    /**
+     * HNSW_SUFFIX：     索引文件后缀
+     * M：               默认每层连接的邻居数
+     * EF_CONSTRUCTION： 构建时每层保留的候选节点数
+     * EF_SEARCH：       查询时第0层保留的最少候选节点数
+     * MAX_LEVEL：       节点的最大层数
+     * PAGE_NODES：      每页存放的节点数
+     * LOCK_STRIPES：    邻接表分条锁的数量
+     * MAX_REGION_BYTES：向量每段内存映射的最大字节数
+     * MAX_DELETED_RATIO：删除节点占全部节点的比例超过该值时重建图
+     * HIDDEN：          更新期间新节点的可见版本，插入完成前不可见
+     */
+    public static final String HNSW_SUFFIX = ".hnsw";
+    public static final int M = 16;
+    public static final int EF_CONSTRUCTION = 200;
+    public static final int EF_SEARCH = 64;
+    private static final int MAX_LEVEL = 16;
+    private static final int PAGE_NODES = 4096;
+    private static final int LOCK_STRIPES = 1024;
+    private static final long MAX_REGION_BYTES = 1L << 30;
+    public static final float MAX_DELETED_RATIO = 0.3f;
+    private static final int HIDDEN = Integer.MAX_VALUE;
+
+    /**
+     * REBUILD_EXECUTOR： 重建图的线程，所有索引共用一个后台线程，同一索引同时只有一个重建任务
+     */
+    private static final ExecutorService REBUILD_EXECUTOR = new ThreadPoolExecutor(1, 1,
+            60L, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+        Thread thread = new Thread(runnable, "hnsw-rebuild");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * pq：             量化模型，图索引不使用量化编码，只用于取向量维数
+     * m：              每层连接的邻居数，加载时以索引文件为准
+     * efConstruction： 构建时每层保留的候选节点数
+     * efSearch：       查询时第0层保留的最少候选节点数，查询参数probe大于该值时以probe为准
+     * bruteForceFilterDocs： 过滤条件的文档数不超过该值时，不走图搜索，直接对过滤后的全部文档计算精确距离
+     * verifyChecksums：加载时是否校验索引文件各分区的CRC32
+     * maxDeletedRatio：删除节点的比例超过该值时重建图，不小于1时不自动重建
+     * graph：          当前的图，加载、重建时整体替换
+     * rebuilding：     是否有重建任务在排队或执行
+     */
+    private EmPQ pq;
+    private int m;
+    private int efConstruction = EF_CONSTRUCTION;
+    private int efSearch = EF_SEARCH;
+    private int bruteForceFilterDocs = EmIndex.BRUTE_FORCE_FILTER_DOCS;
+    private boolean verifyChecksums = true;
+    private float maxDeletedRatio = MAX_DELETED_RATIO;
+    private volatile Graph graph;
+    private final AtomicBoolean rebuilding = new AtomicBoolean();
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final ThreadLocal<Visited> visited = ThreadLocal.withInitial(Visited::new);
+
+    public HnswIndex(EmPQ pq) {
+        this(pq, M);
+    }
+
+    public HnswIndex(EmPQ pq, int m) {
+        this.pq = pq;
+        this.m = m;
+        this.graph = new Graph(pq.getVectorDimension(), m, new FloatBuffer[0], 0, 1);
+    }
+
+    /**
+     * 并行写入向量
+     *
+     * @param vectors 向量
+     * @param ids     向量对应的文档id
+     */
+    public void addVector(List<float[]> vectors, List<Integer> ids) {
+        long start = System.currentTimeMillis();
+        assert vectors.size() == ids.size();
+
+        AtomicInteger done = new AtomicInteger();
+        IntStream.range(0, vectors.size()).parallel().forEach(i -> {
+            addVector(vectors.get(i), ids.get(i));
+            if (done.incrementAndGet() % 100000 == 0) {
+                log.info("当前向量索引数:{}", done.get());
+            }
+        });
+
+        long took = (System.currentTimeMillis() - start) / 1000;
+        log.info("索引向量数：{} 索引耗时：{}秒", vectors.size(), took);
+    }
+
+    /**
+     * 写入一个向量，插入图后立即可见，多个线程可以同时写入
+     *
+     * @param vector 向量
+     * @param id     向量对应的文档id（一个id可以对应多个向量）
+     */
+    @Override
+    public void addVector(float[] vector, int id) {
+        vector = pq.prepare(vector);
+        if (!pq.accepts(Collections.singletonList(vector), id)) {
+            return;
+        }
+        lock.readLock().lock();
+        try {
+            Graph g = graph;
+            int level = randomLevel();
+            int node = g.allocate(id, vector, level, 0);
+            insert(g, node, vector, level);
+            g.docToNodes.merge(id, new int[]{node}, HnswIndex::concat);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 写入在插入图后直接可见，不需要发布
+     */
+    @Override
+    public void refresh() {
+    }
+
+    /**
+     * 删除文档：文档的节点在新版本中标记为删除，仍保留在图中用于导航，直到重建图
+     *
+     * @param id 文档id
+     */
+    @Override
+    public void delete(int id) {
+        lock.readLock().lock();
+        try {
+            Graph g = graph;
+            synchronized (g) {
+                int[] nodes = g.docToNodes.remove(id);
+                if (null == nodes) {
+                    return;
+                }
+
+                int version = g.version + 1;
+                g.markDeleted(nodes, version);
+                g.version = version;
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        scheduleRebuild();
+    }
+
+    /**
+     * 更新文档：新节点插入期间标记为删除，插入完成后与旧节点的删除一起生效
+     *
+     * @param vectors 文档的新向量
+     * @param id      文档id
+     */
+    @Override
+    public void update(List<float[]> vectors, int id) {
+        if (vectors.isEmpty()) {
+            delete(id);
+            return;
+        }
+
+        vectors = pq.prepare(vectors);
+        if (!pq.accepts(vectors, id)) {
+            return;
+        }
+        lock.readLock().lock();
+        try {
+            Graph g = graph;
+            int[] nodes = new int[vectors.size()];
+            int[] levels = new int[vectors.size()];
+            for (int i = 0; i < nodes.length; i++) {
+                levels[i] = randomLevel();
+                nodes[i] = g.allocate(id, vectors.get(i), levels[i], HIDDEN);
+            }
+
+            for (int i = 0; i < nodes.length; i++) {
+                insert(g, nodes[i], vectors.get(i), levels[i]);
+            }
+
+            synchronized (g) {
+                int[] oldNodes = g.docToNodes.put(id, nodes);
+                int version = g.version + 1;
+                g.markVisible(nodes, version);
+                if (null != oldNodes) {
+                    g.markDeleted(oldNodes, version);
+                }
+                g.version = version;
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        scheduleRebuild();
+    }
+
+    /**
+     * 重建图：存活节点按原层数插入新图，清除删除的节点，完成后整体替换
+     * 重建持有写锁，期间写入和删除等待，查询继续使用旧图
+     */
+    public void compact() {
+        lock.writeLock().lock();
+        try {
+            graph = rebuild(graph);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 删除节点的比例超过maxDeletedRatio时，提交后台重建任务
+     */
+    private void scheduleRebuild() {
+        Graph g = graph;
+        if (!needRebuild(g) || !rebuilding.compareAndSet(false, true)) {
+            return;
+        }
+
+        REBUILD_EXECUTOR.execute(() -> {
+            try {
+                compact();
+            } catch (Exception e) {
+                log.error("HNSW图后台重建失败", e);
+            } finally {
+                rebuilding.set(false);
+            }
+        });
+    }
+
+    private boolean needRebuild(Graph g) {
+        return g.deletedCount > 0 && g.deletedCount > g.nodeCount * maxDeletedRatio;
+    }
+
+    /**
+     * 只能在持有写锁时调用，此时没有进行中的写入和更新，docToNodes就是全部存活节点
+     *
+     * @param g 当前的图
+     * @return 只包含存活节点的新图，没有删除节点时返回g
+     */
+    private Graph rebuild(Graph g) {
+        if (0 == g.deletedCount) {
+            return g;
+        }
+
+        long start = System.currentTimeMillis();
+        List<int[]> docNodes = new ArrayList<>(g.docToNodes.size());
+        g.docToNodes.forEach((id, nodes) -> {
+            for (int node : nodes) {
+                docNodes.add(new int[]{id, node});
+            }
+        });
+
+        Graph rebuilt = new Graph(g.dimension, g.m, new FloatBuffer[0], 0, 1);
+        docNodes.parallelStream().forEach(docNode -> {
+            float[] vector = g.vector(docNode[1]);
+            int level = g.level(docNode[1]);
+            int node = rebuilt.allocate(docNode[0], vector, level, 0);
+            insert(rebuilt, node, vector, level);
+            rebuilt.docToNodes.merge(docNode[0], new int[]{node}, HnswIndex::concat);
+        });
+        log.info("HNSW图重建完毕, 原节点数:{} 删除节点数:{} 新节点数:{} 耗时:{}ms", g.nodeCount, g.deletedCount,
+                rebuilt.nodeCount, System.currentTimeMillis() - start);
+        return rebuilt;
+    }
+
+    /**
+     * 向量查询
+     * 步骤一： 从入口节点逐层贪心下降到第1层
+     * 步骤二： 第0层保留ef个最近的未删除且满足过滤条件的节点
+     * 步骤三： 节点按文档去重，取topn
+     *
+     * @param vector 查询向量
+     * @param probe  第0层保留的候选节点数（efSearch），小于efSearch时使用efSearch
+     * @param topn   获取最相近向量个数
+     * @param filter 允许返回的文档，null表示不过滤
+     * @return 按相似程度从高到低的文档id和分数，分数按pq的度量换算
+     */
+    @Override
+    public SearchHits searchDocs(float[] vector, int probe, int topn, RoaringBitmap filter) {
+        float[] query = pq.prepare(vector);
+        return pq.getMetric().toScores(searchDistances(query, probe, topn, filter), query);
+    }
+
+    /**
+     * @return 按欧式距离升序的文档id和最小距离
+     */
+    private SearchHits searchDistances(float[] vector, int probe, int topn, RoaringBitmap filter) {
+        Graph g = graph;
+        if ((null != filter && filter.isEmpty()) || null == g.entry) {
+            return new SearchHits(new int[0], new float[0]);
+        }
+
+        long start = System.currentTimeMillis();
+        if (null != filter && filter.getLongCardinality() <= bruteForceFilterDocs) {
+            return bruteForce(g, vector, filter, topn);
+        }
+
+        int ef = Math.max(topn, Math.max(probe, efSearch));
+        SearchHits nodes = searchNodes(g, vector, ef, acceptor(g, filter)).toHits();
+        SearchHits hits = toDocHits(g, nodes, topn, Float.MAX_VALUE);
+        log.info("HNSW查询完毕, ef:{} 结果数:{} 耗时:{}毫秒", ef, hits.size(), System.currentTimeMillis() - start);
+        return hits;
+    }
+
+    /**
+     * 近似范围查询：第0层候选节点全部在半径内时加倍ef重新查询，直到出现半径外的候选或覆盖全部节点
+     *
+     * @param vector 查询向量
+     * @param radius 分数阈值，L2为距离上限，相似度度量为相似度下限
+     * @return 按相似程度从高到低的文档id和分数
+     */
+    @Override
+    public SearchHits searchRadius(float[] vector, float radius) {
+        float[] query = pq.prepare(vector);
+        Metric metric = pq.getMetric();
+        return metric.toScores(radiusDistances(query, metric.distanceRadius(radius, query)), query);
+    }
+
+    /**
+     * @param radius 欧式距离阈值，负数时没有结果
+     * @return 按欧式距离升序的文档id和最小距离
+     */
+    private SearchHits radiusDistances(float[] vector, float radius) {
+        Graph g = graph;
+        if (null == g.entry || radius < 0) {
+            return new SearchHits(new int[0], new float[0]);
+        }
+
+        long start = System.currentTimeMillis();
+        float radiusSquare = radius * radius;
+        IntPredicate accept = acceptor(g, null);
+        int ef = efSearch;
+        SearchHits nodes = searchNodes(g, vector, ef, accept).toHits();
+        while (nodes.size() == ef && nodes.getScore(ef - 1) <= radiusSquare && ef < g.nodeCount) {
+            ef *= 2;
+            nodes = searchNodes(g, vector, ef, accept).toHits();
+        }
+
+        SearchHits hits = toDocHits(g, nodes, Integer.MAX_VALUE, radiusSquare);
+        log.info("范围查询完毕, ef:{} 结果数:{} 耗时:{}毫秒", ef, hits.size(), System.currentTimeMillis() - start);
+        return hits;
+    }
+
+    /**
+     * 索引存储，写入 前缀.hnsw：节点表、第0层邻接表、上层邻接表、向量、删除节点
+     * 第0层邻接表和向量都是定长记录，可以直接内存映射；删除节点的比例超过maxDeletedRatio时先重建图
+     *
+     * @param indexDir    索引目录
+     * @param indexPrefix 索引前缀
+     */
+    @Override
+    public void store(String indexDir, String indexPrefix) {
+        indexDir = FolderTools.folderAppendSlash(indexDir);
+        FolderTools.createFolder(indexDir);
+        String hnswPath = indexDir + indexPrefix + HNSW_SUFFIX;
+        long start = System.currentTimeMillis();
+        SegmentFile.Writer writer = null;
+        lock.writeLock().lock();
+        try {
+            if (needRebuild(graph)) {
+                graph = rebuild(graph);
+            }
+            Graph g = graph;
+            int nodeCount = g.nodeCount;
+            int pageCount = (nodeCount + PAGE_NODES - 1) / PAGE_NODES;
+            Entry entry = g.entry;
+            writer = SegmentFile.create(hnswPath, 5, null);
+
+            writer.beginSection(SegmentFile.SECTION_HNSW_NODES);
+            writer.buffer(20).putInt(g.dimension).putInt(g.m).putInt(nodeCount)
+                    .putInt(null == entry ? -1 : entry.node).putInt(null == entry ? -1 : entry.level);
+            for (int node = 0; node < nodeCount; node++) {
+                writer.buffer(4).putInt(g.docId(node));
+            }
+
+            writer.beginSection(SegmentFile.SECTION_HNSW_LEVEL0);
+            writer.writeChunks("邻接表", pageCount, page -> {
+                int rows = Math.min(PAGE_NODES, nodeCount - page * PAGE_NODES);
+                ByteBuffer buffer = ByteBuffer.allocate(4 * rows * (g.m0 + 1)).order(ByteOrder.LITTLE_ENDIAN);
+                buffer.asIntBuffer().put(g.level0Pages[page], 0, rows * (g.m0 + 1));
+                return buffer;
+            });
+
+            writer.beginSection(SegmentFile.SECTION_HNSW_UPPER);
+            int upperCount = 0;
+            for (int node = 0; node < nodeCount; node++) {
+                upperCount += g.level(node) > 0 ? 1 : 0;
+            }
+            writer.buffer(4).putInt(upperCount);
+            for (int node = 0; node < nodeCount; node++) {
+                int[] upper = g.upperPages[node / PAGE_NODES][node % PAGE_NODES];
+                if (null == upper) {
+                    continue;
+                }
+                writer.buffer(8).putInt(node).putInt(upper.length / (g.m + 1));
+                ByteBuffer buffer = writer.buffer(4 * upper.length);
+                for (int value : upper) {
+                    buffer.putInt(value);
+                }
+            }
+
+            writer.beginSection(SegmentFile.SECTION_VECTORS);
+            writer.writeChunks("向量", pageCount, page -> {
+                int from = page * PAGE_NODES;
+                int end = Math.min(nodeCount, from + PAGE_NODES);
+                ByteBuffer buffer = ByteBuffer.allocate(4 * g.dimension * (end - from)).order(ByteOrder.LITTLE_ENDIAN);
+                FloatBuffer floats = buffer.asFloatBuffer();
+                for (int node = from; node < end; node++) {
+                    floats.put(g.vector(node));
+                }
+                return buffer;
+            });
+
+            RoaringBitmap deleted = new RoaringBitmap();
+            for (int node = 0; node < nodeCount; node++) {
+                if (g.isDeleted(node)) {
+                    deleted.add(node);
+                }
+            }
+            deleted.runOptimize();
+            ByteBuffer data = ByteBuffer.allocate(deleted.serializedSizeInBytes());
+            deleted.serialize(data);
+            data.flip();
+            writer.beginSection(SegmentFile.SECTION_TOMBSTONES);
+            writer.write(data);
+
+            writer.close();
+            log.info("HNSW索引存储完毕, 节点数:{} 文档数:{} 耗时:{}ms", nodeCount, g.docToNodes.size(),
+                    System.currentTimeMillis() - start);
+        } catch (IOException e) {
+            log.error("HNSW索引存储失败, hnswPath:{}", hnswPath, e);
+            if (null != writer) {
+                writer.abort();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 加载索引，加载失败时保留当前索引
+     *
+     * @param indexDir    索引目录
+     * @param indexPrefix 索引前缀
+     */
+    @Override
+    public void load(String indexDir, String indexPrefix) {
+        indexDir = FolderTools.folderAppendSlash(indexDir);
+        String hnswPath = indexDir + indexPrefix + HNSW_SUFFIX;
+        long start = System.currentTimeMillis();
+        int dimension = pq.getVectorDimension();
+        Graph loaded;
+        try (SegmentFile.Reader reader = SegmentFile.open(hnswPath)) {
+            if (verifyChecksums) {
+                reader.verifyAll();
+            }
+
+            //步骤一： 节点表
+            IntBuffer header = reader.map(SegmentFile.SECTION_HNSW_NODES).asIntBuffer();
+            int fileDimension = header.get();
+            int fileM = header.get();
+            int nodeCount = header.get();
+            int entryNode = header.get();
+            int entryLevel = header.get();
+            if (fileDimension != dimension) {
+                throw new IOException("向量维数不一致, 文件:" + fileDimension + " 期望:" + dimension);
+            }
+
+            //步骤二： 向量只读映射，每段只包含完整的向量
+            int nodesPerRegion = (int) Math.max(1, MAX_REGION_BYTES / (4L * dimension));
+            int regionCount = (nodeCount + nodesPerRegion - 1) / nodesPerRegion;
+            FloatBuffer[] regions = new FloatBuffer[regionCount];
+            long vectorStart = reader.offset(SegmentFile.SECTION_VECTORS);
+            for (int i = 0; i < regionCount; i++) {
+                long firstNode = (long) i * nodesPerRegion;
+                long nodes = Math.min(nodesPerRegion, nodeCount - firstNode);
+                regions[i] = reader.map(vectorStart + firstNode * 4 * dimension, nodes * 4 * dimension).asFloatBuffer();
+            }
+            loaded = new Graph(dimension, fileM, regions, nodeCount, nodesPerRegion);
+
+            //步骤三： 邻接表读入堆内
+            IntBuffer level0 = reader.map(reader.offset(SegmentFile.SECTION_HNSW_LEVEL0),
+                    4L * nodeCount * (loaded.m0 + 1)).asIntBuffer();
+            for (int page = 0; page * PAGE_NODES < nodeCount; page++) {
+                int rows = Math.min(PAGE_NODES, nodeCount - page * PAGE_NODES);
+                header.get(loaded.docIdPages[page], 0, rows);
+                level0.get(loaded.level0Pages[page], 0, rows * (loaded.m0 + 1));
+            }
+            IntBuffer upper = reader.map(SegmentFile.SECTION_HNSW_UPPER).asIntBuffer();
+            int upperCount = upper.get();
+            for (int i = 0; i < upperCount; i++) {
+                int node = upper.get();
+                int[] lists = new int[upper.get() * (loaded.m + 1)];
+                upper.get(lists);
+                loaded.upperPages[node / PAGE_NODES][node % PAGE_NODES] = lists;
+            }
+            loaded.entry = entryNode < 0 ? null : new Entry(entryNode, entryLevel);
+
+            //步骤四： 删除节点，文档只关联未删除的节点
+            RoaringBitmap deleted = new ImmutableRoaringBitmap(reader.map(SegmentFile.SECTION_TOMBSTONES))
+                    .toRoaringBitmap();
+            loaded.markDeleted(deleted.toArray(), loaded.version);
+            for (int node = 0; node < nodeCount; node++) {
+                if (!deleted.contains(node)) {
+                    loaded.docToNodes.merge(loaded.docId(node), new int[]{node}, HnswIndex::concat);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            log.error("HNSW索引加载失败，保留当前索引, hnswPath:{}", hnswPath, e);
+            return;
+        }
+
+        lock.writeLock().lock();
+        try {
+            graph = loaded;
+            m = loaded.m;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        log.info("HNSW索引加载耗时:{}ms 节点数:{} 文档数:{}", System.currentTimeMillis() - start, loaded.nodeCount,
+                loaded.docToNodes.size());
+    }
+
+    /**
+     * 把节点插入图：逐层搜索最近的efConstruction个节点，选出邻居后双向连接
+     *
+     * @param g      图
+     * @param node   已分配的节点
+     * @param vector 节点向量
+     * @param level  节点层数
+     */
+    private void insert(Graph g, int node, float[] vector, int level) {
+        Entry entry = g.entry;
+        if (null == entry) {
+            synchronized (g) {
+                if (null == g.entry) {
+                    g.entry = new Entry(node, level);
+                    return;
+                }
+                entry = g.entry;
+            }
+        }
+
+        //步骤一： 高于节点层数的层贪心下降
+        int current = entry.node;
+        float currentDis = g.distance(vector, current);
+        int[] neighbors = new int[g.m0];
+        for (int lc = entry.level; lc > level; lc--) {
+            boolean changed = true;
+            while (changed) {
+                changed = false;
+                int count = g.copyNeighbors(current, lc, neighbors);
+                for (int i = 0; i < count; i++) {
+                    float dis = g.distance(vector, neighbors[i]);
+                    if (dis < currentDis) {
+                        current = neighbors[i];
+                        currentDis = dis;
+                        changed = true;
+                    }
+                }
+            }
+        }
+
+        //步骤二： 节点所在的各层选邻居并双向连接
+        for (int lc = Math.min(level, entry.level); lc >= 0; lc--) {
+            SearchHits nearest = searchLayer(g, vector, current, currentDis, efConstruction, lc, null).toHits();
+            int[] selected = selectNeighbors(g, nearest.getIds(), nearest.getScores(), g.m, node);
+            g.setNeighbors(node, lc, selected, selected.length);
+            for (int neighbor : selected) {
+                link(g, neighbor, node, lc);
+            }
+            current = nearest.getId(0);
+            currentDis = nearest.getScore(0);
+        }
+
+        //步骤三： 层数超过入口时成为新入口
+        if (level > entry.level) {
+            synchronized (g) {
+                if (level > g.entry.level) {
+                    g.entry = new Entry(node, level);
+                }
+            }
+        }
+    }
+
+    /**
+     * 把node加入target的邻居，超过容量时对原邻居和node重新做启发式选择
+     */
+    private void link(Graph g, int target, int node, int level) {
+        int maxNeighbors = 0 == level ? g.m0 : g.m;
+        synchronized (g.lockOf(target)) {
+            int[] array = g.array(target, level);
+            int offset = g.offset(target, level);
+            int count = array[offset];
+            if (count < maxNeighbors) {
+                array[offset + 1 + count] = node;
+                array[offset] = count + 1;
+                return;
+            }
+
+            float[] targetVector = g.vector(target);
+            Integer[] order = new Integer[count + 1];
+            int[] ids = new int[count + 1];
+            float[] distances = new float[count + 1];
+            for (int i = 0; i <= count; i++) {
+                ids[i] = i < count ? array[offset + 1 + i] : node;
+                distances[i] = g.distance(targetVector, ids[i]);
+                order[i] = i;
+            }
+            Arrays.sort(order, (a, b) -> Float.compare(distances[a], distances[b]));
+            int[] sortedIds = new int[count + 1];
+            float[] sortedDistances = new float[count + 1];
+            for (int i = 0; i <= count; i++) {
+                sortedIds[i] = ids[order[i]];
+                sortedDistances[i] = distances[order[i]];
+            }
+
+            int[] selected = selectNeighbors(g, sortedIds, sortedDistances, maxNeighbors, target);
+            System.arraycopy(selected, 0, array, offset + 1, selected.length);
+            array[offset] = selected.length;
+        }
+    }
+
+    /**
+     * 启发式选择邻居：候选节点比已选邻居离基准节点更近时才选中，使邻居分布在不同方向上
+     *
+     * @param g          图
+     * @param ids        按距离升序的候选节点
+     * @param distances  候选节点到基准节点的距离平方
+     * @param maxCount   最多选择的邻居数
+     * @param self       基准节点，不能选为自己的邻居
+     * @return 选中的邻居
+     */
+    private int[] selectNeighbors(Graph g, int[] ids, float[] distances, int maxCount, int self) {
+        int[] selected = new int[maxCount];
+        float[][] selectedVectors = new float[maxCount][];
+        int count = 0;
+        for (int i = 0; i < ids.length && count < maxCount; i++) {
+            if (ids[i] == self) {
+                continue;
+            }
+
+            float[] candidate = g.vector(ids[i]);
+            boolean good = true;
+            for (int j = 0; j < count; j++) {
+                if (VectorTools.diffSquare(candidate, selectedVectors[j]) < distances[i]) {
+                    good = false;
+                    break;
+                }
+            }
+            if (good) {
+                selected[count] = ids[i];
+                selectedVectors[count++] = candidate;
+            }
+        }
+
+        return Arrays.copyOf(selected, count);
+    }
+
+    /**
+     * 从入口贪心下降到第1层，再在第0层搜索
+     *
+     * @param g      图
+     * @param vector 查询向量
+     * @param ef     第0层保留的候选节点数
+     * @param accept 可以进入结果的节点
+     * @return 第0层距离最小的ef个节点
+     */
+    private TopkHeap searchNodes(Graph g, float[] vector, int ef, IntPredicate accept) {
+        Entry entry = g.entry;
+        int current = entry.node;
+        float currentDis = g.distance(vector, current);
+        int[] neighbors = new int[g.m0];
+        for (int lc = entry.level; lc > 0; lc--) {
+            boolean changed = true;
+            while (changed) {
+                changed = false;
+                int count = g.copyNeighbors(current, lc, neighbors);
+                for (int i = 0; i < count; i++) {
+                    float dis = g.distance(vector, neighbors[i]);
+                    if (dis < currentDis) {
+                        current = neighbors[i];
+                        currentDis = dis;
+                        changed = true;
+                    }
+                }
+            }
+        }
+
+        return searchLayer(g, vector, current, currentDis, ef, 0, accept);
+    }
+
+    /**
+     * 单层搜索：候选队列按距离从小到大扩展，直到最近的候选比结果中第ef近的还远
+     * 不能进入结果的节点（删除、被过滤）仍然扩展，用于导航
+     *
+     * @param g          图
+     * @param vector     查询向量
+     * @param entry      入口节点
+     * @param entryDis   入口节点的距离平方
+     * @param ef         保留的节点数
+     * @param level      层号
+     * @param accept     可以进入结果的节点，null表示全部
+     * @return 距离平方最小的ef个节点
+     */
+    private TopkHeap searchLayer(Graph g, float[] vector, int entry, float entryDis, int ef, int level,
+                                 IntPredicate accept) {
+        Visited marks = visited.get();
+        marks.reset(g.nodeCount);
+        marks.mark(entry);
+
+        NodeQueue candidates = new NodeQueue();
+        candidates.push(entry, entryDis);
+        TopkHeap results = new TopkHeap(ef);
+        if (null == accept || accept.test(entry)) {
+            results.offer(entry, entryDis);
+        }
+
+        int[] neighbors = new int[g.m0];
+        while (!candidates.isEmpty()) {
+            if (candidates.minScore() > results.threshold()) {
+                break;
+            }
+
+            int count = g.copyNeighbors(candidates.pop(), level, neighbors);
+            for (int i = 0; i < count; i++) {
+                int neighbor = neighbors[i];
+                if (!marks.mark(neighbor)) {
+                    continue;
+                }
+
+                float dis = g.distance(vector, neighbor);
+                if (dis < results.threshold()) {
+                    candidates.push(neighbor, dis);
+                    if (null == accept || accept.test(neighbor)) {
+                        results.offer(neighbor, dis);
+                    }
+                }
+            }
+        }
+
+        return results;
+    }
+
+    /**
+     * @return 查询开始时的版本下存活且文档在过滤条件中的节点
+     */
+    private static IntPredicate acceptor(Graph g, RoaringBitmap filter) {
+        int version = g.version;
+        if (null == filter) {
+            return node -> g.isLive(node, version);
+        }
+
+        return node -> g.isLive(node, version) && filter.contains(g.docId(node));
+    }
+
+    /**
+     * 对过滤条件中的文档计算精确距离
+     */
+    private static SearchHits bruteForce(Graph g, float[] vector, RoaringBitmap filter, int topn) {
+        int version = g.version;
+        TopkHeap heap = new TopkHeap(topn);
+        for (int id : filter.toArray()) {
+            int[] nodes = g.docToNodes.get(id);
+            if (null == nodes) {
+                continue;
+            }
+
+            float minSquare = Float.MAX_VALUE;
+            for (int node : nodes) {
+                if (g.isLive(node, version)) {
+                    minSquare = Math.min(minSquare, g.distance(vector, node));
+                }
+            }
+            if (minSquare < Float.MAX_VALUE) {
+                heap.offer(id, (float) Math.sqrt(minSquare));
+            }
+        }
+
+        return heap.toHits();
+    }
+
+    /**
+     * 节点结果转换为文档结果，同一文档只保留距离最小的节点
+     *
+     * @param g            图
+     * @param nodes        按距离平方升序的节点
+     * @param topn         最多返回的文档数
+     * @param maxSquare    距离平方上限
+     * @return 按欧式距离升序的文档
+     */
+    private static SearchHits toDocHits(Graph g, SearchHits nodes, int topn, float maxSquare) {
+        int size = Math.min(topn, nodes.size());
+        int[] ids = new int[size];
+        float[] scores = new float[size];
+        RoaringBitmap seen = new RoaringBitmap();
+        int count = 0;
+        for (int i = 0; i < nodes.size() && count < size && nodes.getScore(i) <= maxSquare; i++) {
+            int id = g.docId(nodes.getId(i));
+            if (seen.checkedAdd(id)) {
+                ids[count] = id;
+                scores[count++] = (float) Math.sqrt(nodes.getScore(i));
+            }
+        }
+
+        return new SearchHits(Arrays.copyOf(ids, count), Arrays.copyOf(scores, count));
+    }
+
+    /**
+     * @return 节点层数，按 -ln(U)/ln(m) 分布
+     */
+    private int randomLevel() {
+        double random = ThreadLocalRandom.current().nextDouble();
+        return (int) Math.min(MAX_LEVEL, Math.floor(-Math.log(random) / Math.log(m)));
+    }
+
+    private static int[] concat(int[] a, int[] b) {
+        int[] result = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+
+    /**
+     * 入口节点，整体替换
+     */
+    private static final class Entry {
+        private final int node;
+        private final int level;
+
+        Entry(int node, int level) {
+            this.node = node;
+            this.level = level;
+        }
+    }
+
+    /**
+     * 图的节点存储：文档id、向量、邻接表按节点编号分页
+     * 加载的节点（编号小于baseCount）向量为只读映射，之后写入的节点向量在堆内分页
+     * 分页数组扩容时整体替换，节点的分配、可见版本和删除版本的修改持有图的锁
+     * 节点在版本v下存活：可见版本不大于v，且未删除或删除版本大于v；版本修改完成后才发布图的新版本
+     */
+    private static final class Graph {
+        private final int dimension;
+        private final int m;
+        private final int m0;
+        private final FloatBuffer[] baseRegions;
+        private final int baseCount;
+        private final int nodesPerRegion;
+        private final Object[] stripes = new Object[LOCK_STRIPES];
+
+        private volatile float[][] vectorPages = new float[0][];
+        private volatile int[][] docIdPages;
+        private volatile int[][] level0Pages;
+        private volatile int[][][] upperPages;
+        private volatile int nodeCount;
+        private volatile Entry entry;
+        private volatile int[][] visiblePages;
+        private volatile int[][] deadPages;
+        private volatile int version = 1;
+        private volatile int deletedCount;
+        private final Map<Integer, int[]> docToNodes = new ConcurrentHashMap<>();
+
+        Graph(int dimension, int m, FloatBuffer[] baseRegions, int baseCount, int nodesPerRegion) {
+            this.dimension = dimension;
+            this.m = m;
+            this.m0 = 2 * m;
+            this.baseRegions = baseRegions;
+            this.baseCount = baseCount;
+            this.nodesPerRegion = nodesPerRegion;
+            for (int i = 0; i < LOCK_STRIPES; i++) {
+                stripes[i] = new Object();
+            }
+
+            int pageCount = (baseCount + PAGE_NODES - 1) / PAGE_NODES;
+            this.docIdPages = new int[pageCount][PAGE_NODES];
+            this.level0Pages = new int[pageCount][PAGE_NODES * (m0 + 1)];
+            this.upperPages = new int[pageCount][PAGE_NODES][];
+            this.visiblePages = new int[pageCount][PAGE_NODES];
+            this.deadPages = new int[pageCount][PAGE_NODES];
+            this.nodeCount = baseCount;
+        }
+
+        /**
+         * 分配节点，节点在插入图之前不会被查询访问到
+         *
+         * @param visible 节点开始可见的版本，HIDDEN表示插入后由markVisible发布
+         * @return 节点编号
+         */
+        synchronized int allocate(int id, float[] vector, int level, int visible) {
+            assert vector.length == dimension;
+            int node = nodeCount;
+            int page = node / PAGE_NODES;
+            if (page == docIdPages.length) {
+                docIdPages = append(docIdPages, new int[PAGE_NODES]);
+                level0Pages = append(level0Pages, new int[PAGE_NODES * (m0 + 1)]);
+                int[][][] grown = Arrays.copyOf(upperPages, page + 1);
+                grown[page] = new int[PAGE_NODES][];
+                upperPages = grown;
+                visiblePages = append(visiblePages, new int[PAGE_NODES]);
+                deadPages = append(deadPages, new int[PAGE_NODES]);
+            }
+            int heapNode = node - baseCount;
+            if (heapNode / PAGE_NODES == vectorPages.length) {
+                vectorPages = append(vectorPages, new float[PAGE_NODES * dimension]);
+            }
+
+            docIdPages[page][node % PAGE_NODES] = id;
+            visiblePages[page][node % PAGE_NODES] = visible;
+            System.arraycopy(vector, 0, vectorPages[heapNode / PAGE_NODES], (heapNode % PAGE_NODES) * dimension,
+                    dimension);
+            if (level > 0) {
+                upperPages[page][node % PAGE_NODES] = new int[level * (m + 1)];
+            }
+            nodeCount = node + 1;
+            return node;
+        }
+
+        int docId(int node) {
+            return docIdPages[node / PAGE_NODES][node % PAGE_NODES];
+        }
+
+        /**
+         * @return 节点在版本version下存活
+         */
+        boolean isLive(int node, int version) {
+            int dead = deadPages[node / PAGE_NODES][node % PAGE_NODES];
+            return visiblePages[node / PAGE_NODES][node % PAGE_NODES] <= version && (0 == dead || dead > version);
+        }
+
+        boolean isDeleted(int node) {
+            return 0 != deadPages[node / PAGE_NODES][node % PAGE_NODES];
+        }
+
+        /**
+         * 持有图的锁调用，之后再发布version
+         */
+        void markVisible(int[] nodes, int version) {
+            for (int node : nodes) {
+                visiblePages[node / PAGE_NODES][node % PAGE_NODES] = version;
+            }
+        }
+
+        /**
+         * 持有图的锁调用，之后再发布version
+         */
+        void markDeleted(int[] nodes, int version) {
+            for (int node : nodes) {
+                deadPages[node / PAGE_NODES][node % PAGE_NODES] = version;
+            }
+            deletedCount += nodes.length;
+        }
+
+        int level(int node) {
+            int[] upper = upperPages[node / PAGE_NODES][node % PAGE_NODES];
+            return null == upper ? 0 : upper.length / (m + 1);
+        }
+
+        float distance(float[] vector, int node) {
+            if (node < baseCount) {
+                return VectorTools.diffSquare(vector, baseRegions[node / nodesPerRegion],
+                        (node % nodesPerRegion) * dimension);
+            }
+
+            int heapNode = node - baseCount;
+            return VectorTools.diffSquare(vector, 0, vectorPages[heapNode / PAGE_NODES],
+                    (heapNode % PAGE_NODES) * dimension, dimension);
+        }
+
+        float[] vector(int node) {
+            float[] vector = new float[dimension];
+            if (node < baseCount) {
+                FloatBuffer region = baseRegions[node / nodesPerRegion];
+                int offset = (node % nodesPerRegion) * dimension;
+                for (int i = 0; i < dimension; i++) {
+                    vector[i] = region.get(offset + i);
+                }
+            } else {
+                int heapNode = node - baseCount;
+                System.arraycopy(vectorPages[heapNode / PAGE_NODES], (heapNode % PAGE_NODES) * dimension, vector, 0,
+                        dimension);
+            }
+
+            return vector;
+        }
+
+        Object lockOf(int node) {
+            return stripes[node & (LOCK_STRIPES - 1)];
+        }
+
+        /**
+         * @return 节点在该层的邻接数组，第0层为节点所在页，上层为节点自己的数组
+         */
+        int[] array(int node, int level) {
+            return 0 == level ? level0Pages[node / PAGE_NODES] : upperPages[node / PAGE_NODES][node % PAGE_NODES];
+        }
+
+        /**
+         * @return 节点在该层的邻接记录 [邻居数, 邻居...] 在邻接数组中的起始位置
+         */
+        int offset(int node, int level) {
+            return 0 == level ? (node % PAGE_NODES) * (m0 + 1) : (level - 1) * (m + 1);
+        }
+
+        int copyNeighbors(int node, int level, int[] neighbors) {
+            synchronized (lockOf(node)) {
+                int[] array = array(node, level);
+                int offset = offset(node, level);
+                int count = array[offset];
+                System.arraycopy(array, offset + 1, neighbors, 0, count);
+                return count;
+            }
+        }
+
+        void setNeighbors(int node, int level, int[] neighbors, int count) {
+            synchronized (lockOf(node)) {
+                int[] array = array(node, level);
+                int offset = offset(node, level);
+                System.arraycopy(neighbors, 0, array, offset + 1, count);
+                array[offset] = count;
+            }
+        }
+
+        private static <T> T[] append(T[] pages, T page) {
+            T[] grown = Arrays.copyOf(pages, pages.length + 1);
+            grown[pages.length] = page;
+            return grown;
+        }
+    }
+
+    /**
+     * 候选队列：按距离的小顶堆，使用基本类型数组
+     */
+    private static final class NodeQueue {
+        private int[] ids = new int[64];
+        private float[] scores = new float[64];
+        private int size;
+
+        void push(int id, float score) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+                scores = Arrays.copyOf(scores, size * 2);
+            }
+
+            int pos = size++;
+            while (pos > 0) {
+                int parent = (pos - 1) >>> 1;
+                if (scores[parent] <= score) {
+                    break;
+                }
+                ids[pos] = ids[parent];
+                scores[pos] = scores[parent];
+                pos = parent;
+            }
+            ids[pos] = id;
+            scores[pos] = score;
+        }
+
+        float minScore() {
+            return scores[0];
+        }
+
+        int pop() {
+            int top = ids[0];
+            int lastId = ids[--size];
+            float lastScore = scores[size];
+            int pos = 0;
+            while (true) {
+                int child = 2 * pos + 1;
+                if (child >= size) {
+                    break;
+                }
+                if (child + 1 < size && scores[child + 1] < scores[child]) {
+                    child++;
+                }
+                if (scores[child] >= lastScore) {
+                    break;
+                }
+                ids[pos] = ids[child];
+                scores[pos] = scores[child];
+                pos = child;
+            }
+            ids[pos] = lastId;
+            scores[pos] = lastScore;
+            return top;
+        }
+
+        boolean isEmpty() {
+            return 0 == size;
+        }
+    }
+
+    /**
+     * 访问标记：每个线程一个数组，按代数区分不同的查询，不需要每次清零
+     */
+    private static final class Visited {
+        private int[] marks = new int[0];
+        private int generation;
+
+        void reset(int capacity) {
+            if (marks.length < capacity) {
+                marks = new int[capacity + (capacity >> 3)];
+            }
+            if (++generation == 0) {
+                Arrays.fill(marks, 0);
+                generation = 1;
+            }
+        }
+
+        /**
+         * @return 本次查询中第一次访问该节点
+         */
+        boolean mark(int node) {
+            if (node >= marks.length) {
+                marks = Arrays.copyOf(marks, Math.max(node + 1, marks.length * 2));
+            }
+            if (marks[node] == generation) {
+                return false;
+            }
+
+            marks[node] = generation;
+            return true;
+        }
+    }
+}
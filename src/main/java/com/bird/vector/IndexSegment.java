@@ -0,0 +1,637 @@
+package com.bird.vector;
+
+import com.google.common.util.concurrent.RateLimiter;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.tuple.Pair;
+import org.roaringbitmap.IntConsumer;
+import org.roaringbitmap.RoaringBitmap;
+import org.roaringbitmap.buffer.ImmutableRoaringBitmap;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * 索引段：倒排表 + 向量存储 + 删除文档
+ * 1.写入段只被持有写锁的线程修改，发布前对查询不可见
+ * 2.发布后的段不再修改，删除文档时生成共享倒排和向量、只替换tombstones的新段
+ *
+ * @description：
+ * @author： liuxiangqian
+ * @date： 2024/10/15
+ */
+@Slf4j
+public class IndexSegment {
+    /**
+     * PARALLEL_RECALL_CARDINALITY:  倒排链总基数超过该值时，各段并集在线程池中并行计算
+     */
+    public static final long PARALLEL_RECALL_CARDINALITY = 1000000L;
+    private static final int PARALLELISM = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * SEGMENT_SUFFIX：    段文件后缀：倒排表、文档表、向量、量化编码
+     * TOMBSTONES_SUFFIX： 删除文档文件后缀
+     */
+    public static final String SEGMENT_SUFFIX = ".seg";
+    public static final String TOMBSTONES_SUFFIX = ".tomb";
+
+    /**
+     * RECALL_EXECUTOR： 倒排链求并集的线程池，线程数有界，队列满时由调用线程执行
+     */
+    private static final ExecutorService RECALL_EXECUTOR = new ThreadPoolExecutor(PARALLELISM, PARALLELISM,
+            60L, TimeUnit.SECONDS, new ArrayBlockingQueue<>(1024), runnable -> {
+        Thread thread = new Thread(runnable, "em-recall");
+        thread.setDaemon(true);
+        return thread;
+    }, new ThreadPoolExecutor.CallerRunsPolicy());
+
+    /**
+     * pq:              量化模型
+     * postingLists：   倒排信息，下标为 向量段编号 * 聚类数 + 聚类编号
+     * vectorStore：    参与索引的向量集合及其量化编码
+     * tombstones：     已删除的文档，查询时从召回结果中排除，合并时才从倒排链和向量中清除
+     * clusterRadius：  各聚类内向量到聚类中心的最大距离，下标同倒排表，删除文档时不缩小，始终是上界
+     * sealedDocCount： 发布时的文档数，写入段为-1
+     * name：           段在索引目录中的文件名，未落盘的段为null
+     */
+    private final EmPQ pq;
+    private final PostingLists postingLists;
+    private final VectorStore vectorStore;
+    private final RoaringBitmap tombstones;
+    private final float[] clusterRadius;
+    private volatile int sealedDocCount = -1;
+    private volatile String name;
+
+    public IndexSegment(EmPQ pq) {
+        this(pq, VectorEncoding.FLOAT32, false);
+    }
+
+    /**
+     * @param pq           量化模型
+     * @param encoding     向量编码
+     * @param exactRecheck 编码需要复核时（INT8）是否保留float向量用于精确复核
+     */
+    public IndexSegment(EmPQ pq, VectorEncoding encoding, boolean exactRecheck) {
+        this(pq, new PostingLists(pq.getPqSegmentCount(), pq.getClusterCount()),
+                new VectorStore(pq.getVectorDimension(), pq.getPqSegmentCount(), encoding, exactRecheck),
+                new RoaringBitmap(), new float[pq.getPqSegmentCount() * pq.getClusterCount()]);
+    }
+
+    private IndexSegment(EmPQ pq, PostingLists postingLists, VectorStore vectorStore, RoaringBitmap tombstones,
+                         float[] clusterRadius) {
+        this.pq = pq;
+        this.postingLists = postingLists;
+        this.vectorStore = vectorStore;
+        this.tombstones = tombstones;
+        this.clusterRadius = clusterRadius;
+    }
+
+    /**
+     * 写入一个向量，只能在写入段上调用
+     *
+     * @param id     文档id
+     * @param vector 向量
+     * @param pqIds  向量各段的聚类编号
+     */
+    public void add(int id, float[] vector, int[] pqIds) {
+        byte[] codes = new byte[pqIds.length];
+        for (int segNum = 0; segNum < pqIds.length; segNum++) {
+            codes[segNum] = (byte) pqIds[segNum];
+        }
+        add(id, vector, pqIds, codes);
+    }
+
+    private void add(int id, float[] vector, int[] pqIds, byte[] codes) {
+        float[] residuals = pq.residualDistances(vector, pqIds);
+        for (int segNum = 0; segNum < pqIds.length; segNum++) {
+            int slot = postingLists.slot(segNum, pqIds[segNum]);
+            postingLists.add(segNum, pqIds[segNum], id);
+            clusterRadius[slot] = Math.max(clusterRadius[slot], residuals[segNum]);
+        }
+        vectorStore.add(id, vector, codes);
+    }
+
+    /**
+     * 根据文档的量化编码从所在倒排链中删除文档，并删除向量，只能在写入段上调用
+     *
+     * @param id 文档id
+     * @return 删除的向量数
+     */
+    public int purge(int id) {
+        List<byte[]> codesList = vectorStore.getCodes(id);
+        for (byte[] codes : codesList) {
+            for (int segNum = 0; segNum < codes.length; segNum++) {
+                postingLists.remove(segNum, codes[segNum] & 0xFF, id);
+            }
+        }
+        vectorStore.remove(id);
+        return codesList.size();
+    }
+
+    /**
+     * 写入段发布前调用，之后本段的倒排和向量不再修改，向量按文档打包为连续布局
+     */
+    public void seal() {
+        postingLists.runOptimize();
+        vectorStore.pack();
+        sealedDocCount = vectorStore.size();
+    }
+
+    /**
+     * @param deleted 删除的文档
+     * @return 共享倒排和向量，tombstones加上deleted中本段存活文档的新段；没有需要删除的文档时返回自身
+     */
+    public IndexSegment withDeleted(RoaringBitmap deleted) {
+        RoaringBitmap newDeleted = new RoaringBitmap();
+        deleted.forEach((IntConsumer) id -> {
+            if (isLive(id)) {
+                newDeleted.add(id);
+            }
+        });
+        if (newDeleted.isEmpty()) {
+            return this;
+        }
+
+        IndexSegment segment = new IndexSegment(pq, postingLists, vectorStore, RoaringBitmap.or(tombstones, newDeleted),
+                clusterRadius);
+        segment.sealedDocCount = sealedDocCount;
+        segment.name = name;
+        return segment;
+    }
+
+    /**
+     * @param id 文档id
+     * @return 文档在本段中存在且未删除
+     */
+    public boolean isLive(int id) {
+        return !tombstones.contains(id) && vectorStore.contains(id);
+    }
+
+    /**
+     * @param filter 文档集合
+     * @return filter中在本段存在且未删除的文档
+     */
+    public RoaringBitmap liveDocs(RoaringBitmap filter) {
+        RoaringBitmap live = new RoaringBitmap();
+        filter.forEach((IntConsumer) id -> {
+            if (isLive(id)) {
+                live.add(id);
+            }
+        });
+
+        return live;
+    }
+
+    /**
+     * @return 段内文档数，包含已删除的文档
+     */
+    public int docCount() {
+        return sealedDocCount >= 0 ? sealedDocCount : vectorStore.size();
+    }
+
+    /**
+     * @param other 另一个段
+     * @return 两个段共享同一份倒排和向量，只是删除文档不同
+     */
+    public boolean sameData(IndexSegment other) {
+        return vectorStore == other.vectorStore;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public VectorStore getVectorStore() {
+        return vectorStore;
+    }
+
+    public RoaringBitmap getTombstones() {
+        return tombstones;
+    }
+
+    public static IndexSegment merge(EmPQ pq, List<IndexSegment> segments) {
+        return merge(pq, segments, null);
+    }
+
+    /**
+     * 合并多个段的存活文档为一个新段，直接复用量化编码，不重新量化
+     * 新段沿用最后一个段（最新写入）的向量编码，编码配置变化后随合并逐步生效
+     *
+     * @param pq       量化模型
+     * @param segments 待合并的段
+     * @param limiter  读取限速，单位字节/秒，null表示不限速
+     * @return 已发布状态的新段
+     */
+    public static IndexSegment merge(EmPQ pq, List<IndexSegment> segments, RateLimiter limiter) {
+        int rowBytes = pq.getVectorDimension() * 4 + pq.getPqSegmentCount();
+        long start = System.currentTimeMillis();
+        VectorStore newest = segments.get(segments.size() - 1).vectorStore;
+        IndexSegment merged = new IndexSegment(pq, newest.getEncoding(), newest.hasExactVectors());
+        for (IndexSegment segment : segments) {
+            VectorStore store = segment.vectorStore;
+            for (int id : store.ids()) {
+                if (segment.tombstones.contains(id)) {
+                    continue;
+                }
+
+                List<float[]> vectors = store.getVectors(id);
+                List<byte[]> codesList = store.getCodes(id);
+                if (null != limiter && !vectors.isEmpty()) {
+                    limiter.acquire(vectors.size() * rowBytes);
+                }
+                for (int i = 0; i < vectors.size(); i++) {
+                    byte[] codes = codesList.get(i);
+                    int[] pqIds = new int[codes.length];
+                    for (int segNum = 0; segNum < codes.length; segNum++) {
+                        pqIds[segNum] = codes[segNum] & 0xFF;
+                    }
+                    merged.add(id, vectors.get(i), pqIds, codes);
+                }
+            }
+        }
+        merged.seal();
+        log.info("索引段合并完毕, 段数:{} 文档数:{} 耗时:{}ms", segments.size(), merged.docCount(),
+                System.currentTimeMillis() - start);
+
+        return merged;
+    }
+
+    /**
+     * 范围查询的距离下界表：向量段到聚类中心的距离减去聚类半径（三角不等式）
+     *
+     * @param table 查询向量的距离表，值为段内距离平方
+     * @return 下界表，下标同距离表，值为段内距离下界的平方
+     */
+    public float[] lowerBoundTable(float[] table) {
+        float[] bounds = new float[table.length];
+        for (int slot = 0; slot < table.length; slot++) {
+            float bound = (float) Math.sqrt(table[slot]) - clusterRadius[slot];
+            bounds[slot] = bound > 0 ? bound * bound : 0.0f;
+        }
+
+        return bounds;
+    }
+
+    /**
+     * 范围查询召回：每段只保留距离下界不超过半径的聚类，距离在半径内的文档在每段上都属于这些聚类，不会遗漏
+     *
+     * @param bounds       下界表
+     * @param radiusSquare 半径的平方
+     * @param filter       允许返回的文档，null表示不过滤
+     * @return 候选文档
+     */
+    public RoaringBitmap recallRange(float[] bounds, float radiusSquare, RoaringBitmap filter) {
+        int segCount = pq.getPqSegmentCount();
+        int clusterCount = pq.getClusterCount();
+        List<List<Pair<Integer, Float>>> segDisListList = new ArrayList<>(segCount);
+        for (int segNum = 0; segNum < segCount; segNum++) {
+            List<Pair<Integer, Float>> segDisList = new ArrayList<>();
+            for (int clusterId = 0; clusterId < clusterCount; clusterId++) {
+                float bound = bounds[segNum * clusterCount + clusterId];
+                if (bound <= radiusSquare) {
+                    segDisList.add(Pair.of(clusterId, bound));
+                }
+            }
+            if (segDisList.isEmpty()) {
+                return new RoaringBitmap();
+            }
+            segDisListList.add(segDisList);
+        }
+
+        return recall(segDisListList, filter);
+    }
+
+    /**
+     * 步骤一： 每段的topn个聚类倒排链求并集，倒排链较大时各段在线程池中并行
+     * 步骤二： 先与过滤条件求交集，再与各段结果按基数从小到大求交集，结果为空时提前结束
+     * 步骤三： 排除已删除文档
+     *
+     * @param segDisListList 向量的各个段对应的聚类编号和距离
+     * @param filter         允许返回的文档，null表示不过滤
+     * @return 匹配的rb列表
+     */
+    public RoaringBitmap recall(List<List<Pair<Integer, Float>>> segDisListList, RoaringBitmap filter) {
+        //步骤一： 收集每段的聚类编号，任意一段没有倒排链时交集必为空
+        int segCount = segDisListList.size();
+        List<int[]> segClustersList = new ArrayList<>(segCount);
+        long totalCardinality = 0;
+        for (int segNum = 0; segNum < segCount; segNum++) {
+            List<Pair<Integer, Float>> segDisList = segDisListList.get(segNum);
+            int[] segClusters = new int[segDisList.size()];
+            long segCardinality = 0;
+            for (int i = 0; i < segClusters.length; i++) {
+                segClusters[i] = segDisList.get(i).getKey();
+                segCardinality += postingLists.cardinality(postingLists.slot(segNum, segClusters[i]));
+            }
+
+            if (0 == segCardinality) {
+                return new RoaringBitmap();
+            }
+            segClustersList.add(segClusters);
+            totalCardinality += segCardinality;
+        }
+
+        //步骤二： 每段求并集
+        RoaringBitmap[] segRbs = new RoaringBitmap[segCount];
+        if (totalCardinality < PARALLEL_RECALL_CARDINALITY) {
+            for (int segNum = 0; segNum < segCount; segNum++) {
+                segRbs[segNum] = postingLists.union(segNum, segClustersList.get(segNum));
+            }
+        } else {
+            List<Future<RoaringBitmap>> futures = new ArrayList<>(segCount);
+            for (int segNum = 0; segNum < segCount; segNum++) {
+                int finalSegNum = segNum;
+                int[] segClusters = segClustersList.get(segNum);
+                futures.add(RECALL_EXECUTOR.submit(() -> postingLists.union(finalSegNum, segClusters)));
+            }
+            try {
+                for (int segNum = 0; segNum < segCount; segNum++) {
+                    segRbs[segNum] = futures.get(segNum).get();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return new RoaringBitmap();
+            } catch (ExecutionException e) {
+                log.error("倒排链并集计算失败", e);
+                return new RoaringBitmap();
+            }
+        }
+
+        //步骤三： 过滤条件通常比倒排链并集小，先求交集
+        Arrays.sort(segRbs, Comparator.comparingLong(RoaringBitmap::getLongCardinality));
+        RoaringBitmap resultRb = segRbs[0];
+        if (null != filter) {
+            resultRb.and(filter);
+        }
+        for (int i = 1; i < segCount && !resultRb.isEmpty(); i++) {
+            resultRb.and(segRbs[i]);
+        }
+
+        //步骤四： 排除已删除文档
+        if (!tombstones.isEmpty()) {
+            resultRb.andNot(tombstones);
+        }
+
+        return resultRb;
+    }
+
+    /**
+     * 自适应召回，参数含义见AdaptiveRecall
+     * 步骤一： 每个向量段取最近的minClusterTopn个聚类，倒排链并集求交集
+     * 步骤二： 候选数不足下限时，可扩大的向量段按距离比值升序，前一半各增加一个聚类，超过上限时减半重试
+     * 步骤三： 候选数达到下限、没有可扩大的向量段或倒排链文档数达到上限时结束
+     *
+     * @param segDisListList 向量的各个段按距离升序的聚类编号和距离，长度为各段可取的最大聚类数
+     * @param filter         允许返回的文档，null表示不过滤
+     * @param adaptive       自适应召回参数
+     * @param topn           获取最相近向量个数，候选数不足topn时扩大不受距离比值限制
+     * @return 候选文档
+     */
+    public RoaringBitmap recallAdaptive(List<List<Pair<Integer, Float>>> segDisListList, RoaringBitmap filter,
+                                        AdaptiveRecall adaptive, int topn) {
+        //步骤一： 初始聚类
+        int segCount = segDisListList.size();
+        int minCandidates = Math.max(topn, adaptive.getMinCandidates());
+        int maxCandidates = Math.max(minCandidates, adaptive.getMaxCandidates());
+        int[] probes = new int[segCount];
+        RoaringBitmap[] segRbs = new RoaringBitmap[segCount];
+        long postings = 0;
+        for (int segNum = 0; segNum < segCount; segNum++) {
+            List<Pair<Integer, Float>> segDisList = segDisListList.get(segNum);
+            segRbs[segNum] = new RoaringBitmap();
+            int initCount = Math.min(Math.max(1, adaptive.getMinClusterTopn()), segDisList.size());
+            for (; probes[segNum] < initCount; probes[segNum]++) {
+                int clusterId = segDisList.get(probes[segNum]).getKey();
+                postings += postingLists.cardinality(postingLists.slot(segNum, clusterId));
+                segRbs[segNum] = widen(segRbs[segNum], segNum, clusterId);
+            }
+        }
+        RoaringBitmap resultRb = intersect(segRbs, filter);
+
+        //步骤二： 逐步扩大
+        while (resultRb.getCardinality() < minCandidates && postings < adaptive.getMaxPostings()) {
+            boolean underTopn = resultRb.getCardinality() < topn;
+            float[] ratios = new float[segCount];
+            List<Integer> widenable = new ArrayList<>(segCount);
+            for (int segNum = 0; segNum < segCount; segNum++) {
+                List<Pair<Integer, Float>> segDisList = segDisListList.get(segNum);
+                if (probes[segNum] >= segDisList.size()) {
+                    continue;
+                }
+
+                float nearest = Math.max(segDisList.get(0).getValue(), Float.MIN_NORMAL);
+                ratios[segNum] = segDisList.get(probes[segNum]).getValue() / nearest;
+                if (underTopn || ratios[segNum] <= adaptive.getGapRatio()) {
+                    widenable.add(segNum);
+                }
+            }
+            if (widenable.isEmpty()) {
+                break;
+            }
+            widenable.sort(Comparator.comparingDouble(segNum -> ratios[segNum]));
+
+            //每个向量段扩大后的并集只计算一次，减半重试时复用
+            RoaringBitmap[] nextRbs = new RoaringBitmap[segCount];
+            int widenCount = (widenable.size() + 1) / 2;
+            while (true) {
+                RoaringBitmap[] widened = segRbs.clone();
+                long widenedPostings = postings;
+                for (int i = 0; i < widenCount; i++) {
+                    int segNum = widenable.get(i);
+                    int clusterId = segDisListList.get(segNum).get(probes[segNum]).getKey();
+                    if (null == nextRbs[segNum]) {
+                        nextRbs[segNum] = widen(segRbs[segNum], segNum, clusterId);
+                    }
+                    widened[segNum] = nextRbs[segNum];
+                    widenedPostings += postingLists.cardinality(postingLists.slot(segNum, clusterId));
+                }
+
+                RoaringBitmap widenedRb = intersect(widened, filter);
+                if (1 == widenCount || widenedRb.getCardinality() <= maxCandidates) {
+                    for (int i = 0; i < widenCount; i++) {
+                        probes[widenable.get(i)]++;
+                    }
+                    segRbs = widened;
+                    postings = widenedPostings;
+                    resultRb = widenedRb;
+                    break;
+                }
+                widenCount /= 2;
+            }
+        }
+
+        log.info("自适应召回, 各段聚类数:{} 候选数:{} 倒排链文档数:{}", Arrays.toString(probes),
+                resultRb.getCardinality(), postings);
+        return resultRb;
+    }
+
+    /**
+     * @param segRb     向量段当前的并集，不修改
+     * @param segNum    向量段编号
+     * @param clusterId 增加的聚类编号
+     * @return 增加该聚类倒排链后的并集，倒排链为空时返回segRb
+     */
+    private RoaringBitmap widen(RoaringBitmap segRb, int segNum, int clusterId) {
+        RoaringBitmap union = postingLists.union(segNum, new int[]{clusterId});
+        if (null == union) {
+            return segRb;
+        }
+
+        union.or(segRb);
+        return union;
+    }
+
+    /**
+     * 各向量段的并集按基数从小到大求交集，再与过滤条件求交集并排除已删除文档，不修改入参
+     *
+     * @param segRbs 各向量段的并集
+     * @param filter 允许返回的文档，null表示不过滤
+     * @return 候选文档
+     */
+    private RoaringBitmap intersect(RoaringBitmap[] segRbs, RoaringBitmap filter) {
+        RoaringBitmap[] sorted = segRbs.clone();
+        Arrays.sort(sorted, Comparator.comparingLong(RoaringBitmap::getLongCardinality));
+        RoaringBitmap resultRb = null == filter ? sorted[0].clone() : RoaringBitmap.and(sorted[0], filter);
+        for (int i = 1; i < sorted.length && !resultRb.isEmpty(); i++) {
+            resultRb.and(sorted[i]);
+        }
+        if (!tombstones.isEmpty()) {
+            resultRb.andNot(tombstones);
+        }
+
+        return resultRb;
+    }
+
+    /**
+     * 段存储，段名记为name
+     * 1.倒排表、文档表、向量编码、向量、精确向量、量化编码、聚类半径写入 段名.seg
+     * 2.删除文档写入 段名.tomb，段落盘后只有删除文档会变化
+     *
+     * @param indexDir 索引目录，以/结尾
+     * @param name     段文件名
+     * @param limiter  写入限速，单位字节/秒，null表示不限速
+     * @return 存储成功
+     */
+    public boolean store(String indexDir, String name, RateLimiter limiter) {
+        long start = System.currentTimeMillis();
+        String segPath = indexDir + name + SEGMENT_SUFFIX;
+        SegmentFile.Writer writer = null;
+        try {
+            writer = SegmentFile.create(segPath, 2 + vectorStore.sectionCount(), limiter);
+            postingLists.write(writer);
+            vectorStore.write(writer);
+            writer.beginSection(SegmentFile.SECTION_CLUSTER_RADIUS);
+            for (float radius : clusterRadius) {
+                writer.buffer(4).putFloat(radius);
+            }
+            writer.close();
+        } catch (IOException e) {
+            log.error("段存储失败, segPath:{}", segPath, e);
+            if (null != writer) {
+                writer.abort();
+            }
+            return false;
+        }
+        log.info("段存储完毕, 段名:{} 文档数:{} 耗时:{}ms", name, docCount(), System.currentTimeMillis() - start);
+
+        if (!storeTombstones(indexDir, name)) {
+            return false;
+        }
+        this.name = name;
+        return true;
+    }
+
+    /**
+     * 只存储删除文档，已落盘段的倒排和向量不会变化
+     *
+     * @param indexDir 索引目录，以/结尾
+     * @param name     段文件名
+     * @return 存储成功
+     */
+    public boolean storeTombstones(String indexDir, String name) {
+        String tombPath = indexDir + name + TOMBSTONES_SUFFIX;
+        SegmentFile.Writer writer = null;
+        try {
+            RoaringBitmap optimized = tombstones.clone();
+            optimized.runOptimize();
+            ByteBuffer data = ByteBuffer.allocate(optimized.serializedSizeInBytes());
+            optimized.serialize(data);
+            data.flip();
+
+            writer = SegmentFile.create(tombPath, 1, null);
+            writer.beginSection(SegmentFile.SECTION_TOMBSTONES);
+            writer.write(data);
+            writer.close();
+            return true;
+        } catch (IOException e) {
+            log.error("删除文档存储失败, tombPath:{}", tombPath, e);
+            if (null != writer) {
+                writer.abort();
+            }
+            return false;
+        }
+    }
+
+    /**
+     * 加载段
+     *
+     * @param pq           量化模型
+     * @param indexDir     索引目录，以/结尾
+     * @param indexPrefix  段文件名
+     * @param mmapPostings 倒排链是否直接使用映射文件中的只读视图
+     * @param verify       是否校验各分区的CRC32
+     * @return 已发布状态的段，加载失败时返回null
+     */
+    public static IndexSegment load(EmPQ pq, String indexDir, String indexPrefix, boolean mmapPostings,
+                                    boolean verify) {
+        long start = System.currentTimeMillis();
+        String segPath = indexDir + indexPrefix + SEGMENT_SUFFIX;
+        PostingLists postingLists = new PostingLists(pq.getPqSegmentCount(), pq.getClusterCount());
+        VectorStore vectorStore = new VectorStore(pq.getVectorDimension(), pq.getPqSegmentCount());
+        float[] clusterRadius = new float[pq.getPqSegmentCount() * pq.getClusterCount()];
+        try (SegmentFile.Reader reader = SegmentFile.open(segPath)) {
+            if (verify) {
+                reader.verifyAll();
+            }
+            postingLists.read(reader, mmapPostings);
+            vectorStore.read(reader);
+
+            //没有聚类半径的段文件，半径视为无穷大，范围查询不做下界剪枝
+            if (reader.has(SegmentFile.SECTION_CLUSTER_RADIUS)) {
+                reader.map(SegmentFile.SECTION_CLUSTER_RADIUS).asFloatBuffer().get(clusterRadius);
+            } else {
+                Arrays.fill(clusterRadius, Float.POSITIVE_INFINITY);
+            }
+        } catch (IOException e) {
+            log.error("段加载失败，请重建索引, segPath:{}", segPath, e);
+            return null;
+        }
+
+        RoaringBitmap tombstones = new RoaringBitmap();
+        String tombPath = indexDir + indexPrefix + TOMBSTONES_SUFFIX;
+        if (new File(tombPath).exists()) {
+            try (SegmentFile.Reader reader = SegmentFile.open(tombPath)) {
+                if (verify) {
+                    reader.verifyAll();
+                }
+                tombstones = new ImmutableRoaringBitmap(reader.map(SegmentFile.SECTION_TOMBSTONES)).toRoaringBitmap();
+            } catch (IOException e) {
+                log.error("删除文档加载失败, tombPath:{}", tombPath, e);
+                return null;
+            }
+        }
+
+        IndexSegment segment = new IndexSegment(pq, postingLists, vectorStore, tombstones, clusterRadius);
+        segment.sealedDocCount = vectorStore.size();
+        segment.name = indexPrefix;
+        log.info("段加载完毕, 段名:{} 文档数:{} 删除文档数:{} 映射:{} 耗时:{}ms", indexPrefix, segment.docCount(),
+                tombstones.getCardinality(), mmapPostings, System.currentTimeMillis() - start);
+        return segment;
+    }
+}
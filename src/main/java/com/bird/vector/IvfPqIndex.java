@@ -0,0 +1,709 @@
+package com.bird.vector;
+
+import com.bird.vector.common.VectorTools;
+import com.bird.vector.utils.FolderTools;
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+import org.roaringbitmap.RoaringBitmap;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.IntStream;
+
+/**
+ * IVF-PQ向量索引
+ * 1.训练：向量先粗聚类为listCount个倒排列表，再用向量到所属列表中心的残差训练量化模型
+ * 2.写入：向量分到最近的列表，列表中记录文档id和残差的量化编码，原始向量存入VectorStore用于精确重排
+ * 3.查询：只探查离查询向量最近的nprobe个列表，每个列表用查询残差的距离表（ADC）打分，前rerankCount个文档计算精确距离
+ * 并发模型：查询持有读锁，写入、删除、加载持有写锁，量化在锁外完成
+ * 存储结构：索引目录下 前缀.ivf 一个索引文件，格式见SegmentFile
+ *
+ * @description：
+ * @author： liuxiangqian
+ * @date： 2024/10/15
+ */
+@Data
+@Slf4j
+public class IvfPqIndex implements VectorIndex {
+    /**
+     * IVF_SUFFIX：      索引文件后缀
+     * LIST_COUNT：      默认倒排列表数
+     * MAX_TRAIN_COUNT： 粗聚类和残差量化训练的最大向量数
+     * INIT_LIST_ROWS：  倒排列表的初始容量
+     */
+    public static final String IVF_SUFFIX = ".ivf";
+    public static final int LIST_COUNT = 1024;
+    public static final int MAX_TRAIN_COUNT = 200000;
+    private static final int INIT_LIST_ROWS = 16;
+
+    /**
+     * pq：             残差量化模型，需要用train训练或加载由train训练后存储的模型
+     * listCount：      倒排列表数
+     * coarseCenters：  各倒排列表的中心，未训练或未加载时为null
+     * listRadius：     各列表内向量到列表中心的最大距离，范围查询用于剪枝，删除后不收缩
+     * lists：          倒排列表
+     * vectorStore：    原始向量，用于精确重排、删除和范围查询
+     * rerankCount：    ADC打分后进行精确距离重排的文档数，0表示不重排
+     * bruteForceFilterDocs： 过滤条件的文档数不超过该值时，不探查列表，直接对过滤后的全部文档计算精确距离
+     * verifyChecksums：加载时是否校验索引文件各分区的CRC32
+     */
+    private EmPQ pq;
+    private int listCount;
+    private volatile float[][] coarseCenters;
+    private float[] listRadius;
+    private IvfList[] lists;
+    private VectorStore vectorStore;
+    private int rerankCount = EmIndex.RERANK_COUNT;
+    private int bruteForceFilterDocs = EmIndex.BRUTE_FORCE_FILTER_DOCS;
+    private boolean verifyChecksums = true;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    public IvfPqIndex(EmPQ pq) {
+        this(pq, LIST_COUNT);
+    }
+
+    public IvfPqIndex(EmPQ pq, int listCount) {
+        assert pq.getClusterCount() <= EmIndex.MAX_CODE_CLUSTER;
+        this.pq = pq;
+        this.listCount = listCount;
+        this.vectorStore = new VectorStore(pq.getVectorDimension(), pq.getPqSegmentCount());
+    }
+
+    /**
+     * 训练粗聚类中心和残差量化模型，已写入的向量会被清空
+     * 量化模型由调用方按原有方式存储（pq.store），粗聚类中心随索引文件存储
+     *
+     * @param vectors 训练向量
+     */
+    public void train(List<float[]> vectors) {
+        long start = System.currentTimeMillis();
+        List<float[]> samples = new ArrayList<>(vectors);
+        Collections.shuffle(samples);
+        if (samples.size() > MAX_TRAIN_COUNT) {
+            samples = new ArrayList<>(samples.subList(0, MAX_TRAIN_COUNT));
+        }
+
+        //步骤一： 粗聚类，训练向量先按度量处理
+        samples = pq.prepare(samples);
+        Kmeans kmeans = new Kmeans(listCount, pq.getMaxIterCount(), pq.getVectorDimension());
+        kmeans.train(samples);
+        float[][] centers = kmeans.getCenters().toArray(new float[0][]);
+        log.info("粗聚类训练完毕, 列表数:{} 耗时:{}秒", centers.length, (System.currentTimeMillis() - start) / 1000);
+
+        //步骤二： 残差量化
+        List<float[]> residuals = new ArrayList<>(samples.size());
+        for (float[] vector : samples) {
+            residuals.add(residual(vector, centers[nearestList(centers, vector)]));
+        }
+        pq.cluster(residuals);
+
+        lock.writeLock().lock();
+        try {
+            coarseCenters = centers;
+            listCount = centers.length;
+            listRadius = new float[listCount];
+            lists = new IvfList[listCount];
+            for (int i = 0; i < listCount; i++) {
+                lists[i] = new IvfList(pq.getPqSegmentCount());
+            }
+            vectorStore = new VectorStore(pq.getVectorDimension(), pq.getPqSegmentCount());
+        } finally {
+            lock.writeLock().unlock();
+        }
+        log.info("IVF-PQ训练完毕, 训练向量数:{} 耗时:{}秒", samples.size(), (System.currentTimeMillis() - start) / 1000);
+    }
+
+    public void addVector(List<float[]> vectors, List<Integer> ids) {
+        long start = System.currentTimeMillis();
+        assert vectors.size() == ids.size();
+
+        for (int i = 0; i < vectors.size(); i++) {
+            addVector(vectors.get(i), ids.get(i));
+
+            if (i % 100000 == 0) {
+                log.info("当前向量索引数:{}", i);
+            }
+        }
+
+        long took = (System.currentTimeMillis() - start) / 1000;
+        log.info("索引向量数：{} 索引耗时：{}秒", vectors.size(), took);
+    }
+
+    /**
+     * 写入一个向量，写入后立即可见
+     *
+     * @param vector 向量
+     * @param id     向量对应的文档id（一个id可以对应多个向量）
+     */
+    @Override
+    public void addVector(float[] vector, int id) {
+        float[][] centers = coarseCenters;
+        if (null == centers) {
+            log.error("IVF粗聚类未训练或未加载, id:{}", id);
+            return;
+        }
+
+        //步骤一： 按度量处理向量，分配列表并量化残差，不需要持有写锁
+        vector = pq.prepare(vector);
+        if (!pq.accepts(Collections.singletonList(vector), id)) {
+            return;
+        }
+        int list = nearestList(centers, vector);
+        float[] residual = residual(vector, centers[list]);
+        byte[] code = toCode(pq.quantize(residual));
+
+        //步骤二： 加入列表
+        lock.writeLock().lock();
+        try {
+            addRow(list, id, vector, residual, code);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 写入在持有写锁时直接进入倒排列表，不需要发布
+     */
+    @Override
+    public void refresh() {
+    }
+
+    /**
+     * 删除文档：按文档的原始向量找到所在列表并移除
+     *
+     * @param id 文档id
+     */
+    @Override
+    public void delete(int id) {
+        lock.writeLock().lock();
+        try {
+            removeRows(id);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 更新文档：旧向量的移除与新向量的写入在同一次写锁内完成
+     *
+     * @param vectors 文档的新向量
+     * @param id      文档id
+     */
+    @Override
+    public void update(List<float[]> vectors, int id) {
+        float[][] centers = coarseCenters;
+        if (null == centers) {
+            log.error("IVF粗聚类未训练或未加载, id:{}", id);
+            return;
+        }
+
+        vectors = pq.prepare(vectors);
+        if (!pq.accepts(vectors, id)) {
+            return;
+        }
+        int[] rowLists = new int[vectors.size()];
+        List<float[]> residuals = new ArrayList<>(vectors.size());
+        List<byte[]> codes = new ArrayList<>(vectors.size());
+        for (int i = 0; i < vectors.size(); i++) {
+            rowLists[i] = nearestList(centers, vectors.get(i));
+            float[] residual = residual(vectors.get(i), centers[rowLists[i]]);
+            residuals.add(residual);
+            codes.add(toCode(pq.quantize(residual)));
+        }
+
+        lock.writeLock().lock();
+        try {
+            removeRows(id);
+            for (int i = 0; i < vectors.size(); i++) {
+                addRow(rowLists[i], id, vectors.get(i), residuals.get(i), codes.get(i));
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 向量查询
+     * 步骤一： 选出离查询向量最近的nprobe个列表
+     * 步骤二： 各列表并行，用查询残差的距离表对列表内文档打分
+     * 步骤三： ADC距离最小的rerankCount个文档计算精确距离，选出topn
+     *
+     * @param vector 查询向量
+     * @param nprobe 探查的列表数
+     * @param topn   获取最相近向量个数
+     * @param filter 允许返回的文档，null表示不过滤
+     * @return 按相似程度从高到低的文档id和分数，分数按pq的度量换算
+     */
+    @Override
+    public SearchHits searchDocs(float[] vector, int nprobe, int topn, RoaringBitmap filter) {
+        float[] query = pq.prepare(vector);
+        return pq.getMetric().toScores(searchDistances(query, nprobe, topn, filter), query);
+    }
+
+    /**
+     * @return 按欧式距离升序的文档id和最小距离
+     */
+    private SearchHits searchDistances(float[] vector, int nprobe, int topn, RoaringBitmap filter) {
+        if ((null != filter && filter.isEmpty()) || null == coarseCenters) {
+            return new SearchHits(new int[0], new float[0]);
+        }
+
+        long start = System.currentTimeMillis();
+        lock.readLock().lock();
+        try {
+            //过滤条件很小时直接计算精确距离，不会因列表探查遗漏结果
+            if (null != filter && filter.getLongCardinality() <= bruteForceFilterDocs) {
+                TopkHeap heap = new TopkHeap(topn);
+                int[] blockOrder = pq.getSegmentOrder();
+                for (int id : filter.toArray()) {
+                    if (vectorStore.contains(id)) {
+                        heap.offer(id, vectorStore.minDistanceSquare(id, vector, blockOrder, heap.threshold()));
+                    }
+                }
+                return heap.toSqrtHits();
+            }
+
+            //步骤一： 探查的列表
+            int[] probes = nearestLists(vector, nprobe);
+
+            //步骤二： 各列表ADC打分
+            int capacity = rerankCount > 0 ? Math.max(topn, rerankCount) : topn;
+            TopkHeap adcHeap = Arrays.stream(probes).parallel()
+                    .mapToObj(list -> scanList(list, vector, capacity, filter))
+                    .reduce(TopkHeap::merge).orElseGet(() -> new TopkHeap(capacity));
+
+            //步骤三： 精确重排，同一文档的多个向量只保留一个
+            SearchHits hits;
+            if (rerankCount > 0) {
+                //精确距离分块计算，超过堆阈值即放弃
+                TopkHeap heap = new TopkHeap(topn);
+                int[] blockOrder = pq.getSegmentOrder();
+                for (int id : Arrays.stream(adcHeap.ids()).distinct().toArray()) {
+                    heap.offer(id, vectorStore.minDistanceSquare(id, vector, blockOrder, heap.threshold()));
+                }
+                hits = heap.toSqrtHits();
+            } else {
+                hits = distinctHits(adcHeap.toHits());
+            }
+
+            log.info("IVF查询完毕, 探查列表数:{} 结果数:{} 耗时:{}毫秒", probes.length, hits.size(),
+                    System.currentTimeMillis() - start);
+            return hits;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 范围查询：列表中心到查询向量的距离减去列表半径超过radius的列表整体跳过，其余文档计算精确距离
+     *
+     * @param vector 查询向量
+     * @param radius 分数阈值，L2为距离上限，相似度度量为相似度下限
+     * @return 按相似程度从高到低的所有文档id和分数
+     */
+    @Override
+    public SearchHits searchRadius(float[] vector, float radius) {
+        float[] query = pq.prepare(vector);
+        Metric metric = pq.getMetric();
+        return metric.toScores(radiusDistances(query, metric.distanceRadius(radius, query)), query);
+    }
+
+    /**
+     * @param radius 欧式距离阈值，负数时没有结果
+     * @return 按欧式距离升序的所有文档id和最小距离
+     */
+    private SearchHits radiusDistances(float[] vector, float radius) {
+        float[][] centers = coarseCenters;
+        if (null == centers || radius < 0) {
+            return new SearchHits(new int[0], new float[0]);
+        }
+
+        long start = System.currentTimeMillis();
+        lock.readLock().lock();
+        try {
+            RoaringBitmap candidates = new RoaringBitmap();
+            for (int list = 0; list < centers.length; list++) {
+                float centerDistance = (float) Math.sqrt(VectorTools.diffSquare(vector, centers[list]));
+                if (centerDistance - listRadius[list] <= radius) {
+                    IvfList ivfList = lists[list];
+                    candidates.addN(ivfList.ids, 0, ivfList.size);
+                }
+            }
+
+            int[] docIds = candidates.toArray();
+            float[] squares = new float[docIds.length];
+            IntStream.range(0, docIds.length).parallel()
+                    .forEach(i -> squares[i] = vectorStore.minDistanceSquare(docIds[i], vector));
+
+            float radiusSquare = radius * radius;
+            int count = 0;
+            for (float square : squares) {
+                count += square <= radiusSquare ? 1 : 0;
+            }
+            TopkHeap heap = new TopkHeap(count);
+            for (int i = 0; i < docIds.length; i++) {
+                if (squares[i] <= radiusSquare) {
+                    heap.offer(docIds[i], squares[i]);
+                }
+            }
+
+            SearchHits hits = heap.toSqrtHits();
+            log.info("范围查询完毕, 候选文档数:{} 结果数:{} 耗时:{}毫秒", docIds.length, hits.size(),
+                    System.currentTimeMillis() - start);
+            return hits;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 索引存储，写入 前缀.ivf：粗聚类中心、列表半径、倒排列表，以及VectorStore的文档表、向量、编码
+     *
+     * @param indexDir    索引目录
+     * @param indexPrefix 索引前缀
+     */
+    @Override
+    public void store(String indexDir, String indexPrefix) {
+        if (null == coarseCenters) {
+            log.error("IVF粗聚类未训练或未加载，不能存储");
+            return;
+        }
+
+        indexDir = FolderTools.folderAppendSlash(indexDir);
+        FolderTools.createFolder(indexDir);
+        String ivfPath = indexDir + indexPrefix + IVF_SUFFIX;
+        long start = System.currentTimeMillis();
+        SegmentFile.Writer writer = null;
+        lock.readLock().lock();
+        try {
+            int dimension = pq.getVectorDimension();
+            int codeLength = pq.getPqSegmentCount();
+            writer = SegmentFile.create(ivfPath, 3 + vectorStore.sectionCount(), null);
+
+            writer.beginSection(SegmentFile.SECTION_COARSE_CENTERS);
+            writer.buffer(8).putInt(listCount).putInt(dimension);
+            for (float[] center : coarseCenters) {
+                ByteBuffer buffer = writer.buffer(4 * dimension);
+                for (float value : center) {
+                    buffer.putFloat(value);
+                }
+            }
+
+            writer.beginSection(SegmentFile.SECTION_CLUSTER_RADIUS);
+            for (float radius : listRadius) {
+                writer.buffer(4).putFloat(radius);
+            }
+
+            writer.beginSection(SegmentFile.SECTION_IVF_LISTS);
+            writer.buffer(8).putInt(listCount).putInt(codeLength);
+            int rowOffset = 0;
+            writer.buffer(4).putInt(rowOffset);
+            for (IvfList ivfList : lists) {
+                rowOffset += ivfList.size;
+                writer.buffer(4).putInt(rowOffset);
+            }
+            for (IvfList ivfList : lists) {
+                for (int row = 0; row < ivfList.size; row++) {
+                    writer.buffer(4).putInt(ivfList.ids[row]);
+                }
+            }
+            for (IvfList ivfList : lists) {
+                int length = ivfList.size * codeLength;
+                if (length > SegmentFile.WRITE_BUFFER_SIZE) {
+                    writer.write(ByteBuffer.wrap(ivfList.codes, 0, length));
+                } else {
+                    writer.buffer(length).put(ivfList.codes, 0, length);
+                }
+            }
+
+            vectorStore.write(writer);
+            writer.close();
+            log.info("IVF索引存储完毕, 文档数:{} 向量数:{} 耗时:{}ms", vectorStore.size(), rowOffset,
+                    System.currentTimeMillis() - start);
+        } catch (IOException e) {
+            log.error("IVF索引存储失败, ivfPath:{}", ivfPath, e);
+            if (null != writer) {
+                writer.abort();
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 加载索引，加载失败时保留当前索引
+     *
+     * @param indexDir    索引目录
+     * @param indexPrefix 索引前缀
+     */
+    @Override
+    public void load(String indexDir, String indexPrefix) {
+        indexDir = FolderTools.folderAppendSlash(indexDir);
+        String ivfPath = indexDir + indexPrefix + IVF_SUFFIX;
+        long start = System.currentTimeMillis();
+        int dimension = pq.getVectorDimension();
+        int codeLength = pq.getPqSegmentCount();
+        float[][] centers;
+        float[] radius;
+        IvfList[] loaded;
+        VectorStore store = new VectorStore(dimension, codeLength);
+        try (SegmentFile.Reader reader = SegmentFile.open(ivfPath)) {
+            if (verifyChecksums) {
+                reader.verifyAll();
+            }
+
+            ByteBuffer centerBuffer = reader.map(SegmentFile.SECTION_COARSE_CENTERS);
+            int fileListCount = centerBuffer.getInt();
+            int fileDimension = centerBuffer.getInt();
+            if (fileDimension != dimension) {
+                throw new IOException("向量维数不一致, 文件:" + fileDimension + " 期望:" + dimension);
+            }
+            centers = new float[fileListCount][dimension];
+            for (float[] center : centers) {
+                for (int i = 0; i < dimension; i++) {
+                    center[i] = centerBuffer.getFloat();
+                }
+            }
+
+            radius = new float[fileListCount];
+            reader.map(SegmentFile.SECTION_CLUSTER_RADIUS).asFloatBuffer().get(radius);
+
+            ByteBuffer listBuffer = reader.map(SegmentFile.SECTION_IVF_LISTS);
+            IntBuffer ints = listBuffer.asIntBuffer();
+            if (ints.get() != fileListCount || ints.get() != codeLength) {
+                throw new IOException("倒排列表数或编码长度不一致");
+            }
+            int[] rowOffsets = new int[fileListCount + 1];
+            ints.get(rowOffsets);
+            int[] ids = new int[rowOffsets[fileListCount]];
+            ints.get(ids);
+            byte[] codes = new byte[ids.length * codeLength];
+            listBuffer.position(4 * (2 + rowOffsets.length + ids.length));
+            listBuffer.get(codes);
+
+            loaded = new IvfList[fileListCount];
+            for (int list = 0; list < fileListCount; list++) {
+                loaded[list] = new IvfList(codeLength,
+                        Arrays.copyOfRange(ids, rowOffsets[list], rowOffsets[list + 1]),
+                        Arrays.copyOfRange(codes, rowOffsets[list] * codeLength, rowOffsets[list + 1] * codeLength));
+            }
+
+            store.read(reader);
+        } catch (IOException | RuntimeException e) {
+            log.error("IVF索引加载失败，保留当前索引, ivfPath:{}", ivfPath, e);
+            return;
+        }
+
+        lock.writeLock().lock();
+        try {
+            coarseCenters = centers;
+            listCount = centers.length;
+            listRadius = radius;
+            lists = loaded;
+            vectorStore = store;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        log.info("IVF索引加载耗时:{}ms 列表数:{} 文档数:{}", System.currentTimeMillis() - start, centers.length,
+                store.size());
+    }
+
+    /**
+     * 单个列表内的ADC打分
+     *
+     * @param list     列表编号
+     * @param vector   查询向量
+     * @param capacity 保留的向量数
+     * @param filter   允许返回的文档，null表示不过滤
+     * @return 列表内ADC距离平方最小的capacity个向量，同一文档可能出现多次
+     */
+    private TopkHeap scanList(int list, float[] vector, int capacity, RoaringBitmap filter) {
+        float[] table = pq.distanceTable(residual(vector, coarseCenters[list]));
+        int codeLength = pq.getPqSegmentCount();
+        int clusterCount = pq.getClusterCount();
+
+        IvfList ivfList = lists[list];
+        int[] ids = ivfList.ids;
+        byte[] codes = ivfList.codes;
+        TopkHeap heap = new TopkHeap(capacity);
+        for (int row = 0, offset = 0; row < ivfList.size; row++, offset += codeLength) {
+            if (null != filter && !filter.contains(ids[row])) {
+                continue;
+            }
+
+            float square = 0.0f;
+            for (int segNum = 0; segNum < codeLength; segNum++) {
+                square += table[segNum * clusterCount + (codes[offset + segNum] & 0xFF)];
+            }
+            heap.offer(ids[row], square);
+        }
+
+        return heap;
+    }
+
+    /**
+     * @param vector 查询向量
+     * @param nprobe 列表数
+     * @return 离查询向量最近的nprobe个列表，按距离升序
+     */
+    private int[] nearestLists(float[] vector, int nprobe) {
+        float[][] centers = coarseCenters;
+        nprobe = Math.max(1, Math.min(nprobe, centers.length));
+        int[] topLists = new int[nprobe];
+        float[] topSquares = new float[nprobe];
+        int size = 0;
+        for (int list = 0; list < centers.length; list++) {
+            //插入排序保留距离最小的nprobe个列表
+            float square = VectorTools.diffSquare(vector, centers[list]);
+            if (size == nprobe && square >= topSquares[size - 1]) {
+                continue;
+            }
+
+            int pos = size < nprobe ? size++ : size - 1;
+            while (pos > 0 && topSquares[pos - 1] > square) {
+                topSquares[pos] = topSquares[pos - 1];
+                topLists[pos] = topLists[pos - 1];
+                pos--;
+            }
+            topSquares[pos] = square;
+            topLists[pos] = list;
+        }
+
+        return topLists;
+    }
+
+    private static int nearestList(float[][] centers, float[] vector) {
+        int nearest = 0;
+        float minSquare = Float.MAX_VALUE;
+        for (int list = 0; list < centers.length; list++) {
+            float square = VectorTools.diffSquare(vector, centers[list]);
+            if (square < minSquare) {
+                minSquare = square;
+                nearest = list;
+            }
+        }
+
+        return nearest;
+    }
+
+    private static float[] residual(float[] vector, float[] center) {
+        float[] residual = new float[vector.length];
+        for (int i = 0; i < vector.length; i++) {
+            residual[i] = vector[i] - center[i];
+        }
+
+        return residual;
+    }
+
+    private static byte[] toCode(int[] pqIds) {
+        byte[] code = new byte[pqIds.length];
+        for (int i = 0; i < pqIds.length; i++) {
+            code[i] = (byte) pqIds[i];
+        }
+
+        return code;
+    }
+
+    /**
+     * 写入一行，需要持有写锁
+     */
+    private void addRow(int list, int id, float[] vector, float[] residual, byte[] code) {
+        lists[list].add(id, code);
+        vectorStore.add(id, vector, code);
+
+        float norm = 0.0f;
+        for (float value : residual) {
+            norm += value * value;
+        }
+        listRadius[list] = Math.max(listRadius[list], (float) Math.sqrt(norm));
+    }
+
+    /**
+     * 移除文档的所有行，需要持有写锁
+     */
+    private void removeRows(int id) {
+        if (null == coarseCenters || !vectorStore.contains(id)) {
+            return;
+        }
+
+        for (float[] vector : vectorStore.getVectors(id)) {
+            lists[nearestList(coarseCenters, vector)].remove(id);
+        }
+        vectorStore.remove(id);
+    }
+
+    /**
+     * 对ADC结果去重，同一文档只保留距离最小的一个，距离转换为欧式距离
+     *
+     * @param hits 按ADC距离平方升序的结果
+     * @return 去重后的结果
+     */
+    private static SearchHits distinctHits(SearchHits hits) {
+        int[] ids = new int[hits.size()];
+        float[] scores = new float[hits.size()];
+        RoaringBitmap seen = new RoaringBitmap();
+        int count = 0;
+        for (int i = 0; i < hits.size(); i++) {
+            if (seen.checkedAdd(hits.getId(i))) {
+                ids[count] = hits.getId(i);
+                scores[count++] = (float) Math.sqrt(hits.getScore(i));
+            }
+        }
+
+        return new SearchHits(Arrays.copyOf(ids, count), Arrays.copyOf(scores, count));
+    }
+
+    /**
+     * 倒排列表：文档id与残差量化编码按行存放，容量不足时按1.5倍扩容
+     */
+    private static class IvfList {
+        private final int codeLength;
+        private int[] ids;
+        private byte[] codes;
+        private int size;
+
+        IvfList(int codeLength) {
+            this(codeLength, new int[INIT_LIST_ROWS], new byte[INIT_LIST_ROWS * codeLength]);
+            this.size = 0;
+        }
+
+        IvfList(int codeLength, int[] ids, byte[] codes) {
+            this.codeLength = codeLength;
+            this.ids = ids;
+            this.codes = codes;
+            this.size = ids.length;
+        }
+
+        void add(int id, byte[] code) {
+            if (size == ids.length) {
+                int capacity = Math.max(INIT_LIST_ROWS, size + (size >> 1));
+                ids = Arrays.copyOf(ids, capacity);
+                codes = Arrays.copyOf(codes, capacity * codeLength);
+            }
+            ids[size] = id;
+            System.arraycopy(code, 0, codes, size * codeLength, codeLength);
+            size++;
+        }
+
+        void remove(int id) {
+            int kept = 0;
+            for (int row = 0; row < size; row++) {
+                if (ids[row] == id) {
+                    continue;
+                }
+                if (kept != row) {
+                    ids[kept] = ids[row];
+                    System.arraycopy(codes, row * codeLength, codes, kept * codeLength, codeLength);
+                }
+                kept++;
+            }
+            size = kept;
+        }
+    }
+}
@@ -174,7 +174,8 @@ public class Kmeans {
         log.info("第{}个初始聚类中心：{}", centers.size(), rdCenter);
         for (int i = 1; i < clusterCount; i++) {
             //步骤二： 选择与centers中所有的中心距离的最大归一乘积作为新的中心  diffMultiply/diffSum
-            float maxUniformDiff = 0.0f;
+            //距离都小于1时（如规范化后的向量）归一乘积为负数，初始值不能取0
+            float maxUniformDiff = -Float.MAX_VALUE;
             float maxDiffSum = 0.0f;
             float[] newCenter = null;
             for (int j = 0; j < dataCount; j++) {
@@ -281,9 +282,10 @@ public class Kmeans {
 //        printCenter(centers);
 
         vectors.parallelStream().forEach(vector -> {
+            //只比较大小，用距离平方
             float[] dis = new float[clusterCount];
             for (int j = 0; j < clusterCount; j++) {
-                dis[j] = VectorTools.continentalDistance(vector, centers.get(j));
+                dis[j] = VectorTools.diffSquare(vector, centers.get(j));
             }
 
             int location = minContinentalDistance(dis);
@@ -0,0 +1,180 @@
+package com.bird.vector;
+
+import com.bird.vector.common.VectorTools;
+
+/**
+ * 向量相似度度量，随量化模型保存在param.data中，同一个集合的训练、写入和查询使用同一种度量
+ * 1.L2：           欧式距离，越小越相似
+ * 2.INNER_PRODUCT：内积，越大越相似，要求写入的向量已规范化（如Embedding开启normalizeEmbeddings），查询向量不要求，
+ * 长度不为1的写入向量由accepts检查后拒绝
+ * 3.COSINE：       余弦相似度，越大越相似，写入和查询时向量先规范化
+ * <p>
+ * 索引内部的聚类、量化、图和打分都按欧式距离平方计算：写入向量为单位向量时
+ * |q - x|^2 = |q|^2 + 1 - 2 * q·x，距离平方升序与内积降序完全一致，
+ * 因此各索引引擎不区分度量，只在入口处理向量、在出口把欧式距离换算为度量的分数
+ *
+ * @description：
+ * @author： liuxiangqian
+ * @date： 2024/10/22
+ */
+public enum Metric {
+    L2(0, false) {
+        @Override
+        public float score(float square, float queryNormSquare) {
+            return (float) Math.sqrt(square);
+        }
+
+        @Override
+        public float square(float score, float queryNormSquare) {
+            return score * score;
+        }
+
+        @Override
+        public float distanceRadius(float radius, float[] vector) {
+            return radius < 0 ? -1.0f : radius;
+        }
+    },
+
+    INNER_PRODUCT(1, true) {
+        @Override
+        public boolean accepts(float[] vector) {
+            return Math.abs(VectorTools.dot(vector, vector) - 1.0f) <= UNIT_NORM_TOLERANCE;
+        }
+
+        @Override
+        public float score(float square, float queryNormSquare) {
+            return (queryNormSquare + 1.0f - square) / 2.0f;
+        }
+
+        @Override
+        public float square(float score, float queryNormSquare) {
+            return queryNormSquare + 1.0f - 2.0f * score;
+        }
+    },
+
+    COSINE(2, true) {
+        @Override
+        public float[] prepare(float[] vector) {
+            return VectorTools.normalize(vector);
+        }
+
+        @Override
+        public float score(float square, float queryNormSquare) {
+            return 1.0f - square / 2.0f;
+        }
+
+        @Override
+        public float square(float score, float queryNormSquare) {
+            return 2.0f - 2.0f * score;
+        }
+    };
+
+    /**
+     * UNIT_NORM_TOLERANCE： INNER_PRODUCT写入向量长度平方与1的最大误差
+     */
+    public static final float UNIT_NORM_TOLERANCE = 1e-3f;
+
+    /**
+     * id：           写入量化模型的度量标识
+     * similarity：   分数是否为相似度（越大越相似），否则为距离（越小越相似）
+     */
+    private final int id;
+    private final boolean similarity;
+
+    Metric(int id, boolean similarity) {
+        this.id = id;
+        this.similarity = similarity;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public boolean isSimilarity() {
+        return similarity;
+    }
+
+    /**
+     * 写入、训练和查询前对向量的处理，COSINE规范化为单位向量，其他度量原样返回
+     *
+     * @param vector 向量
+     * @return 参与索引计算的向量，不修改入参
+     */
+    public float[] prepare(float[] vector) {
+        return vector;
+    }
+
+    /**
+     * 写入向量是否满足度量的要求：INNER_PRODUCT的分数换算只对单位向量成立，其他度量不限制
+     *
+     * @param vector 写入的向量（已经过prepare）
+     * @return 可以写入
+     */
+    public boolean accepts(float[] vector) {
+        return true;
+    }
+
+    /**
+     * @param square          查询向量与文档向量的欧式距离平方
+     * @param queryNormSquare 查询向量长度的平方（已经过prepare）
+     * @return 度量的分数
+     */
+    public abstract float score(float square, float queryNormSquare);
+
+    /**
+     * score的逆运算，用于把范围查询的分数阈值换算为欧式距离平方的阈值
+     *
+     * @param score           度量的分数
+     * @param queryNormSquare 查询向量长度的平方（已经过prepare）
+     * @return 欧式距离平方
+     */
+    public abstract float square(float score, float queryNormSquare);
+
+    /**
+     * 范围查询的阈值换算为欧式距离：L2为距离不超过radius，相似度度量为分数不小于radius
+     *
+     * @param radius 度量的分数阈值
+     * @param vector 查询向量（已经过prepare）
+     * @return 欧式距离阈值，阈值不可能满足时为负数
+     */
+    public float distanceRadius(float radius, float[] vector) {
+        float square = square(radius, VectorTools.dot(vector, vector));
+        return square < 0 ? -1.0f : (float) Math.sqrt(square);
+    }
+
+    /**
+     * 把索引返回的欧式距离换算为度量的分数，只对最终结果换算，顺序不变
+     *
+     * @param hits   按欧式距离升序的结果
+     * @param vector 查询向量（已经过prepare）
+     * @return 按相似程度从高到低的结果，L2原样返回
+     */
+    public SearchHits toScores(SearchHits hits, float[] vector) {
+        if (this == L2) {
+            return hits;
+        }
+
+        float queryNormSquare = VectorTools.dot(vector, vector);
+        float[] scores = new float[hits.size()];
+        for (int i = 0; i < scores.length; i++) {
+            float distance = hits.getScore(i);
+            scores[i] = score(distance * distance, queryNormSquare);
+        }
+
+        return new SearchHits(hits.getIds(), scores);
+    }
+
+    /**
+     * @param id 度量标识
+     * @return 对应的度量
+     */
+    public static Metric of(int id) {
+        for (Metric metric : values()) {
+            if (metric.id == id) {
+                return metric;
+            }
+        }
+
+        throw new IllegalArgumentException("未知的相似度度量:" + id);
+    }
+}
@@ -0,0 +1,277 @@
+package com.bird.vector;
+
+import org.roaringbitmap.FastAggregation;
+import org.roaringbitmap.ParallelAggregation;
+import org.roaringbitmap.RoaringBitmap;
+import org.roaringbitmap.buffer.BufferFastAggregation;
+import org.roaringbitmap.buffer.ImmutableRoaringBitmap;
+import org.roaringbitmap.buffer.MutableRoaringBitmap;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 倒排表：下标为 向量段编号 * 聚类数 + 聚类编号
+ * 1.构建阶段每个位置是堆内的RoaringBitmap
+ * 2.只读映射加载时每个位置是指向映射文件的ImmutableRoaringBitmap，不做反序列化也不占用java堆
+ * 3.映射位置被修改时，只把该位置拷贝为堆内的RoaringBitmap（写时复制）
+ * <p>
+ * 索引文件中的倒排表分区（小端序）：
+ * 向量段数(int) 聚类数(int)
+ * (段数 * 聚类数 + 1) * 位图起始偏移(long)   相对于分区起始位置，最后一个为结束偏移，长度为0的位置没有文档
+ * 按下标顺序排列的位图序列化数据
+ *
+ * @description：
+ * @author： liuxiangqian
+ * @date： 2024/10/15
+ */
+public class PostingLists {
+    /**
+     * HEADER_SIZE：       分区头字节数
+     * MAX_REGION_BYTES：  每段内存映射的最大字节数
+     * PARALLEL_UNION_CARDINALITY： 段内倒排链基数超过该值时，段内并集使用ParallelAggregation
+     */
+    private static final int HEADER_SIZE = 8;
+    private static final long MAX_REGION_BYTES = 1L << 30;
+    public static final long PARALLEL_UNION_CARDINALITY = 4000000L;
+
+    /**
+     * segmentCount： 向量段数
+     * clusterCount： 聚类数
+     * heapLists：    堆内倒排链
+     * mappedLists：  映射文件中的倒排链，某位置被写入后转为heapLists
+     */
+    private final int segmentCount;
+    private final int clusterCount;
+    private final RoaringBitmap[] heapLists;
+    private final ImmutableRoaringBitmap[] mappedLists;
+
+    public PostingLists(int segmentCount, int clusterCount) {
+        this.segmentCount = segmentCount;
+        this.clusterCount = clusterCount;
+        this.heapLists = new RoaringBitmap[segmentCount * clusterCount];
+        this.mappedLists = new ImmutableRoaringBitmap[segmentCount * clusterCount];
+    }
+
+    /**
+     * 倒排链在倒排表中的下标
+     *
+     * @param segNum    向量段编号
+     * @param clusterId 聚类编号
+     * @return 倒排表下标
+     */
+    public int slot(int segNum, int clusterId) {
+        return segNum * clusterCount + clusterId;
+    }
+
+    /**
+     * @return 倒排表大小：向量段数 * 聚类数
+     */
+    public int size() {
+        return heapLists.length;
+    }
+
+    public void add(int segNum, int clusterId, int id) {
+        mutable(slot(segNum, clusterId)).add(id);
+    }
+
+    public void remove(int segNum, int clusterId, int id) {
+        int slot = slot(segNum, clusterId);
+        if (null != heapLists[slot] || (null != mappedLists[slot] && mappedLists[slot].contains(id))) {
+            mutable(slot).remove(id);
+        }
+    }
+
+    /**
+     * @param slot 倒排表下标
+     * @return 倒排链的文档数
+     */
+    public long cardinality(int slot) {
+        if (null != heapLists[slot]) {
+            return heapLists[slot].getLongCardinality();
+        }
+
+        return null == mappedLists[slot] ? 0 : mappedLists[slot].getLongCardinality();
+    }
+
+    /**
+     * 一段内多个聚类的倒排链求并集，结果为新建的rb，不修改倒排链
+     *
+     * @param segNum     向量段编号
+     * @param clusterIds 聚类编号
+     * @return 并集，所有聚类都没有文档时返回null
+     */
+    public RoaringBitmap union(int segNum, int[] clusterIds) {
+        RoaringBitmap[] heapBitmaps = new RoaringBitmap[clusterIds.length];
+        ImmutableRoaringBitmap[] mappedBitmaps = new ImmutableRoaringBitmap[clusterIds.length];
+        int heapCount = 0;
+        int mappedCount = 0;
+        long cardinality = 0;
+        for (int clusterId : clusterIds) {
+            int slot = slot(segNum, clusterId);
+            if (null != heapLists[slot]) {
+                heapBitmaps[heapCount++] = heapLists[slot];
+                cardinality += heapLists[slot].getLongCardinality();
+            } else if (null != mappedLists[slot]) {
+                mappedBitmaps[mappedCount++] = mappedLists[slot];
+            }
+        }
+
+        if (0 == heapCount + mappedCount) {
+            return null;
+        }
+
+        RoaringBitmap result;
+        if (0 == heapCount) {
+            result = new RoaringBitmap();
+        } else if (1 == heapCount) {
+            result = heapBitmaps[0].clone();
+        } else {
+            RoaringBitmap[] bitmaps = Arrays.copyOf(heapBitmaps, heapCount);
+            result = cardinality < PARALLEL_UNION_CARDINALITY ? FastAggregation.or(bitmaps)
+                    : ParallelAggregation.or(bitmaps);
+        }
+
+        if (mappedCount > 0) {
+            ImmutableRoaringBitmap[] bitmaps = Arrays.copyOf(mappedBitmaps, mappedCount);
+            MutableRoaringBitmap mappedUnion = BufferFastAggregation.or(bitmaps);
+            result.or(mappedUnion.toRoaringBitmap());
+        }
+
+        return result;
+    }
+
+    /**
+     * 压缩堆内倒排链的连续区间，倒排表发布给查询线程之前调用
+     */
+    public void runOptimize() {
+        for (RoaringBitmap rb : heapLists) {
+            if (null != rb) {
+                rb.runOptimize();
+            }
+        }
+    }
+
+    /**
+     * 写入倒排表分区，位图偏移相对于分区起始位置，位图按块并行序列化
+     *
+     * @param writer 索引文件写入器
+     */
+    public void write(SegmentFile.Writer writer) throws IOException {
+        int slotCount = heapLists.length;
+        long[] offsets = new long[slotCount + 1];
+        offsets[0] = HEADER_SIZE + 8L * (slotCount + 1);
+        List<Integer> chunkStarts = new ArrayList<>();
+        chunkStarts.add(0);
+        long chunkStartOffset = offsets[0];
+        for (int slot = 0; slot < slotCount; slot++) {
+            int length = 0;
+            if (null != heapLists[slot]) {
+                length = heapLists[slot].serializedSizeInBytes();
+            } else if (null != mappedLists[slot]) {
+                length = mappedLists[slot].serializedSizeInBytes();
+            }
+            offsets[slot + 1] = offsets[slot] + length;
+
+            //按字节数划分序列化块，单个位图不拆分
+            if (offsets[slot + 1] - chunkStartOffset >= SegmentFile.CHUNK_BYTES && slot + 1 < slotCount) {
+                chunkStarts.add(slot + 1);
+                chunkStartOffset = offsets[slot + 1];
+            }
+        }
+        chunkStarts.add(slotCount);
+
+        writer.beginSection(SegmentFile.SECTION_POSTINGS);
+        writer.buffer(HEADER_SIZE).putInt(segmentCount).putInt(clusterCount);
+        for (long offset : offsets) {
+            writer.buffer(8).putLong(offset);
+        }
+
+        writer.writeChunks("倒排表", chunkStarts.size() - 1, chunk -> {
+            int startSlot = chunkStarts.get(chunk);
+            int endSlot = chunkStarts.get(chunk + 1);
+            ByteBuffer buffer = ByteBuffer.allocate((int) (offsets[endSlot] - offsets[startSlot]))
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            for (int slot = startSlot; slot < endSlot; slot++) {
+                if (null != heapLists[slot]) {
+                    heapLists[slot].serialize(buffer);
+                } else if (null != mappedLists[slot]) {
+                    mappedLists[slot].serialize(buffer);
+                }
+            }
+            buffer.flip();
+            return buffer;
+        });
+    }
+
+    /**
+     * 读取倒排表分区
+     *
+     * @param reader 索引文件读取器
+     * @param mmap   true：倒排链为指向映射文件的只读视图； false：倒排链反序列化到堆内
+     */
+    public void read(SegmentFile.Reader reader, boolean mmap) throws IOException {
+        long sectionStart = reader.offset(SegmentFile.SECTION_POSTINGS);
+        int slotCount = heapLists.length;
+        ByteBuffer header = reader.map(sectionStart, HEADER_SIZE + 8L * (slotCount + 1));
+        int fileSegmentCount = header.getInt();
+        int fileClusterCount = header.getInt();
+        if (fileSegmentCount != segmentCount || fileClusterCount != clusterCount) {
+            throw new IOException("倒排表与量化模型不一致, 索引:" + fileSegmentCount + "x" + fileClusterCount
+                    + " 模型:" + segmentCount + "x" + clusterCount);
+        }
+
+        long[] offsets = new long[slotCount + 1];
+        for (int i = 0; i <= slotCount; i++) {
+            offsets[i] = header.getLong();
+        }
+
+        //按位图边界划分映射区域，每个位图完整落在一个区域内
+        int regionStartSlot = 0;
+        while (regionStartSlot < slotCount) {
+            int regionEndSlot = regionStartSlot + 1;
+            while (regionEndSlot < slotCount
+                    && offsets[regionEndSlot + 1] - offsets[regionStartSlot] <= MAX_REGION_BYTES) {
+                regionEndSlot++;
+            }
+
+            long regionStart = offsets[regionStartSlot];
+            ByteBuffer region = reader.map(sectionStart + regionStart, offsets[regionEndSlot] - regionStart);
+            for (int slot = regionStartSlot; slot < regionEndSlot; slot++) {
+                heapLists[slot] = null;
+                mappedLists[slot] = null;
+                if (offsets[slot + 1] == offsets[slot]) {
+                    continue;
+                }
+
+                region.position((int) (offsets[slot] - regionStart));
+                ImmutableRoaringBitmap view = new ImmutableRoaringBitmap(region);
+                if (mmap) {
+                    mappedLists[slot] = view;
+                } else {
+                    heapLists[slot] = view.toRoaringBitmap();
+                }
+            }
+            regionStartSlot = regionEndSlot;
+        }
+    }
+
+    /**
+     * 获取可写的倒排链，映射位置先拷贝到堆内
+     *
+     * @param slot 倒排表下标
+     * @return 堆内倒排链
+     */
+    private RoaringBitmap mutable(int slot) {
+        if (null == heapLists[slot]) {
+            heapLists[slot] = null == mappedLists[slot] ? new RoaringBitmap() : mappedLists[slot].toRoaringBitmap();
+            mappedLists[slot] = null;
+        }
+
+        return heapLists[slot];
+    }
+}
@@ -0,0 +1,60 @@
+package com.bird.vector;
+
+/**
+ * 检索结果：按相似程度从高到低排列的文档id与分数，使用基本类型数组避免装箱
+ * 索引内部为欧式距离，对外的分数按量化模型的度量换算（见Metric）
+ *
+ * @description：
+ * @author： liuxiangqian
+ * @date： 2024/10/15
+ */
+public class SearchHits {
+    /**
+     * ids：     文档id
+     * scores：  文档与查询向量的距离或相似度，与ids一一对应
+     */
+    private final int[] ids;
+    private final float[] scores;
+
+    public SearchHits(int[] ids, float[] scores) {
+        assert ids.length == scores.length;
+        this.ids = ids;
+        this.scores = scores;
+    }
+
+    /**
+     * @return 结果数
+     */
+    public int size() {
+        return ids.length;
+    }
+
+    public int getId(int index) {
+        return ids[index];
+    }
+
+    public float getScore(int index) {
+        return scores[index];
+    }
+
+    public int[] getIds() {
+        return ids;
+    }
+
+    public float[] getScores() {
+        return scores;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("[");
+        for (int i = 0; i < ids.length; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append("(").append(ids[i]).append(",").append(scores[i]).append(")");
+        }
+
+        return sb.append("]").toString();
+    }
+}
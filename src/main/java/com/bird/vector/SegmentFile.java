@@ -0,0 +1,533 @@
+package com.bird.vector;
+
+import com.google.common.util.concurrent.RateLimiter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntFunction;
+import java.util.zip.CRC32;
+
+/**
+ * 索引文件格式（小端序），格式说明见 docs/索引格式.md
+ * 文件头：  MAGIC(int) 版本(int) 分区数(int) 分区表校验和(int)
+ * 分区表：  每个分区 类型(int) 保留(int) 起始偏移(long) 长度(long) CRC32(long)
+ * 分区：    按写入顺序排列，起始偏移按ALIGNMENT对齐，内容由分区类型决定
+ * <p>
+ * 写入时先写临时文件，顺序写分区，最后回填文件头并替换正式文件；读取时映射分区，按需校验
+ * 大分区可分块并行序列化，仍按顺序写出，校验和与单线程写入一致
+ *
+ * @description：
+ * @author： liuxiangqian
+ * @date： 2024/10/15
+ */
+@Slf4j
+public class SegmentFile {
+    /**
+     * MAGIC：             文件标识 "EMSG"
+     * VERSION：           当前格式版本，读取时拒绝更高的版本
+     * BASE_VERSION：      文件默认写入的版本，只含旧版本能正确解释的分区时使用，旧版本仍可读取
+     * ENCODED_VECTORS_VERSION：向量分区不是float（INT8、FLOAT16）时写入的版本，旧版本会把编码行误读为float，必须拒绝
+     * HEADER_SIZE：       文件头字节数
+     * ENTRY_SIZE：        分区表每项字节数
+     * ALIGNMENT：         分区起始偏移的对齐字节数
+     * WRITE_BUFFER_SIZE： 写文件缓冲区大小
+     * VERIFY_CHUNK_SIZE： 校验时每次映射的字节数
+     */
+    public static final int MAGIC = 0x454D5347;
+    public static final int VERSION = 2;
+    public static final int BASE_VERSION = 1;
+    public static final int ENCODED_VECTORS_VERSION = 2;
+    public static final int HEADER_SIZE = 16;
+    public static final int ENTRY_SIZE = 32;
+    public static final int ALIGNMENT = 64;
+    public static final int WRITE_BUFFER_SIZE = 8 * 1024 * 1024;
+    private static final int VERIFY_CHUNK_SIZE = 64 * 1024 * 1024;
+
+    /**
+     * CHUNK_BYTES：        并行序列化时每块的目标字节数
+     * MAX_PENDING_CHUNKS： 同时在序列化或等待写出的最大块数，限制写入时的内存占用
+     * STORE_EXECUTOR：     分块序列化的线程池，所有写入器共用
+     */
+    public static final int CHUNK_BYTES = 4 * 1024 * 1024;
+    private static final int PARALLELISM = Runtime.getRuntime().availableProcessors();
+    private static final int MAX_PENDING_CHUNKS = 2 * PARALLELISM;
+    private static final ExecutorService STORE_EXECUTOR = new ThreadPoolExecutor(PARALLELISM, PARALLELISM,
+            60L, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+        Thread thread = new Thread(runnable, "em-store");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * 分区类型
+     * SECTION_POSTINGS：   倒排表
+     * SECTION_DOC_TABLE：  文档表：文档id、起始行、向量数
+     * SECTION_VECTORS：    向量，按文档表顺序连续存放的float
+     * SECTION_CODES：      量化编码，每行pq段数个byte
+     * SECTION_TOMBSTONES： 删除文档位图
+     * SECTION_TEXTS：      文档文本
+     * SECTION_CLUSTER_RADIUS： 各聚类内向量到聚类中心的最大距离，用于范围查询的距离下界
+     * SECTION_COARSE_CENTERS： IVF粗聚类中心
+     * SECTION_IVF_LISTS：      IVF倒排列表：各列表的文档id和残差量化编码
+     * SECTION_HNSW_NODES：     HNSW节点表：图参数、入口节点、各节点的文档id
+     * SECTION_HNSW_LEVEL0：    HNSW第0层邻接表，每个节点定长
+     * SECTION_HNSW_UPPER：     HNSW上层邻接表，只包含层数大于0的节点
+     * SECTION_VECTOR_ENCODING：向量分区的编码方式，缺失时为float
+     * SECTION_EXACT_VECTORS：  向量分区有损编码时保留的float向量，用于topn的精确复核
+     * SECTION_DOC_CENTROIDS：  向量数较多的文档的向量中心和半径，打分时整文档剪枝
+     */
+    public static final int SECTION_POSTINGS = 1;
+    public static final int SECTION_DOC_TABLE = 2;
+    public static final int SECTION_VECTORS = 3;
+    public static final int SECTION_CODES = 4;
+    public static final int SECTION_TOMBSTONES = 5;
+    public static final int SECTION_TEXTS = 6;
+    public static final int SECTION_CLUSTER_RADIUS = 7;
+    public static final int SECTION_COARSE_CENTERS = 8;
+    public static final int SECTION_IVF_LISTS = 9;
+    public static final int SECTION_HNSW_NODES = 10;
+    public static final int SECTION_HNSW_LEVEL0 = 11;
+    public static final int SECTION_HNSW_UPPER = 12;
+    public static final int SECTION_VECTOR_ENCODING = 13;
+    public static final int SECTION_EXACT_VECTORS = 14;
+    public static final int SECTION_DOC_CENTROIDS = 15;
+
+    /**
+     * 创建文件写入器
+     *
+     * @param filePath     文件路径
+     * @param sectionCount 分区数
+     * @param limiter      写入限速，单位字节/秒，null表示不限速
+     * @return 写入器
+     * @throws IOException
+     */
+    public static Writer create(String filePath, int sectionCount, RateLimiter limiter) throws IOException {
+        return new Writer(filePath, sectionCount, limiter);
+    }
+
+    /**
+     * 打开文件读取器，校验文件头和分区表
+     *
+     * @param filePath 文件路径
+     * @return 读取器
+     * @throws IOException 文件不存在或格式有误
+     */
+    public static Reader open(String filePath) throws IOException {
+        return new Reader(filePath);
+    }
+
+    /**
+     * 顺序写入分区，每个分区内通过buffer(need)获取写缓冲区
+     */
+    public static class Writer implements Closeable {
+        private final File file;
+        private final File tmpFile;
+        private final RandomAccessFile raf;
+        private final FileChannel fc;
+        private final RateLimiter limiter;
+        private final ByteBuffer buffer;
+        private final CRC32 crc = new CRC32();
+        private final int[] types;
+        private final long[] offsets;
+        private final long[] lengths;
+        private final long[] crcs;
+        private int sectionCount;
+        private boolean inSection;
+        private long position;
+        private boolean closed;
+        private int version = BASE_VERSION;
+
+        private Writer(String filePath, int sectionCount, RateLimiter limiter) throws IOException {
+            this.file = new File(filePath);
+            this.tmpFile = new File(filePath + ".tmp");
+            if (tmpFile.exists()) {
+                tmpFile.delete();
+            }
+            this.raf = new RandomAccessFile(tmpFile, "rw");
+            this.fc = raf.getChannel();
+            this.limiter = limiter;
+            this.buffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            this.types = new int[sectionCount];
+            this.offsets = new long[sectionCount];
+            this.lengths = new long[sectionCount];
+            this.crcs = new long[sectionCount];
+            this.position = HEADER_SIZE + (long) ENTRY_SIZE * sectionCount;
+            fc.position(position);
+        }
+
+        /**
+         * 文件内容需要不低于该版本的读取方才能正确解释时调用，文件头取调用过的最大版本
+         *
+         * @param minVersion 读取方需要的最低版本
+         */
+        public void requireVersion(int minVersion) {
+            version = Math.max(version, minVersion);
+        }
+
+        /**
+         * 开始一个新分区，上一个分区自动结束
+         *
+         * @param type 分区类型
+         */
+        public void beginSection(int type) throws IOException {
+            if (inSection) {
+                endSection();
+            }
+            if (sectionCount == types.length) {
+                throw new IOException("分区数超过创建时声明的数量:" + types.length);
+            }
+
+            long padding = (ALIGNMENT - position % ALIGNMENT) % ALIGNMENT;
+            for (int i = 0; i < padding; i++) {
+                buffer.put((byte) 0);
+            }
+            flush();
+
+            types[sectionCount] = type;
+            offsets[sectionCount] = position;
+            crc.reset();
+            inSection = true;
+        }
+
+        /**
+         * @param need 需要写入的字节数，不能超过WRITE_BUFFER_SIZE
+         * @return 剩余空间不少于need的写缓冲区
+         */
+        public ByteBuffer buffer(int need) throws IOException {
+            if (buffer.remaining() < need) {
+                flush();
+            }
+
+            return buffer;
+        }
+
+        /**
+         * 写入一段较大的数据
+         *
+         * @param data 数据，从position写到limit
+         */
+        public void write(ByteBuffer data) throws IOException {
+            flush();
+            if (null != limiter && data.hasRemaining()) {
+                limiter.acquire(data.remaining());
+            }
+            if (inSection) {
+                crc.update(data.duplicate());
+            }
+            while (data.hasRemaining()) {
+                position += fc.write(data);
+            }
+        }
+
+        /**
+         * 并行序列化、顺序写出：各块在线程池中序列化到独立的缓冲区，本线程按块顺序写出并计算校验和，
+         * 每完成10%输出一次进度
+         *
+         * @param label      进度日志中的名称
+         * @param chunkCount 块数
+         * @param serializer 块编号 -> 序列化后待写出的数据，会被多个线程同时调用
+         */
+        public void writeChunks(String label, int chunkCount, IntFunction<ByteBuffer> serializer) throws IOException {
+            long start = System.currentTimeMillis();
+            Deque<Future<ByteBuffer>> pending = new ArrayDeque<>(MAX_PENDING_CHUNKS);
+            int submitted = 0;
+            int reportedPercent = 0;
+            try {
+                for (int chunk = 0; chunk < chunkCount; chunk++) {
+                    while (submitted < chunkCount && pending.size() < MAX_PENDING_CHUNKS) {
+                        int finalChunk = submitted++;
+                        pending.add(STORE_EXECUTOR.submit(() -> serializer.apply(finalChunk)));
+                    }
+                    write(pending.poll().get());
+
+                    int percent = (int) ((chunk + 1) * 100L / chunkCount);
+                    if (percent / 10 > reportedPercent / 10) {
+                        reportedPercent = percent;
+                        log.info("{}写入进度:{}% 耗时:{}ms", label, percent, System.currentTimeMillis() - start);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException(label + "写入被中断");
+            } catch (ExecutionException e) {
+                throw new IOException(label + "序列化失败", e.getCause());
+            } finally {
+                for (Future<ByteBuffer> future : pending) {
+                    future.cancel(true);
+                }
+            }
+        }
+
+        private void endSection() throws IOException {
+            flush();
+            lengths[sectionCount] = position - offsets[sectionCount];
+            crcs[sectionCount] = crc.getValue();
+            sectionCount++;
+            inSection = false;
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            if (null != limiter && buffer.hasRemaining()) {
+                limiter.acquire(buffer.remaining());
+            }
+            if (inSection) {
+                crc.update(buffer.duplicate());
+            }
+            while (buffer.hasRemaining()) {
+                position += fc.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        /**
+         * 结束写入：回填文件头和分区表，落盘后替换正式文件
+         */
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+
+            try {
+                if (inSection) {
+                    endSection();
+                }
+                if (sectionCount != types.length) {
+                    throw new IOException("分区数不足, 声明:" + types.length + " 实际:" + sectionCount);
+                }
+
+                ByteBuffer table = ByteBuffer.allocate(ENTRY_SIZE * sectionCount).order(ByteOrder.LITTLE_ENDIAN);
+                for (int i = 0; i < sectionCount; i++) {
+                    table.putInt(types[i]).putInt(0).putLong(offsets[i]).putLong(lengths[i]).putLong(crcs[i]);
+                }
+                table.flip();
+                CRC32 tableCrc = new CRC32();
+                tableCrc.update(table.duplicate());
+
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+                header.putInt(MAGIC).putInt(version).putInt(sectionCount).putInt((int) tableCrc.getValue());
+                header.flip();
+                writeFully(fc, header, 0);
+                writeFully(fc, table, HEADER_SIZE);
+                fc.force(false);
+            } finally {
+                fc.close();
+                raf.close();
+            }
+
+            Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        /**
+         * 放弃写入，删除临时文件
+         */
+        public void abort() {
+            closed = true;
+            try {
+                fc.close();
+                raf.close();
+            } catch (IOException e) {
+                log.error("关闭临时文件失败:{}", tmpFile, e);
+            }
+            tmpFile.delete();
+        }
+
+        private static void writeFully(FileChannel fc, ByteBuffer data, long position) throws IOException {
+            while (data.hasRemaining()) {
+                position += fc.write(data, position);
+            }
+        }
+    }
+
+    /**
+     * 读取文件头和分区表，按需映射分区
+     */
+    public static class Reader implements Closeable {
+        private final String filePath;
+        private final RandomAccessFile raf;
+        private final FileChannel fc;
+        private final int[] types;
+        private final long[] offsets;
+        private final long[] lengths;
+        private final long[] crcs;
+
+        private Reader(String filePath) throws IOException {
+            this.filePath = filePath;
+            this.raf = new RandomAccessFile(filePath, "r");
+            this.fc = raf.getChannel();
+            try {
+                ByteBuffer header = readFully(0, HEADER_SIZE);
+                int magic = header.getInt();
+                int version = header.getInt();
+                int sectionCount = header.getInt();
+                int tableCrc = header.getInt();
+                if (magic != MAGIC) {
+                    throw new IOException("文件格式有误:" + filePath);
+                }
+                if (version > VERSION) {
+                    throw new IOException("不支持的文件版本:" + version + " 文件:" + filePath);
+                }
+                if (sectionCount < 0 || HEADER_SIZE + (long) ENTRY_SIZE * sectionCount > fc.size()) {
+                    throw new IOException("分区表有误:" + filePath);
+                }
+
+                ByteBuffer table = readFully(HEADER_SIZE, ENTRY_SIZE * sectionCount);
+                CRC32 crc = new CRC32();
+                crc.update(table.duplicate());
+                if ((int) crc.getValue() != tableCrc) {
+                    throw new IOException("分区表校验失败:" + filePath);
+                }
+
+                this.types = new int[sectionCount];
+                this.offsets = new long[sectionCount];
+                this.lengths = new long[sectionCount];
+                this.crcs = new long[sectionCount];
+                for (int i = 0; i < sectionCount; i++) {
+                    types[i] = table.getInt();
+                    table.getInt();
+                    offsets[i] = table.getLong();
+                    lengths[i] = table.getLong();
+                    crcs[i] = table.getLong();
+                    if (offsets[i] + lengths[i] > fc.size()) {
+                        throw new IOException("分区超出文件长度:" + filePath);
+                    }
+                }
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+        }
+
+        public boolean has(int type) {
+            return indexOf(type) >= 0;
+        }
+
+        /**
+         * @param type 分区类型
+         * @return 分区在文件中的起始偏移
+         */
+        public long offset(int type) throws IOException {
+            return offsets[require(type)];
+        }
+
+        /**
+         * @param type 分区类型
+         * @return 分区字节数
+         */
+        public long length(int type) throws IOException {
+            return lengths[require(type)];
+        }
+
+        /**
+         * 映射整个分区，分区不能超过2GB
+         *
+         * @param type 分区类型
+         * @return 小端序的只读映射
+         */
+        public ByteBuffer map(int type) throws IOException {
+            int index = require(type);
+            if (lengths[index] > Integer.MAX_VALUE) {
+                throw new IOException("分区超过2GB, 需要分段映射, 类型:" + type);
+            }
+
+            return map(offsets[index], lengths[index]);
+        }
+
+        /**
+         * @param position 文件中的起始偏移
+         * @param size     映射字节数
+         * @return 小端序的只读映射
+         */
+        public MappedByteBuffer map(long position, long size) throws IOException {
+            MappedByteBuffer mbb = fc.map(FileChannel.MapMode.READ_ONLY, position, size);
+            mbb.order(ByteOrder.LITTLE_ENDIAN);
+
+            return mbb;
+        }
+
+        /**
+         * 校验分区的CRC32
+         *
+         * @param type 分区类型
+         * @throws IOException 校验失败
+         */
+        public void verify(int type) throws IOException {
+            int index = require(type);
+            CRC32 crc = new CRC32();
+            for (long done = 0; done < lengths[index]; done += VERIFY_CHUNK_SIZE) {
+                long size = Math.min(VERIFY_CHUNK_SIZE, lengths[index] - done);
+                crc.update(fc.map(FileChannel.MapMode.READ_ONLY, offsets[index] + done, size));
+            }
+            if (crc.getValue() != crcs[index]) {
+                throw new IOException("分区校验失败, 类型:" + type + " 文件:" + filePath);
+            }
+        }
+
+        /**
+         * 校验所有分区
+         */
+        public void verifyAll() throws IOException {
+            for (int type : types) {
+                verify(type);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            fc.close();
+            raf.close();
+        }
+
+        private int indexOf(int type) {
+            for (int i = 0; i < types.length; i++) {
+                if (types[i] == type) {
+                    return i;
+                }
+            }
+
+            return -1;
+        }
+
+        private int require(int type) throws IOException {
+            int index = indexOf(type);
+            if (index < 0) {
+                throw new IOException("缺少分区, 类型:" + type + " 文件:" + filePath);
+            }
+
+            return index;
+        }
+
+        private ByteBuffer readFully(long position, int length) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+            while (buffer.hasRemaining()) {
+                if (fc.read(buffer, position + buffer.position()) < 0) {
+                    throw new IOException("文件长度不足:" + filePath);
+                }
+            }
+            buffer.flip();
+
+            return buffer;
+        }
+    }
+}
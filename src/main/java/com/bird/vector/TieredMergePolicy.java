@@ -0,0 +1,103 @@
+package com.bird.vector;
+
+import lombok.Data;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * 分层合并策略
+ * 1.段按文档数分层：不超过minSegmentDocs的为第0层，之后每大mergeFactor倍升一层
+ * 2.同一层的段达到mergeFactor个时，合并该层最小的mergeFactor个段，优先合并低层
+ * 3.删除文档比例超过maxDeletedRatio的段单独整理
+ * 4.合并结果超过maxMergeDocs的段不再参与合并，只做删除整理
+ *
+ * @description：
+ * @author： liuxiangqian
+ * @date： 2024/10/15
+ */
+@Data
+public class TieredMergePolicy {
+    /**
+     * MERGE_FACTOR：      每层段数达到该值时合并
+     * MIN_SEGMENT_DOCS：  第0层的最大文档数
+     * MAX_MERGE_DOCS：    合并结果的最大文档数
+     * MAX_DELETED_RATIO： 删除文档比例超过该值时整理
+     */
+    public static final int MERGE_FACTOR = 10;
+    public static final int MIN_SEGMENT_DOCS = 10000;
+    public static final int MAX_MERGE_DOCS = 5000000;
+    public static final double MAX_DELETED_RATIO = 0.3;
+
+    private int mergeFactor = MERGE_FACTOR;
+    private int minSegmentDocs = MIN_SEGMENT_DOCS;
+    private int maxMergeDocs = MAX_MERGE_DOCS;
+    private double maxDeletedRatio = MAX_DELETED_RATIO;
+
+    /**
+     * 选出下一次需要合并的段
+     *
+     * @param segments 已发布的段
+     * @return 需要合并的段，不需要合并时为空列表
+     */
+    public List<IndexSegment> findMerge(List<IndexSegment> segments) {
+        //步骤一： 按层分组，层内按文档数升序
+        List<List<IndexSegment>> tiers = new ArrayList<>();
+        for (IndexSegment segment : segments) {
+            int docCount = segment.docCount();
+            if (docCount >= maxMergeDocs) {
+                continue;
+            }
+
+            int tier = tier(docCount);
+            while (tiers.size() <= tier) {
+                tiers.add(new ArrayList<>());
+            }
+            tiers.get(tier).add(segment);
+        }
+
+        //步骤二： 从低层开始，段数达到mergeFactor的层合并最小的mergeFactor个段
+        for (List<IndexSegment> tierSegments : tiers) {
+            if (tierSegments.size() < mergeFactor) {
+                continue;
+            }
+
+            tierSegments.sort(Comparator.comparingInt(IndexSegment::docCount));
+            List<IndexSegment> candidates = new ArrayList<>(mergeFactor);
+            long mergedDocs = 0;
+            for (IndexSegment segment : tierSegments) {
+                if (candidates.size() == mergeFactor || mergedDocs + segment.docCount() > maxMergeDocs) {
+                    break;
+                }
+                candidates.add(segment);
+                mergedDocs += segment.docCount();
+            }
+            if (candidates.size() > 1) {
+                return candidates;
+            }
+        }
+
+        //步骤三： 删除文档过多的段单独整理
+        for (IndexSegment segment : segments) {
+            int docCount = segment.docCount();
+            if (docCount > 0 && segment.getTombstones().getCardinality() > docCount * maxDeletedRatio) {
+                return Collections.singletonList(segment);
+            }
+        }
+
+        return Collections.emptyList();
+    }
+
+    private int tier(int docCount) {
+        int tier = 0;
+        long tierDocs = minSegmentDocs;
+        while (docCount > tierDocs) {
+            tierDocs *= mergeFactor;
+            tier++;
+        }
+
+        return tier;
+    }
+}
@@ -0,0 +1,161 @@
+package com.bird.vector;
+
+import java.util.Arrays;
+
+/**
+ * 定长大顶堆：保留距离最小的k个文档，堆顶为当前第k小的距离
+ * 每个线程持有自己的堆，最后合并，不需要加锁
+ *
+ * @description：
+ * @author： liuxiangqian
+ * @date： 2024/10/15
+ */
+public class TopkHeap {
+    /**
+     * capacity： 最多保留的文档数
+     * size：     当前保留的文档数
+     * ids：      堆中的文档id
+     * scores：   堆中的距离，与ids一一对应
+     */
+    private final int capacity;
+    private int size;
+    private final int[] ids;
+    private final float[] scores;
+
+    public TopkHeap(int capacity) {
+        this.capacity = capacity;
+        this.ids = new int[capacity];
+        this.scores = new float[capacity];
+    }
+
+    /**
+     * 尝试放入一个文档
+     *
+     * @param id    文档id
+     * @param score 距离
+     * @return 是否被保留
+     */
+    public boolean offer(int id, float score) {
+        if (size < capacity) {
+            ids[size] = id;
+            scores[size] = score;
+            siftUp(size++);
+            return true;
+        }
+
+        if (capacity == 0 || score >= scores[0]) {
+            return false;
+        }
+
+        ids[0] = id;
+        scores[0] = score;
+        siftDown(0);
+        return true;
+    }
+
+    /**
+     * @return 进入堆需要小于的距离，堆未满时为Float.MAX_VALUE
+     */
+    public float threshold() {
+        return size < capacity ? Float.MAX_VALUE : scores[0];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * 合并另一个堆，返回自身
+     *
+     * @param other 另一个堆
+     * @return 合并后的堆
+     */
+    public TopkHeap merge(TopkHeap other) {
+        for (int i = 0; i < other.size; i++) {
+            offer(other.ids[i], other.scores[i]);
+        }
+
+        return this;
+    }
+
+    /**
+     * @return 堆中的文档id，无序
+     */
+    public int[] ids() {
+        return Arrays.copyOf(ids, size);
+    }
+
+    /**
+     * @return 按距离升序排列的结果，不改变堆本身
+     */
+    public SearchHits toHits() {
+        int[] sortedIds = Arrays.copyOf(ids, size);
+        float[] sortedScores = Arrays.copyOf(scores, size);
+        //堆排序：依次把堆顶（最大值）交换到末尾
+        for (int end = size - 1; end > 0; end--) {
+            swap(sortedIds, sortedScores, 0, end);
+            siftDown(sortedIds, sortedScores, 0, end);
+        }
+
+        return new SearchHits(sortedIds, sortedScores);
+    }
+
+    /**
+     * 堆中为距离平方时使用：打分和比较都用平方，只对最终结果开方
+     *
+     * @return 按距离升序排列、距离已开方的结果
+     */
+    public SearchHits toSqrtHits() {
+        SearchHits hits = toHits();
+        float[] scores = hits.getScores();
+        for (int i = 0; i < scores.length; i++) {
+            scores[i] = (float) Math.sqrt(scores[i]);
+        }
+
+        return hits;
+    }
+
+    private void siftUp(int index) {
+        while (index > 0) {
+            int parent = (index - 1) >>> 1;
+            if (scores[parent] >= scores[index]) {
+                break;
+            }
+            swap(ids, scores, parent, index);
+            index = parent;
+        }
+    }
+
+    private void siftDown(int index) {
+        siftDown(ids, scores, index, size);
+    }
+
+    private static void siftDown(int[] ids, float[] scores, int index, int size) {
+        while (true) {
+            int left = 2 * index + 1;
+            if (left >= size) {
+                break;
+            }
+
+            int largest = left;
+            int right = left + 1;
+            if (right < size && scores[right] > scores[left]) {
+                largest = right;
+            }
+            if (scores[index] >= scores[largest]) {
+                break;
+            }
+            swap(ids, scores, index, largest);
+            index = largest;
+        }
+    }
+
+    private static void swap(int[] ids, float[] scores, int i, int j) {
+        int id = ids[i];
+        ids[i] = ids[j];
+        ids[j] = id;
+        float score = scores[i];
+        scores[i] = scores[j];
+        scores[j] = score;
+    }
+}
@@ -0,0 +1,231 @@
+package com.bird.vector;
+
+import com.bird.vector.common.VectorTools;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 索引向量的存储编码，每个向量编码为定长的一行字节（小端序）
+ * 1.FLOAT32：维数 * float，无损
+ * 2.INT8：   最小值(float) 步长(float) 维数 * 无符号byte，按向量各自的最小值和最大值线性量化，占用约为float的1/4
+ * 3.FLOAT16：维数 * 半精度浮点数（IEEE binary16），相对误差约为2^-11，占用为float的1/2，排序与float几乎一致
+ * <p>
+ * INT8按向量而不是按维度取量化范围，不需要训练，增量写入和段合并时可以直接编码
+ * INT8误差较大，需要保留float向量复核topn；FLOAT16误差很小，不需要复核
+ *
+ * @description：
+ * @author： liuxiangqian
+ * @date： 2024/10/21
+ */
+public enum VectorEncoding {
+    FLOAT32(0, false) {
+        @Override
+        public int rowBytes(int dimension) {
+            return 4 * dimension;
+        }
+
+        @Override
+        public void encode(float[] vector, ByteBuffer buffer, int offset) {
+            for (int i = 0; i < vector.length; i++, offset += 4) {
+                buffer.putFloat(offset, vector[i]);
+            }
+        }
+
+        @Override
+        public void decode(ByteBuffer buffer, int offset, float[] vector) {
+            for (int i = 0; i < vector.length; i++, offset += 4) {
+                vector[i] = buffer.getFloat(offset);
+            }
+        }
+
+        @Override
+        public float diffSquare(float[] vector, ByteBuffer buffer, int offset, int from, int to) {
+            return VectorTools.diffSquare(vector, buffer, offset, from, to);
+        }
+    },
+
+    INT8(1, true) {
+        @Override
+        public int rowBytes(int dimension) {
+            return INT8_HEADER_SIZE + dimension;
+        }
+
+        @Override
+        public void encode(float[] vector, ByteBuffer buffer, int offset) {
+            float min = Float.MAX_VALUE;
+            float max = -Float.MAX_VALUE;
+            for (float value : vector) {
+                min = Math.min(min, value);
+                max = Math.max(max, value);
+            }
+
+            //所有维度相同时步长为0，各维度都编码为0
+            float scale = max > min ? (max - min) / INT8_LEVELS : 0.0f;
+            buffer.putFloat(offset, min).putFloat(offset + 4, scale);
+            offset += INT8_HEADER_SIZE;
+            for (int i = 0; i < vector.length; i++) {
+                int level = scale > 0 ? Math.round((vector[i] - min) / scale) : 0;
+                buffer.put(offset + i, (byte) Math.min(INT8_LEVELS, Math.max(0, level)));
+            }
+        }
+
+        @Override
+        public void decode(ByteBuffer buffer, int offset, float[] vector) {
+            float min = buffer.getFloat(offset);
+            float scale = buffer.getFloat(offset + 4);
+            offset += INT8_HEADER_SIZE;
+            for (int i = 0; i < vector.length; i++) {
+                vector[i] = min + scale * (buffer.get(offset + i) & 0xFF);
+            }
+        }
+
+        @Override
+        public float diffSquare(float[] vector, ByteBuffer buffer, int offset, int from, int to) {
+            return VectorTools.diffSquareInt8(vector, buffer, offset + INT8_HEADER_SIZE, buffer.getFloat(offset),
+                    buffer.getFloat(offset + 4), from, to);
+        }
+    },
+
+    FLOAT16(2, false) {
+        @Override
+        public int rowBytes(int dimension) {
+            return 2 * dimension;
+        }
+
+        @Override
+        public void encode(float[] vector, ByteBuffer buffer, int offset) {
+            for (int i = 0; i < vector.length; i++, offset += 2) {
+                buffer.putShort(offset, VectorTools.floatToHalf(vector[i]));
+            }
+        }
+
+        @Override
+        public void decode(ByteBuffer buffer, int offset, float[] vector) {
+            for (int i = 0; i < vector.length; i++, offset += 2) {
+                vector[i] = VectorTools.halfToFloat(buffer.getShort(offset));
+            }
+        }
+
+        @Override
+        public float diffSquare(float[] vector, ByteBuffer buffer, int offset, int from, int to) {
+            return VectorTools.diffSquareHalf(vector, buffer, offset, from, to);
+        }
+    };
+
+    /**
+     * INT8_HEADER_SIZE： INT8每行开头的最小值和步长字节数
+     * INT8_LEVELS：      INT8的最大量化值
+     */
+    private static final int INT8_HEADER_SIZE = 8;
+    private static final int INT8_LEVELS = 255;
+
+    /**
+     * id：           写入索引文件的编码标识
+     * needsRecheck： 编码误差是否大到需要保留float向量复核topn
+     */
+    private final int id;
+    private final boolean needsRecheck;
+
+    VectorEncoding(int id, boolean needsRecheck) {
+        this.id = id;
+        this.needsRecheck = needsRecheck;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public boolean needsRecheck() {
+        return needsRecheck;
+    }
+
+    /**
+     * @param dimension 向量维数
+     * @return 每个向量编码后的字节数
+     */
+    public abstract int rowBytes(int dimension);
+
+    /**
+     * 编码向量
+     *
+     * @param vector 向量
+     * @param buffer 小端序字节存储
+     * @param offset 写入的起始字节位置
+     */
+    public abstract void encode(float[] vector, ByteBuffer buffer, int offset);
+
+    /**
+     * 解码向量，有损编码时为近似值
+     *
+     * @param buffer 小端序字节存储
+     * @param offset 读取的起始字节位置
+     * @param vector 解码结果，长度为向量维数
+     */
+    public abstract void decode(ByteBuffer buffer, int offset, float[] vector);
+
+    /**
+     * 查询向量与编码向量在维度[from, to)上的欧式距离平方，直接在编码上计算
+     *
+     * @param vector 查询向量
+     * @param buffer 小端序字节存储
+     * @param offset 编码向量的起始字节位置
+     * @param from   起始维度
+     * @param to     结束维度（不含）
+     * @return 距离平方
+     */
+    public abstract float diffSquare(float[] vector, ByteBuffer buffer, int offset, int from, int to);
+
+    /**
+     * 查询向量与编码向量的欧式距离平方
+     *
+     * @param vector 查询向量
+     * @param buffer 小端序字节存储
+     * @param offset 编码向量的起始字节位置
+     * @return 距离平方
+     */
+    public float diffSquare(float[] vector, ByteBuffer buffer, int offset) {
+        return diffSquare(vector, buffer, offset, 0, vector.length);
+    }
+
+    /**
+     * 提前结束的距离计算：按blockOrder逐块累加，累加值达到bound时不再计算剩余的块
+     *
+     * @param vector     查询向量
+     * @param buffer     小端序字节存储
+     * @param offset     编码向量的起始字节位置
+     * @param blockOrder 块的计算顺序，维度均分为blockOrder.length块，null或不能均分时不分块
+     * @param bound      距离平方的上界，通常为topn堆的阈值
+     * @return 距离平方；提前结束时为不小于bound的部分和
+     */
+    public float diffSquare(float[] vector, ByteBuffer buffer, int offset, int[] blockOrder, float bound) {
+        if (null == blockOrder || vector.length % blockOrder.length != 0) {
+            return diffSquare(vector, buffer, offset, 0, vector.length);
+        }
+
+        int blockLength = vector.length / blockOrder.length;
+        float square = 0.0f;
+        for (int block : blockOrder) {
+            int from = block * blockLength;
+            square += diffSquare(vector, buffer, offset, from, from + blockLength);
+            if (square >= bound) {
+                break;
+            }
+        }
+
+        return square;
+    }
+
+    /**
+     * @param id 编码标识
+     * @return 对应的编码
+     */
+    public static VectorEncoding of(int id) {
+        for (VectorEncoding encoding : values()) {
+            if (encoding.id == id) {
+                return encoding;
+            }
+        }
+
+        throw new IllegalArgumentException("未知的向量编码:" + id);
+    }
+}
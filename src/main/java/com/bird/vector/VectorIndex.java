@@ -0,0 +1,104 @@
+package com.bird.vector;
+
+import org.roaringbitmap.RoaringBitmap;
+
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * 向量索引引擎
+ * 1.EmIndex：  各向量段的聚类倒排链求交集召回
+ * 2.IvfPqIndex：粗聚类倒排列表 + 残差量化编码
+ * 3.HnswIndex： 分层可导航小世界图
+ * <p>
+ * 查询参数probe的含义由引擎决定：EmIndex为每个向量段获取的聚类数，IvfPqIndex为探查的倒排列表数（nprobe），
+ * HnswIndex为第0层保留的候选节点数（efSearch）
+ * <p>
+ * 相似度度量由量化模型决定（EmPQ.metric）：写入和查询的向量先按度量处理，结果分数按度量换算，见Metric
+ *
+ * @description：
+ * @author： liuxiangqian
+ * @date： 2024/10/15
+ */
+public interface VectorIndex {
+    /**
+     * @return 量化模型
+     */
+    EmPQ getPq();
+
+    /**
+     * 写入一个向量，refresh之后对查询可见；不满足度量要求的向量（见Metric.accepts）记录错误日志后不写入
+     *
+     * @param vector 向量
+     * @param id     文档id
+     */
+    void addVector(float[] vector, int id);
+
+    /**
+     * 发布已写入的向量
+     */
+    void refresh();
+
+    /**
+     * 删除文档的所有向量
+     *
+     * @param id 文档id
+     */
+    void delete(int id);
+
+    /**
+     * 用新向量替换文档的所有向量，查询不会同时看到新旧向量；有向量不满足度量要求时保留旧向量
+     *
+     * @param vectors 文档的新向量
+     * @param id      文档id
+     */
+    void update(List<float[]> vectors, int id);
+
+    /**
+     * @param vector 查询向量
+     * @param probe  召回范围
+     * @param topn   获取最相近向量个数
+     * @param filter 允许返回的文档，null表示不过滤
+     * @return 按相似程度从高到低的文档id和分数，L2为欧式距离，INNER_PRODUCT、COSINE为相似度
+     */
+    SearchHits searchDocs(float[] vector, int probe, int topn, RoaringBitmap filter);
+
+    default SearchHits searchDocs(float[] vector, int probe, int topn) {
+        return searchDocs(vector, probe, topn, null);
+    }
+
+    /**
+     * 批量查询，默认各查询并行执行
+     *
+     * @param vectors 查询向量
+     * @param probe   召回范围
+     * @param topn    获取最相近向量个数
+     * @return 与查询向量顺序一致的结果
+     */
+    default SearchHits[] searchDocs(float[][] vectors, int probe, int topn) {
+        SearchHits[] results = new SearchHits[vectors.length];
+        IntStream.range(0, vectors.length).parallel().forEach(i -> results[i] = searchDocs(vectors[i], probe, topn));
+        return results;
+    }
+
+    /**
+     * 范围查询
+     *
+     * @param vector 查询向量
+     * @param radius 分数阈值，L2为距离上限，INNER_PRODUCT、COSINE为相似度下限
+     * @return 满足阈值的所有文档，按相似程度从高到低
+     */
+    SearchHits searchRadius(float[] vector, float radius);
+
+    /**
+     * @param indexDir    索引目录
+     * @param indexPrefix 索引前缀
+     */
+    void store(String indexDir, String indexPrefix);
+
+    /**
+     * @param indexDir    索引目录
+     * @param indexPrefix 索引前缀
+     */
+    void load(String indexDir, String indexPrefix);
+}
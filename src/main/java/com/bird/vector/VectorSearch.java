@@ -6,15 +6,17 @@ import com.bird.vector.utils.FolderTools;
 import lombok.Data;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.tuple.Pair;
+import org.roaringbitmap.RoaringBitmap;
 
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Created with IntelliJ IDEA.
@@ -28,16 +30,17 @@ import java.util.Map;
 public class VectorSearch {
     /**
      * IVT_PARENT_DIR： 索引父目录
-     * INDEX_DOCS：       参与索引的文档信息存储
+     * INDEX_DOCS：       参与索引的文档文本存储，格式见SegmentFile
+     * idToTextsMap：     文档id对应的文本，文本列表写入后不再修改，追加时整体替换
      */
     private static String IVT_PARENT_DIR = "ivt";
-    private static String INDEX_DOCS = "docs.data";
-    private Map<Integer, List<String>> idToTextsMap = new HashMap<>(1024);
+    private static String INDEX_DOCS = "docs.seg";
+    private Map<Integer, List<String>> idToTextsMap = new ConcurrentHashMap<>(1024);
     private Embedding embedding;
-    private EmIndex emIndex;
+    private VectorIndex vectorIndex;
 
-    public VectorSearch(EmIndex emIndex, Embedding embedding) {
-        this.emIndex = emIndex;
+    public VectorSearch(VectorIndex vectorIndex, Embedding embedding) {
+        this.vectorIndex = vectorIndex;
         this.embedding = embedding;
     }
 
@@ -68,6 +71,7 @@ public class VectorSearch {
             String text = texts.get(i);
             addText(id, text);
         }
+        vectorIndex.refresh();
     }
 
     public void addTexts(List<Pair<Integer, String>> idToTextList) {
@@ -80,6 +84,7 @@ public class VectorSearch {
                 e.printStackTrace();
             }
         });
+        vectorIndex.refresh();
     }
 
     public void addTexts(Pair<List<Integer>, List<String>> idsToTextsPair) {
@@ -99,22 +104,59 @@ public class VectorSearch {
                 e.printStackTrace();
             }
         }
+        vectorIndex.refresh();
     }
 
+    /**
+     * 加入一条文本，向量在索引发布后可检索，批量加入的方法结束时会发布
+     *
+     * @param id   文档id
+     * @param text 文本
+     * @throws OrtException
+     */
     public void addText(int id, String text) throws OrtException {
-        List<String> texts = idToTextsMap.getOrDefault(id, new ArrayList<>(1));
-        texts.add(text);
-        idToTextsMap.put(id, texts);
-
         float[] vector = embedding.encode(text);
-        emIndex.addVector(vector, id);
+        idToTextsMap.merge(id, Collections.singletonList(text), (oldTexts, newTexts) -> {
+            List<String> texts = new ArrayList<>(oldTexts.size() + 1);
+            texts.addAll(oldTexts);
+            texts.addAll(newTexts);
+            return texts;
+        });
+        vectorIndex.addVector(vector, id);
+    }
+
+    /**
+     * 删除文档，检索时立即生效
+     *
+     * @param id 文档id
+     */
+    public void deleteText(int id) {
+        vectorIndex.delete(id);
+        idToTextsMap.remove(id);
+    }
+
+    /**
+     * 更新文档：文档的旧文本和向量全部替换为新文本
+     *
+     * @param id    文档id
+     * @param texts 文档的新文本
+     * @throws OrtException
+     */
+    public void updateText(int id, List<String> texts) throws OrtException {
+        List<float[]> vectors = new ArrayList<>(texts.size());
+        for (String text : texts) {
+            vectors.add(embedding.encode(text));
+        }
+
+        vectorIndex.update(vectors, id);
+        idToTextsMap.put(id, new ArrayList<>(texts));
     }
 
     public void store(String indexDir) {
         indexDir = FolderTools.folderAppendSlash(indexDir);
         String ivtPrefix = "full";
         String ivtDir = indexDir + IVT_PARENT_DIR;
-        emIndex.store(ivtDir, ivtPrefix);
+        vectorIndex.store(ivtDir, ivtPrefix);
 
         String docsPath = indexDir + INDEX_DOCS;
         storeDocs(docsPath);
@@ -129,52 +171,130 @@ public class VectorSearch {
         indexDir = FolderTools.folderAppendSlash(indexDir);
         String ivtPrefix = "full";
         String ivtDir = indexDir + IVT_PARENT_DIR;
-        emIndex.load(ivtDir, ivtPrefix);
+        vectorIndex.load(ivtDir, ivtPrefix);
 
         String docsPath = indexDir + INDEX_DOCS;
         loadDocs(docsPath);
     }
 
+    /**
+     * @param query       查询query
+     * @param clusterTopn 召回范围：EmIndex为向量每个字段获取的类别数（不大于0时自适应），IvfPqIndex为探查的列表数，HnswIndex为efSearch
+     * @param topn        获取最相近向量个数
+     * @return 按相似程度从高到低的id和分数(1个id可能有多个向量 ），分数含义见Metric，文本通过getTexts获取
+     */
+    public SearchHits searchText(String query, int clusterTopn, int topn) {
+        return searchText(query, clusterTopn, topn, null);
+    }
+
     /**
      * @param query       查询query
      * @param clusterTopn 向量每个字段获取的类别数
      * @param topn        获取最相近向量个数
-     * @return 获取id列表和最小相似距离(1个id可能有多个向量 ）
+     * @param filter      允许返回的文档id（如按单位、行业、专利类型筛选的结果），null表示不过滤
+     * @return 按相似程度从高到低的id和分数，只包含filter中的文档
      */
-    public List<Pair<Integer, Pair<Float, List<String>>>> searchText(String query, int clusterTopn, int topn) {
-        List<Pair<Integer, Pair<Float, List<String>>>> idContentsPairs = new ArrayList<>(topn);
+    public SearchHits searchText(String query, int clusterTopn, int topn, RoaringBitmap filter) {
+        SearchHits hits = new SearchHits(new int[0], new float[0]);
         long start = System.currentTimeMillis();
         try {
             float[] vector = embedding.encode(query);
-            List<Pair<Integer, Float>> idDisPairs = emIndex.searchDocs(vector, clusterTopn, topn);
-            idDisPairs.forEach(pair -> {
-                int id = pair.getKey();
-                float dis = pair.getValue();
+            hits = vectorIndex.searchDocs(vector, clusterTopn, topn, filter);
+        } catch (OrtException e) {
+            e.printStackTrace();
+        }
 
-                List<String> contents = this.idToTextsMap.get(id);
-                idContentsPairs.add(Pair.of(id, Pair.of(dis, contents)));
-            });
+        log.info("搜索耗时:{}毫秒", (System.currentTimeMillis() - start));
+        return hits;
+    }
 
+    /**
+     * 范围查询，用于去重和近似重复检测
+     *
+     * @param query  查询query
+     * @param radius 分数阈值，L2为距离上限，相似度度量为相似度下限
+     * @return 满足阈值的所有文档，按相似程度从高到低
+     */
+    public SearchHits searchTextRadius(String query, float radius) {
+        SearchHits hits = new SearchHits(new int[0], new float[0]);
+        long start = System.currentTimeMillis();
+        try {
+            float[] vector = embedding.encode(query);
+            hits = vectorIndex.searchRadius(vector, radius);
+        } catch (OrtException e) {
+            log.error("查询向量化失败", e);
+        }
+
+        log.info("范围搜索耗时:{}毫秒", (System.currentTimeMillis() - start));
+        return hits;
+    }
 
+    /**
+     * 批量查询，用于离线匹配、去重等大量查询的场景
+     *
+     * @param queries     查询query
+     * @param clusterTopn 向量每个字段获取的类别数
+     * @param topn        获取最相近向量个数
+     * @return 与queries顺序一致的结果
+     */
+    public SearchHits[] searchTexts(List<String> queries, int clusterTopn, int topn) {
+        long start = System.currentTimeMillis();
+        float[][] vectors = new float[queries.size()][];
+        try {
+            for (int i = 0; i < vectors.length; i++) {
+                vectors[i] = embedding.encode(queries.get(i));
+            }
         } catch (OrtException e) {
-            e.printStackTrace();
+            log.error("查询向量化失败", e);
+            SearchHits[] empty = new SearchHits[queries.size()];
+            Arrays.fill(empty, new SearchHits(new int[0], new float[0]));
+            return empty;
         }
+        log.info("批量向量化耗时:{}毫秒 查询数:{}", (System.currentTimeMillis() - start), vectors.length);
 
-        log.info("搜索耗时:{}毫秒", (System.currentTimeMillis() - start));
-        return idContentsPairs;
+        return vectorIndex.searchDocs(vectors, clusterTopn, topn);
+    }
+
+    /**
+     * @param id 文档id
+     * @return 文档参与索引的文本，文档不存在或已删除时为null
+     */
+    public List<String> getTexts(int id) {
+        return idToTextsMap.get(id);
     }
 
     /**
-     * 存储文本信息
+     * 存储文本信息，写入索引文件的文本分区（小端序）：
+     * 文档数(int)  文档数 * [文档id(int) 文本数(int) 文本数 * [字节数(int) UTF-8字节]]
      *
      * @param filePath 文本路径
      */
     private void storeDocs(String filePath) {
-        try (FileOutputStream fos = new FileOutputStream(filePath);
-             ObjectOutputStream oos = new ObjectOutputStream(fos)) {
-            oos.writeObject(this.idToTextsMap);
-        } catch (Exception e) {
-            e.printStackTrace();
+        SegmentFile.Writer writer = null;
+        try {
+            writer = SegmentFile.create(filePath, 1, null);
+            writer.beginSection(SegmentFile.SECTION_TEXTS);
+            List<Map.Entry<Integer, List<String>>> entries = new ArrayList<>(idToTextsMap.entrySet());
+            writer.buffer(4).putInt(entries.size());
+            for (Map.Entry<Integer, List<String>> entry : entries) {
+                List<String> texts = entry.getValue();
+                writer.buffer(8).putInt(entry.getKey()).putInt(texts.size());
+                for (String text : texts) {
+                    byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+                    writer.buffer(4).putInt(bytes.length);
+                    if (bytes.length > SegmentFile.WRITE_BUFFER_SIZE) {
+                        writer.write(ByteBuffer.wrap(bytes));
+                    } else {
+                        writer.buffer(bytes.length).put(bytes);
+                    }
+                }
+            }
+            writer.close();
+        } catch (IOException e) {
+            log.error("文本存储失败, filePath:{}", filePath, e);
+            if (null != writer) {
+                writer.abort();
+            }
         }
     }
 
@@ -184,12 +304,25 @@ public class VectorSearch {
      * @param filePath 文本路径
      */
     private void loadDocs(String filePath) {
-        try (FileInputStream fis = new FileInputStream(filePath);
-             ObjectInputStream ois = new ObjectInputStream(fis)) {
-            this.idToTextsMap = (Map<Integer, List<String>>) ois.readObject();
-        } catch (Exception e) {
-            e.printStackTrace();
+        try (SegmentFile.Reader reader = SegmentFile.open(filePath)) {
+            reader.verify(SegmentFile.SECTION_TEXTS);
+            ByteBuffer buffer = reader.map(SegmentFile.SECTION_TEXTS);
+            int docCount = buffer.getInt();
+            Map<Integer, List<String>> docs = new ConcurrentHashMap<>(Math.max(1024, docCount * 2));
+            for (int i = 0; i < docCount; i++) {
+                int id = buffer.getInt();
+                int textCount = buffer.getInt();
+                List<String> texts = new ArrayList<>(textCount);
+                for (int j = 0; j < textCount; j++) {
+                    byte[] bytes = new byte[buffer.getInt()];
+                    buffer.get(bytes);
+                    texts.add(new String(bytes, StandardCharsets.UTF_8));
+                }
+                docs.put(id, Collections.unmodifiableList(texts));
+            }
+            this.idToTextsMap = docs;
+        } catch (IOException | RuntimeException e) {
+            log.error("文本加载失败, filePath:{}", filePath, e);
         }
     }
 }
-
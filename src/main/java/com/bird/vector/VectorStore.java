@@ -0,0 +1,901 @@
+package com.bird.vector;
+
+import com.bird.vector.common.VectorTools;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+/**
+ * 索引向量存储
+ * 1.构建阶段：向量按encoding编码后按行追加到定长的字节页中，量化编码按行追加到byte页中，文档id对应行号列表
+ * 2.打包阶段：段发布时按文档重排到堆内，同一文档的向量连续存放，与加载后的布局相同
+ * 3.存储阶段：按文档id顺序把同一文档的向量连续写入索引文件，并写入 id->行偏移/行数 表
+ * 4.加载阶段：读取 id->行偏移/行数 表，向量数据与量化编码只读内存映射，不占用java堆
+ * 向量使用FLOAT16、INT8编码时，距离直接在编码上计算；INT8开启精确复核时另存一份float向量，只在复核topn时读取
+ * 文档切分为多段文本时一个文档有多个向量：打包和加载后一个文档的向量由 行偏移+行数 定位，打分时顺序扫描一次取最小值；
+ * 向量数不少于MIN_CENTROID_VECTORS的文档保存向量中心和半径，中心距离减半径已超过topn阈值时整个文档跳过；
+ * 中心与向量一样按分段存放，加载后只读内存映射，堆内只保留文档表下标到中心编号的对应和半径
+ * <p>
+ * 索引文件中的分区（小端序）：
+ * 文档表：   维数(int) 编码长度(int) 文档数(int) 向量数(int)
+ *           文档数 * [文档id(int) 行偏移(int) 行数(int)]   按文档id升序
+ * 向量编码： 编码标识(int) 是否有精确向量(int)，缺失时为FLOAT32
+ * 向量：     向量数 * 编码行字节数
+ * 精确向量： 向量数 * 维数 * float，只在编码需要复核且开启精确复核时存在
+ * 编码：     向量数 * 编码长度 * byte
+ * 文档中心： 中心数(int) 中心数 * [文档表下标(int) 半径(float)] 中心数 * 维数 * float，缺失时不剪枝
+ *
+ * @description：
+ * @author： liuxiangqian
+ * @date： 2024/10/15
+ */
+@Slf4j
+public class VectorStore {
+    /**
+     * HEADER_SIZE：       文档表分区头字节数
+     * PAGE_ROWS：         构建阶段每页存放的向量数
+     * MAX_REGION_BYTES：  每段内存映射的最大字节数
+     * MIN_CENTROID_VECTORS：文档向量数达到该值时保存向量中心用于剪枝，向量少时多算一次中心距离不划算
+     * RADIUS_SLACK：      中心半径放大的比例，抵消float累加误差，保证距离下界不会大于真实距离
+     * RADIUS_EPSILON：    中心半径额外加上的余量，半径为0（文档向量全部相同）时同样需要抵消误差
+     */
+    private static final int HEADER_SIZE = 16;
+    private static final int PAGE_ROWS = 4096;
+    private static final long MAX_REGION_BYTES = 1L << 30;
+    public static final int MIN_CENTROID_VECTORS = 4;
+    private static final float RADIUS_SLACK = 1.0001f;
+    private static final float RADIUS_EPSILON = 1e-4f;
+
+    /**
+     * dimension：    向量维数
+     * codeLength：   每个向量的量化编码长度（向量段数），每段一个byte
+     * vectors：      按encoding编码的向量
+     * exactVectors： 有损编码时保留的float向量，用于精确复核，不复核时为null
+     * codePages：    构建阶段的量化编码页
+     * rowCount：     构建阶段已写入的向量数
+     * idToRows：     构建阶段 文档id -> 行号列表
+     */
+    private final int dimension;
+    private final int codeLength;
+    private VectorRows vectors;
+    private VectorRows exactVectors;
+    private List<byte[]> codePages = new ArrayList<>();
+    private int rowCount;
+    private Map<Integer, int[]> idToRows = new HashMap<>();
+
+    /**
+     * 打包或加载后的只读数据
+     * docIds：        升序的文档id
+     * docOffsets：    文档第一个向量的行号
+     * docCounts：     文档的向量数
+     * codes：         量化编码，打包后在堆内，加载后为内存映射
+     * docCentroids：  文档表下标 -> 中心编号，没有中心的文档为-1，整个存储没有中心时为null
+     * centroids：     文档向量中心，每个中心一行float向量，行号为中心编号，打包后在堆内，加载后为内存映射
+     * centroidRadius：文档各向量到中心的最大距离
+     */
+    private int[] docIds;
+    private int[] docOffsets;
+    private int[] docCounts;
+    private ByteBuffer codes;
+    private int[] docCentroids;
+    private VectorRows centroids;
+    private float[] centroidRadius;
+
+    public VectorStore(int dimension, int codeLength) {
+        this(dimension, codeLength, VectorEncoding.FLOAT32, false);
+    }
+
+    /**
+     * @param dimension    向量维数
+     * @param codeLength   量化编码长度
+     * @param encoding     向量编码
+     * @param exactRecheck 编码需要复核时（INT8）是否保留float向量用于精确复核
+     */
+    public VectorStore(int dimension, int codeLength, VectorEncoding encoding, boolean exactRecheck) {
+        this.dimension = dimension;
+        this.codeLength = codeLength;
+        this.vectors = new VectorRows(encoding, dimension);
+        this.exactVectors = exactRecheck && encoding.needsRecheck()
+                ? new VectorRows(VectorEncoding.FLOAT32, dimension) : null;
+    }
+
+    /**
+     * 追加文档向量
+     *
+     * @param id     文档id
+     * @param vector 向量
+     * @param code   向量的量化编码
+     */
+    public void add(int id, float[] vector, byte[] code) {
+        assert vector.length == dimension;
+        assert code.length == codeLength;
+        if (null != docIds) {
+            mappedToPages();
+        }
+
+        int row = rowCount++;
+        int pageNum = row / PAGE_ROWS;
+        if (pageNum == codePages.size()) {
+            codePages.add(new byte[PAGE_ROWS * codeLength]);
+        }
+        vectors.append(row, vector);
+        if (null != exactVectors) {
+            exactVectors.append(row, vector);
+        }
+        System.arraycopy(code, 0, codePages.get(pageNum), (row % PAGE_ROWS) * codeLength, codeLength);
+
+        int[] rows = idToRows.get(id);
+        if (null == rows) {
+            rows = new int[]{row};
+        } else {
+            rows = Arrays.copyOf(rows, rows.length + 1);
+            rows[rows.length - 1] = row;
+        }
+        idToRows.put(id, rows);
+    }
+
+    /**
+     * 打包：按文档id重排为同一文档向量连续的堆内布局，查询路径与加载后相同，段发布前调用
+     * 打包后再写入时转回构建页
+     */
+    public void pack() {
+        if (null != docIds) {
+            return;
+        }
+
+        //步骤一： 按文档id排列行号
+        int[] ids = ids();
+        int[] offsets = new int[ids.length];
+        int[] counts = new int[ids.length];
+        int[] rowOrder = new int[rowCount];
+        int totalRows = 0;
+        int maxCount = 0;
+        for (int i = 0; i < ids.length; i++) {
+            int[] rows = idToRows.get(ids[i]);
+            offsets[i] = totalRows;
+            counts[i] = rows.length;
+            System.arraycopy(rows, 0, rowOrder, totalRows, rows.length);
+            totalRows += rows.length;
+            maxCount = Math.max(maxCount, rows.length);
+        }
+
+        //步骤二： 向量多的文档计算中心
+        int[] slotCentroids = new int[ids.length];
+        Arrays.fill(slotCentroids, -1);
+        int centroidCount = 0;
+        for (int i = 0; i < ids.length; i++) {
+            if (counts[i] >= MIN_CENTROID_VECTORS) {
+                slotCentroids[i] = centroidCount++;
+            }
+        }
+        VectorRows centerRows = new VectorRows(VectorEncoding.FLOAT32, dimension);
+        float[] radius = new float[centroidCount];
+        float[] center = new float[dimension];
+        for (int i = 0; i < ids.length; i++) {
+            if (slotCentroids[i] >= 0) {
+                radius[slotCentroids[i]] = centroid(ids[i], center);
+                centerRows.append(slotCentroids[i], center);
+            }
+        }
+        VectorRows packedCenters = new VectorRows(VectorEncoding.FLOAT32, dimension);
+        packedCenters.pack(centerRows, IntStream.range(0, centroidCount).toArray(), centroidCount, 1);
+
+        //步骤三： 拷贝向量行和量化编码
+        VectorRows packedVectors = new VectorRows(vectors.encoding, dimension);
+        packedVectors.pack(vectors, rowOrder, totalRows, maxCount);
+        VectorRows packedExact = null;
+        if (null != exactVectors) {
+            packedExact = new VectorRows(VectorEncoding.FLOAT32, dimension);
+            packedExact.pack(exactVectors, rowOrder, totalRows, maxCount);
+        }
+        byte[] packedCodes = new byte[totalRows * codeLength];
+        for (int row = 0; row < totalRows; row++) {
+            int oldRow = rowOrder[row];
+            System.arraycopy(codePages.get(oldRow / PAGE_ROWS), (oldRow % PAGE_ROWS) * codeLength, packedCodes,
+                    row * codeLength, codeLength);
+        }
+
+        this.vectors = packedVectors;
+        this.exactVectors = packedExact;
+        this.codePages = new ArrayList<>();
+        this.idToRows = new HashMap<>();
+        this.rowCount = 0;
+        this.docIds = ids;
+        this.docOffsets = offsets;
+        this.docCounts = counts;
+        this.codes = ByteBuffer.wrap(packedCodes);
+        this.docCentroids = centroidCount > 0 ? slotCentroids : null;
+        this.centroids = packedCenters;
+        this.centroidRadius = radius;
+    }
+
+    /**
+     * 删除文档的向量
+     *
+     * @param id 文档id
+     */
+    public void remove(int id) {
+        if (null == docIds) {
+            idToRows.remove(id);
+            return;
+        }
+
+        int slot = Arrays.binarySearch(docIds, id);
+        if (slot >= 0) {
+            docCounts[slot] = 0;
+        }
+    }
+
+    public boolean contains(int id) {
+        return vectorCount(id) > 0;
+    }
+
+    /**
+     * @return 文档数
+     */
+    public int size() {
+        return null == docIds ? idToRows.size() : ids().length;
+    }
+
+    /**
+     * 文档与查询向量的最小欧式距离平方（一个文档可能有多个向量），有损编码时为近似距离
+     *
+     * @param id           文档id
+     * @param searchVector 查询向量
+     * @return 最小距离平方，文档不存在时返回Float.MAX_VALUE
+     */
+    public float minDistanceSquare(int id, float[] searchVector) {
+        return minSquare(vectors, id, searchVector, null, Float.MAX_VALUE);
+    }
+
+    /**
+     * 提前结束的最小距离平方：向量按块累加，达到bound时放弃该向量，用于topn打分，bound为堆的阈值
+     *
+     * @param id           文档id
+     * @param searchVector 查询向量
+     * @param blockOrder   块的计算顺序，见VectorEncoding.diffSquare
+     * @param bound        距离平方的上界
+     * @return 最小距离平方；不小于bound时只表示文档进不了topn，不是准确值
+     */
+    public float minDistanceSquare(int id, float[] searchVector, int[] blockOrder, float bound) {
+        return minSquare(vectors, id, searchVector, blockOrder, bound);
+    }
+
+    /**
+     * 文档与查询向量的最小精确距离平方，没有保留float向量时同minDistanceSquare
+     *
+     * @param id           文档id
+     * @param searchVector 查询向量
+     * @return 最小精确距离平方，文档不存在时返回Float.MAX_VALUE
+     */
+    public float minExactDistanceSquare(int id, float[] searchVector) {
+        return minExactDistanceSquare(id, searchVector, null, Float.MAX_VALUE);
+    }
+
+    /**
+     * 同minDistanceSquare的提前结束版本，使用精确向量
+     */
+    public float minExactDistanceSquare(int id, float[] searchVector, int[] blockOrder, float bound) {
+        return minSquare(null == exactVectors ? vectors : exactVectors, id, searchVector, blockOrder, bound);
+    }
+
+    /**
+     * @return 向量为有损编码且保留了float向量，精确距离与minDistanceSquare不同
+     */
+    public boolean hasExactVectors() {
+        return null != exactVectors;
+    }
+
+    public VectorEncoding getEncoding() {
+        return vectors.encoding;
+    }
+
+    /**
+     * 同一文档的多个向量共用上界，后面的向量只需要比已有的最小值更小
+     */
+    private float minSquare(VectorRows rows, int id, float[] searchVector, int[] blockOrder, float bound) {
+        VectorEncoding encoding = rows.encoding;
+        float minSquare = Float.MAX_VALUE;
+        if (null == docIds) {
+            int[] rowNums = idToRows.get(id);
+            if (null == rowNums) {
+                return Float.MAX_VALUE;
+            }
+
+            for (int row : rowNums) {
+                float square = encoding.diffSquare(searchVector, rows.page(row), rows.pageOffset(row), blockOrder,
+                        Math.min(bound, minSquare));
+                minSquare = minSquare > square ? square : minSquare;
+            }
+        } else {
+            int slot = Arrays.binarySearch(docIds, id);
+            if (slot < 0 || docCounts[slot] == 0) {
+                return Float.MAX_VALUE;
+            }
+
+            //文档中心的距离下界已经不小于bound时，不用再逐个计算向量
+            if (bound < Float.MAX_VALUE && null != docCentroids && docCentroids[slot] >= 0) {
+                float lower = centroidLowerBound(docCentroids[slot], searchVector);
+                if (lower * lower >= bound) {
+                    return lower * lower;
+                }
+            }
+
+            //同一文档的向量连续存放，顺序扫描一次
+            int firstRow = docOffsets[slot];
+            ByteBuffer region = rows.region(firstRow);
+            int offset = rows.regionOffset(firstRow);
+            for (int i = 0; i < docCounts[slot]; i++, offset += rows.rowBytes) {
+                float square = encoding.diffSquare(searchVector, region, offset, blockOrder,
+                        Math.min(bound, minSquare));
+                minSquare = minSquare > square ? square : minSquare;
+            }
+        }
+
+        return minSquare;
+    }
+
+    /**
+     * @param centroid     中心编号
+     * @param searchVector 查询向量
+     * @return 文档所有向量到查询向量距离的下界：中心距离减半径，不小于0
+     */
+    private float centroidLowerBound(int centroid, float[] searchVector) {
+        float centerSquare = VectorEncoding.FLOAT32.diffSquare(searchVector, centroids.region(centroid),
+                centroids.regionOffset(centroid));
+        return Math.max(0.0f, (float) Math.sqrt(centerSquare) - centroidRadius[centroid]);
+    }
+
+    /**
+     * 基于量化编码的非对称距离（ADC）：查表求和代替全维度计算
+     *
+     * @param id           文档id
+     * @param table        查询向量的距离表，下标为 段号 * 聚类数 + 聚类编号，值为段内距离平方
+     * @param clusterCount 聚类数
+     * @return 文档各向量的最小近似距离平方，文档不存在时返回Float.MAX_VALUE
+     */
+    public float minAdcDistance(int id, float[] table, int clusterCount) {
+        float minSquare = Float.MAX_VALUE;
+        if (null == docIds) {
+            int[] rows = idToRows.get(id);
+            if (null == rows) {
+                return Float.MAX_VALUE;
+            }
+
+            for (int row : rows) {
+                byte[] codePage = codePages.get(row / PAGE_ROWS);
+                int offset = (row % PAGE_ROWS) * codeLength;
+                float square = 0.0f;
+                for (int segNum = 0; segNum < codeLength; segNum++) {
+                    square += table[segNum * clusterCount + (codePage[offset + segNum] & 0xFF)];
+                }
+                minSquare = minSquare > square ? square : minSquare;
+            }
+        } else {
+            int slot = Arrays.binarySearch(docIds, id);
+            if (slot < 0 || docCounts[slot] == 0) {
+                return Float.MAX_VALUE;
+            }
+
+            int offset = docOffsets[slot] * codeLength;
+            for (int i = 0; i < docCounts[slot]; i++) {
+                float square = 0.0f;
+                for (int segNum = 0; segNum < codeLength; segNum++, offset++) {
+                    square += table[segNum * clusterCount + (codes.get(offset) & 0xFF)];
+                }
+                minSquare = minSquare > square ? square : minSquare;
+            }
+        }
+
+        return minSquare;
+    }
+
+    /**
+     * 拷贝出文档的所有向量，有损编码且没有保留float向量时为解码后的近似值
+     *
+     * @param id 文档id
+     * @return 向量列表，文档不存在时为空列表
+     */
+    public List<float[]> getVectors(int id) {
+        return decode(null == exactVectors ? vectors : exactVectors, id);
+    }
+
+    /**
+     * @param rows 向量行
+     * @param id   文档id
+     * @return 解码后的文档向量，文档不存在时为空列表
+     */
+    private List<float[]> decode(VectorRows rows, int id) {
+        List<float[]> result = new ArrayList<>(1);
+        if (null == docIds) {
+            int[] rowNums = idToRows.getOrDefault(id, new int[0]);
+            for (int row : rowNums) {
+                float[] vector = new float[dimension];
+                rows.encoding.decode(rows.page(row), rows.pageOffset(row), vector);
+                result.add(vector);
+            }
+            return result;
+        }
+
+        int slot = Arrays.binarySearch(docIds, id);
+        if (slot < 0) {
+            return result;
+        }
+
+        int firstRow = docOffsets[slot];
+        ByteBuffer region = rows.region(firstRow);
+        int offset = rows.regionOffset(firstRow);
+        for (int i = 0; i < docCounts[slot]; i++, offset += rows.rowBytes) {
+            float[] vector = new float[dimension];
+            rows.encoding.decode(region, offset, vector);
+            result.add(vector);
+        }
+
+        return result;
+    }
+
+    /**
+     * 拷贝出文档所有向量的量化编码
+     *
+     * @param id 文档id
+     * @return 编码列表，与getVectors的顺序一致
+     */
+    public List<byte[]> getCodes(int id) {
+        List<byte[]> vectorCodes = new ArrayList<>(1);
+        if (null == docIds) {
+            int[] rows = idToRows.getOrDefault(id, new int[0]);
+            for (int row : rows) {
+                byte[] code = new byte[codeLength];
+                System.arraycopy(codePages.get(row / PAGE_ROWS), (row % PAGE_ROWS) * codeLength, code, 0, codeLength);
+                vectorCodes.add(code);
+            }
+            return vectorCodes;
+        }
+
+        int slot = Arrays.binarySearch(docIds, id);
+        if (slot < 0) {
+            return vectorCodes;
+        }
+
+        int offset = docOffsets[slot] * codeLength;
+        for (int i = 0; i < docCounts[slot]; i++) {
+            byte[] code = new byte[codeLength];
+            for (int j = 0; j < codeLength; j++, offset++) {
+                code[j] = codes.get(offset);
+            }
+            vectorCodes.add(code);
+        }
+
+        return vectorCodes;
+    }
+
+    /**
+     * @return 升序的文档id
+     */
+    public int[] ids() {
+        if (null == docIds) {
+            return idToRows.keySet().stream().mapToInt(Integer::intValue).sorted().toArray();
+        }
+
+        int[] ids = new int[docIds.length];
+        int count = 0;
+        for (int slot = 0; slot < docIds.length; slot++) {
+            if (docCounts[slot] > 0) {
+                ids[count++] = docIds[slot];
+            }
+        }
+
+        return count == ids.length ? ids : Arrays.copyOf(ids, count);
+    }
+
+    /**
+     * @return write写入的分区数
+     */
+    public int sectionCount() {
+        return null == exactVectors ? 5 : 6;
+    }
+
+    /**
+     * 按文档id顺序写入文档表、向量编码、向量、精确向量、量化编码、文档中心分区，向量和编码按文档块并行序列化
+     *
+     * @param writer 索引文件写入器
+     */
+    public void write(SegmentFile.Writer writer) throws IOException {
+        int[] ids = ids();
+        int totalRows = 0;
+        int[] counts = new int[ids.length];
+        List<Integer> chunkStarts = new ArrayList<>();
+        chunkStarts.add(0);
+        int chunkRows = 0;
+        int maxChunkRows = Math.max(1, SegmentFile.CHUNK_BYTES / (4 * dimension));
+        for (int i = 0; i < ids.length; i++) {
+            counts[i] = vectorCount(ids[i]);
+            totalRows += counts[i];
+
+            //按向量数划分序列化块，同一文档的向量不拆分
+            chunkRows += counts[i];
+            if (chunkRows >= maxChunkRows && i + 1 < ids.length) {
+                chunkStarts.add(i + 1);
+                chunkRows = 0;
+            }
+        }
+        chunkStarts.add(ids.length);
+
+        writer.beginSection(SegmentFile.SECTION_DOC_TABLE);
+        writer.buffer(HEADER_SIZE).putInt(dimension).putInt(codeLength).putInt(ids.length).putInt(totalRows);
+        int[] offsets = new int[ids.length + 1];
+        for (int i = 0; i < ids.length; i++) {
+            writer.buffer(12).putInt(ids[i]).putInt(offsets[i]).putInt(counts[i]);
+            offsets[i + 1] = offsets[i] + counts[i];
+        }
+
+        //旧版本不认识向量编码分区，会把编码行当作float读取，非float编码时提高文件版本让旧版本拒绝读取
+        if (VectorEncoding.FLOAT32 != vectors.encoding) {
+            writer.requireVersion(SegmentFile.ENCODED_VECTORS_VERSION);
+        }
+        writer.beginSection(SegmentFile.SECTION_VECTOR_ENCODING);
+        writer.buffer(8).putInt(vectors.encoding.getId()).putInt(null == exactVectors ? 0 : 1);
+
+        int chunkCount = chunkStarts.size() - 1;
+        writer.beginSection(SegmentFile.SECTION_VECTORS);
+        writeRows(writer, "向量", vectors, ids, offsets, chunkStarts);
+        if (null != exactVectors) {
+            writer.beginSection(SegmentFile.SECTION_EXACT_VECTORS);
+            writeRows(writer, "精确向量", exactVectors, ids, offsets, chunkStarts);
+        }
+
+        writer.beginSection(SegmentFile.SECTION_CODES);
+        writer.writeChunks("量化编码", chunkCount, chunk -> {
+            int startDoc = chunkStarts.get(chunk);
+            int endDoc = chunkStarts.get(chunk + 1);
+            ByteBuffer buffer = ByteBuffer.allocate(codeLength * (offsets[endDoc] - offsets[startDoc]));
+            for (int i = startDoc; i < endDoc; i++) {
+                for (byte[] code : getCodes(ids[i])) {
+                    buffer.put(code);
+                }
+            }
+            buffer.flip();
+            return buffer;
+        });
+
+        writeCentroids(writer, ids, counts);
+    }
+
+    /**
+     * 写入文档中心分区，已打包或加载的文档直接沿用已有的中心
+     */
+    private void writeCentroids(SegmentFile.Writer writer, int[] ids, int[] counts) throws IOException {
+        List<Integer> slots = new ArrayList<>();
+        for (int i = 0; i < ids.length; i++) {
+            if (counts[i] >= MIN_CENTROID_VECTORS) {
+                slots.add(i);
+            }
+        }
+
+        writer.beginSection(SegmentFile.SECTION_DOC_CENTROIDS);
+        writer.buffer(4).putInt(slots.size());
+        float[][] docCenters = new float[slots.size()][];
+        for (int i = 0; i < slots.size(); i++) {
+            docCenters[i] = new float[dimension];
+            float radius = centroid(ids[slots.get(i)], docCenters[i]);
+            writer.buffer(8).putInt(slots.get(i)).putFloat(radius);
+        }
+        for (float[] center : docCenters) {
+            ByteBuffer buffer = writer.buffer(4 * dimension);
+            for (float value : center) {
+                buffer.putFloat(value);
+            }
+        }
+    }
+
+    /**
+     * 文档的向量中心和半径：中心为向量均值，半径为编码向量与精确向量到中心的最大距离，两种距离都以它为下界
+     *
+     * @param id     文档id
+     * @param center 写入中心
+     * @return 半径
+     */
+    private float centroid(int id, float[] center) {
+        if (null != docCentroids) {
+            int slot = Arrays.binarySearch(docIds, id);
+            if (slot >= 0 && docCentroids[slot] >= 0) {
+                int centroid = docCentroids[slot];
+                VectorEncoding.FLOAT32.decode(centroids.region(centroid), centroids.regionOffset(centroid), center);
+                return centroidRadius[centroid];
+            }
+        }
+
+        List<float[]> docVectors = getVectors(id);
+        Arrays.fill(center, 0.0f);
+        for (float[] vector : docVectors) {
+            for (int i = 0; i < dimension; i++) {
+                center[i] += vector[i];
+            }
+        }
+        for (int i = 0; i < dimension; i++) {
+            center[i] /= docVectors.size();
+        }
+
+        float maxSquare = 0.0f;
+        for (float[] vector : docVectors) {
+            maxSquare = Math.max(maxSquare, VectorTools.diffSquare(center, vector));
+        }
+        if (null != exactVectors) {
+            for (float[] vector : decode(vectors, id)) {
+                maxSquare = Math.max(maxSquare, VectorTools.diffSquare(center, vector));
+            }
+        }
+
+        return (float) Math.sqrt(maxSquare) * RADIUS_SLACK + RADIUS_EPSILON;
+    }
+
+    /**
+     * 按文档块并行拷贝已编码的向量行，不重新编码
+     */
+    private void writeRows(SegmentFile.Writer writer, String label, VectorRows rows, int[] ids, int[] offsets,
+                           List<Integer> chunkStarts) throws IOException {
+        writer.writeChunks(label, chunkStarts.size() - 1, chunk -> {
+            int startDoc = chunkStarts.get(chunk);
+            int endDoc = chunkStarts.get(chunk + 1);
+            ByteBuffer buffer = ByteBuffer.allocate(rows.rowBytes * (offsets[endDoc] - offsets[startDoc]));
+            for (int i = startDoc; i < endDoc; i++) {
+                copyRows(rows, ids[i], buffer);
+            }
+            buffer.flip();
+            return buffer;
+        });
+    }
+
+    /**
+     * 把文档的所有编码行追加到buffer
+     */
+    private void copyRows(VectorRows rows, int id, ByteBuffer buffer) {
+        if (null == docIds) {
+            for (int row : idToRows.getOrDefault(id, new int[0])) {
+                ByteBuffer page = rows.page(row).duplicate();
+                page.position(rows.pageOffset(row)).limit(rows.pageOffset(row) + rows.rowBytes);
+                buffer.put(page);
+            }
+            return;
+        }
+
+        int slot = Arrays.binarySearch(docIds, id);
+        if (slot < 0 || docCounts[slot] == 0) {
+            return;
+        }
+        int firstRow = docOffsets[slot];
+        int offset = rows.regionOffset(firstRow);
+        ByteBuffer region = rows.region(firstRow).duplicate();
+        region.position(offset).limit(offset + docCounts[slot] * rows.rowBytes);
+        buffer.put(region);
+    }
+
+    /**
+     * 读取向量分区：文档表读入堆内，向量数据与量化编码只读内存映射，向量编码以文件为准
+     *
+     * @param reader 索引文件读取器
+     */
+    public void read(SegmentFile.Reader reader) throws IOException {
+        ByteBuffer header = reader.map(reader.offset(SegmentFile.SECTION_DOC_TABLE), HEADER_SIZE);
+        int fileDimension = header.getInt();
+        int fileCodeLength = header.getInt();
+        int docCount = header.getInt();
+        int totalRows = header.getInt();
+        if (fileDimension != dimension || fileCodeLength != codeLength) {
+            throw new IOException("向量维数或编码长度不一致, 文件:" + fileDimension + "/" + fileCodeLength
+                    + " 期望:" + dimension + "/" + codeLength);
+        }
+
+        //没有向量编码分区的旧文件为float向量
+        VectorEncoding encoding = VectorEncoding.FLOAT32;
+        boolean hasExact = false;
+        if (reader.has(SegmentFile.SECTION_VECTOR_ENCODING)) {
+            ByteBuffer encodingInfo = reader.map(SegmentFile.SECTION_VECTOR_ENCODING);
+            try {
+                encoding = VectorEncoding.of(encodingInfo.getInt());
+            } catch (IllegalArgumentException e) {
+                throw new IOException(e.getMessage(), e);
+            }
+            hasExact = encodingInfo.getInt() != 0;
+        }
+
+        int[] ids = new int[docCount];
+        int[] offsets = new int[docCount];
+        int[] counts = new int[docCount];
+        ByteBuffer table = reader.map(reader.offset(SegmentFile.SECTION_DOC_TABLE) + HEADER_SIZE, 12L * docCount);
+        int maxCount = 0;
+        for (int i = 0; i < docCount; i++) {
+            ids[i] = table.getInt();
+            offsets[i] = table.getInt();
+            counts[i] = table.getInt();
+            maxCount = Math.max(maxCount, counts[i]);
+        }
+
+        VectorRows mappedVectors = new VectorRows(encoding, dimension);
+        mappedVectors.map(reader, reader.offset(SegmentFile.SECTION_VECTORS), totalRows, maxCount);
+        VectorRows mappedExact = null;
+        if (hasExact) {
+            mappedExact = new VectorRows(VectorEncoding.FLOAT32, dimension);
+            mappedExact.map(reader, reader.offset(SegmentFile.SECTION_EXACT_VECTORS), totalRows, maxCount);
+        }
+        ByteBuffer mappedCodes = reader.map(reader.offset(SegmentFile.SECTION_CODES), (long) totalRows * codeLength);
+
+        //文档中心：下标和半径读入堆内，中心向量分段内存映射，没有中心分区的旧文件不剪枝
+        int[] slotCentroids = null;
+        VectorRows centers = null;
+        float[] radius = null;
+        if (reader.has(SegmentFile.SECTION_DOC_CENTROIDS)) {
+            long sectionStart = reader.offset(SegmentFile.SECTION_DOC_CENTROIDS);
+            int centroidCount = reader.map(sectionStart, 4).getInt();
+            ByteBuffer centroidTable = reader.map(sectionStart + 4, 8L * centroidCount);
+            slotCentroids = new int[docCount];
+            Arrays.fill(slotCentroids, -1);
+            radius = new float[centroidCount];
+            for (int i = 0; i < centroidCount; i++) {
+                slotCentroids[centroidTable.getInt()] = i;
+                radius[i] = centroidTable.getFloat();
+            }
+            centers = new VectorRows(VectorEncoding.FLOAT32, dimension);
+            centers.map(reader, sectionStart + 4 + 8L * centroidCount, centroidCount, 1);
+        }
+
+        this.vectors = mappedVectors;
+        this.exactVectors = mappedExact;
+        this.codePages = new ArrayList<>();
+        this.idToRows = new HashMap<>();
+        this.rowCount = 0;
+        this.docIds = ids;
+        this.docOffsets = offsets;
+        this.docCounts = counts;
+        this.codes = mappedCodes;
+        this.docCentroids = slotCentroids;
+        this.centroids = centers;
+        this.centroidRadius = radius;
+    }
+
+    private int vectorCount(int id) {
+        if (null == docIds) {
+            int[] rows = idToRows.get(id);
+            return null == rows ? 0 : rows.length;
+        }
+
+        int slot = Arrays.binarySearch(docIds, id);
+        return slot < 0 ? 0 : docCounts[slot];
+    }
+
+    /**
+     * 加载后又有新向量写入时，把映射的数据拷贝回构建页，编码方式不变
+     */
+    private void mappedToPages() {
+        log.info("只读向量转为可写, 文档数:{}", docIds.length);
+        int[] ids = ids();
+        List<List<float[]>> vectorsList = new ArrayList<>(ids.length);
+        List<List<byte[]>> codesList = new ArrayList<>(ids.length);
+        for (int id : ids) {
+            vectorsList.add(getVectors(id));
+            codesList.add(getCodes(id));
+        }
+
+        docIds = null;
+        docOffsets = null;
+        docCounts = null;
+        codes = null;
+        docCentroids = null;
+        centroids = null;
+        centroidRadius = null;
+        vectors = new VectorRows(vectors.encoding, dimension);
+        exactVectors = null == exactVectors ? null : new VectorRows(VectorEncoding.FLOAT32, dimension);
+        for (int i = 0; i < ids.length; i++) {
+            List<float[]> docVectors = vectorsList.get(i);
+            for (int j = 0; j < docVectors.size(); j++) {
+                add(ids[i], docVectors.get(j), codesList.get(i).get(j));
+            }
+        }
+    }
+
+    /**
+     * 同一种编码的向量行
+     * 构建阶段：按行号追加到定长的字节页中
+     * 打包阶段：按文档顺序拷贝到堆内分段，分段方式同加载阶段，每段多出的maxCount行是下一段开头的副本
+     * 加载阶段：分段只读内存映射，每段多映射maxCount行，保证起始于本段的文档完整落在本段内
+     */
+    private static final class VectorRows {
+        /**
+         * encoding：      向量编码
+         * rowBytes：      每行字节数
+         * pages：         构建阶段的字节页，每页PAGE_ROWS行
+         * regions：       加载后的内存映射分段
+         * rowsPerRegion： 每段映射起始行的间隔
+         */
+        private final VectorEncoding encoding;
+        private final int rowBytes;
+        private final List<ByteBuffer> pages = new ArrayList<>();
+        private ByteBuffer[] regions;
+        private int rowsPerRegion;
+
+        private VectorRows(VectorEncoding encoding, int dimension) {
+            this.encoding = encoding;
+            this.rowBytes = encoding.rowBytes(dimension);
+        }
+
+        private void append(int row, float[] vector) {
+            if (row / PAGE_ROWS == pages.size()) {
+                pages.add(ByteBuffer.allocate(PAGE_ROWS * rowBytes).order(ByteOrder.LITTLE_ENDIAN));
+            }
+            encoding.encode(vector, page(row), pageOffset(row));
+        }
+
+        private ByteBuffer page(int row) {
+            return pages.get(row / PAGE_ROWS);
+        }
+
+        private int pageOffset(int row) {
+            return (row % PAGE_ROWS) * rowBytes;
+        }
+
+        /**
+         * @param firstRow 文档第一个向量的行号
+         * @return 包含该文档全部向量的映射分段
+         */
+        private ByteBuffer region(int firstRow) {
+            return regions[firstRow / rowsPerRegion];
+        }
+
+        private int regionOffset(int firstRow) {
+            return (firstRow % rowsPerRegion) * rowBytes;
+        }
+
+        /**
+         * @param dataStart 第0行在文件中的偏移
+         */
+        private void map(SegmentFile.Reader reader, long dataStart, int totalRows, int maxCount) throws IOException {
+            long[] regionRows = layout(totalRows, maxCount);
+            for (int i = 0; i < regionRows.length; i++) {
+                long firstRow = (long) i * rowsPerRegion;
+                regions[i] = reader.map(dataStart + firstRow * rowBytes, regionRows[i] * rowBytes);
+            }
+        }
+
+        /**
+         * @param source   构建阶段的向量行
+         * @param rowOrder 新行号 -> 构建阶段的行号
+         */
+        private void pack(VectorRows source, int[] rowOrder, int totalRows, int maxCount) {
+            long[] regionRows = layout(totalRows, maxCount);
+            for (int i = 0; i < regionRows.length; i++) {
+                int firstRow = i * rowsPerRegion;
+                byte[] region = new byte[(int) regionRows[i] * rowBytes];
+                for (int row = 0; row < regionRows[i]; row++) {
+                    int oldRow = rowOrder[firstRow + row];
+                    System.arraycopy(source.page(oldRow).array(), source.pageOffset(oldRow), region, row * rowBytes,
+                            rowBytes);
+                }
+                regions[i] = ByteBuffer.wrap(region).order(ByteOrder.LITTLE_ENDIAN);
+            }
+        }
+
+        /**
+         * 划分分段：各段起始行间隔rowsPerRegion，每段多包含maxCount行
+         *
+         * @return 各段的行数
+         */
+        private long[] layout(int totalRows, int maxCount) {
+            rowsPerRegion = (int) Math.max(1, MAX_REGION_BYTES / rowBytes - maxCount);
+            int regionCount = totalRows == 0 ? 0 : (totalRows - 1) / rowsPerRegion + 1;
+            regions = new ByteBuffer[regionCount];
+            long[] regionRows = new long[regionCount];
+            for (int i = 0; i < regionCount; i++) {
+                regionRows[i] = Math.min(totalRows - (long) i * rowsPerRegion, (long) rowsPerRegion + maxCount);
+            }
+            return regionRows;
+        }
+    }
+}
@@ -8,6 +8,8 @@ import org.apache.commons.lang3.tuple.Pair;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -20,6 +22,17 @@ import java.util.List;
  */
 @Slf4j
 public class VectorTools {
+    /**
+     * HALF_TO_FLOAT： 半精度浮点数（IEEE binary16）的全部65536个取值对应的float，距离计算时查表代替位运算
+     */
+    private static final float[] HALF_TO_FLOAT = new float[1 << 16];
+
+    static {
+        for (int half = 0; half < HALF_TO_FLOAT.length; half++) {
+            HALF_TO_FLOAT[half] = halfBitsToFloat(half);
+        }
+    }
+
     /**
      * 计算两个点之间的欧式距离
      *
@@ -45,14 +58,255 @@ public class VectorTools {
     public static float diffSquare(float[] p1, float[] p2) {
         assert p1.length == p2.length;
 
+        return diffSquare(p1, 0, p2, 0, p1.length);
+    }
+
+    /**
+     * 向量片段之间欧式距离的平方
+     * 8路展开、8个累加器，消除单个累加器的循环依赖，便于CPU并行执行乘加；只比较大小时不要开方
+     *
+     * @param p1       向量1
+     * @param p1Offset 向量1的起始位置
+     * @param p2       向量2
+     * @param p2Offset 向量2的起始位置
+     * @param length   片段长度
+     * @return
+     */
+    public static float diffSquare(float[] p1, int p1Offset, float[] p2, int p2Offset, int length) {
+        float sum0 = 0.0f;
+        float sum1 = 0.0f;
+        float sum2 = 0.0f;
+        float sum3 = 0.0f;
+        float sum4 = 0.0f;
+        float sum5 = 0.0f;
+        float sum6 = 0.0f;
+        float sum7 = 0.0f;
+        int i = 0;
+        for (; i + 7 < length; i += 8) {
+            int a = p1Offset + i;
+            int b = p2Offset + i;
+            float diff0 = p1[a] - p2[b];
+            float diff1 = p1[a + 1] - p2[b + 1];
+            float diff2 = p1[a + 2] - p2[b + 2];
+            float diff3 = p1[a + 3] - p2[b + 3];
+            float diff4 = p1[a + 4] - p2[b + 4];
+            float diff5 = p1[a + 5] - p2[b + 5];
+            float diff6 = p1[a + 6] - p2[b + 6];
+            float diff7 = p1[a + 7] - p2[b + 7];
+            sum0 += diff0 * diff0;
+            sum1 += diff1 * diff1;
+            sum2 += diff2 * diff2;
+            sum3 += diff3 * diff3;
+            sum4 += diff4 * diff4;
+            sum5 += diff5 * diff5;
+            sum6 += diff6 * diff6;
+            sum7 += diff7 * diff7;
+        }
+        for (; i < length; i++) {
+            float diff = p1[p1Offset + i] - p2[p2Offset + i];
+            sum0 += diff * diff;
+        }
+
+        return ((sum0 + sum1) + (sum2 + sum3)) + ((sum4 + sum5) + (sum6 + sum7));
+    }
+
+    /**
+     * 向量内积，与diffSquare相同的8路展开
+     *
+     * @param p1 向量1
+     * @param p2 向量2
+     * @return
+     */
+    public static float dot(float[] p1, float[] p2) {
+        assert p1.length == p2.length;
+
+        float sum0 = 0.0f;
+        float sum1 = 0.0f;
+        float sum2 = 0.0f;
+        float sum3 = 0.0f;
+        float sum4 = 0.0f;
+        float sum5 = 0.0f;
+        float sum6 = 0.0f;
+        float sum7 = 0.0f;
+        int i = 0;
+        for (; i + 7 < p1.length; i += 8) {
+            sum0 += p1[i] * p2[i];
+            sum1 += p1[i + 1] * p2[i + 1];
+            sum2 += p1[i + 2] * p2[i + 2];
+            sum3 += p1[i + 3] * p2[i + 3];
+            sum4 += p1[i + 4] * p2[i + 4];
+            sum5 += p1[i + 5] * p2[i + 5];
+            sum6 += p1[i + 6] * p2[i + 6];
+            sum7 += p1[i + 7] * p2[i + 7];
+        }
+        for (; i < p1.length; i++) {
+            sum0 += p1[i] * p2[i];
+        }
+
+        return ((sum0 + sum1) + (sum2 + sum3)) + ((sum4 + sum5) + (sum6 + sum7));
+    }
+
+    /**
+     * 向量规范化为单位长度，返回新数组，零向量原样拷贝
+     *
+     * @param vector 向量
+     * @return 平方和为1的向量
+     */
+    public static float[] normalize(float[] vector) {
+        float[] normalized = vector.clone();
+        float normSquare = dot(vector, vector);
+        if (normSquare > 0) {
+            float scale = (float) (1.0 / Math.sqrt(normSquare));
+            for (int i = 0; i < normalized.length; i++) {
+                normalized[i] *= scale;
+            }
+        }
+
+        return normalized;
+    }
+
+    /**
+     * 向量与映射存储中一段向量的欧式距离平方
+     * 缓冲区每次读取都有边界检查，瓶颈不在累加依赖上，实测展开没有收益，保持逐维计算
+     *
+     * @param p1     向量1
+     * @param buffer 映射存储
+     * @param offset 向量2在映射存储中的起始位置
+     * @return
+     */
+    public static float diffSquare(float[] p1, FloatBuffer buffer, int offset) {
         float squareDiff = 0.0f;
         for (int i = 0; i < p1.length; i++) {
-            squareDiff += (p1[i] - p2[i]) * (p1[i] - p2[i]);
+            float diff = p1[i] - buffer.get(offset + i);
+            squareDiff += diff * diff;
+        }
+
+        return squareDiff;
+    }
+
+    /**
+     * 向量与字节存储中一个float向量在维度[from, to)上的欧式距离平方
+     *
+     * @param p1     向量1
+     * @param buffer 小端序字节存储
+     * @param offset 向量2的起始字节位置
+     * @param from   起始维度
+     * @param to     结束维度（不含）
+     * @return
+     */
+    public static float diffSquare(float[] p1, ByteBuffer buffer, int offset, int from, int to) {
+        float squareDiff = 0.0f;
+        for (int i = from, pos = offset + 4 * from; i < to; i++, pos += 4) {
+            float diff = p1[i] - buffer.getFloat(pos);
+            squareDiff += diff * diff;
+        }
+
+        return squareDiff;
+    }
+
+    /**
+     * 向量与int8标量量化向量在维度[from, to)上的欧式距离平方，直接在字节上计算，不解码
+     * 量化向量第i维的值为 min + scale * (无符号字节i)
+     *
+     * @param p1     向量1
+     * @param buffer 字节存储
+     * @param offset 量化字节的起始位置
+     * @param min    量化向量的最小值
+     * @param scale  量化步长
+     * @param from   起始维度
+     * @param to     结束维度（不含）
+     * @return
+     */
+    public static float diffSquareInt8(float[] p1, ByteBuffer buffer, int offset, float min, float scale, int from,
+                                       int to) {
+        float squareDiff = 0.0f;
+        for (int i = from; i < to; i++) {
+            float diff = p1[i] - min - scale * (buffer.get(offset + i) & 0xFF);
+            squareDiff += diff * diff;
         }
 
         return squareDiff;
     }
 
+    /**
+     * 向量与半精度向量在维度[from, to)上的欧式距离平方，半精度值在计算时查表转为float
+     *
+     * @param p1     向量1
+     * @param buffer 小端序字节存储
+     * @param offset 半精度向量的起始字节位置
+     * @param from   起始维度
+     * @param to     结束维度（不含）
+     * @return
+     */
+    public static float diffSquareHalf(float[] p1, ByteBuffer buffer, int offset, int from, int to) {
+        float squareDiff = 0.0f;
+        for (int i = from, pos = offset + 2 * from; i < to; i++, pos += 2) {
+            float diff = p1[i] - HALF_TO_FLOAT[buffer.getShort(pos) & 0xFFFF];
+            squareDiff += diff * diff;
+        }
+
+        return squareDiff;
+    }
+
+    /**
+     * @param half 半精度浮点数的16位
+     * @return 对应的float
+     */
+    public static float halfToFloat(short half) {
+        return HALF_TO_FLOAT[half & 0xFFFF];
+    }
+
+    /**
+     * float转为半精度浮点数，就近舍入（相等时取偶数），超出范围时为无穷大
+     *
+     * @param value float值
+     * @return 半精度浮点数的16位
+     */
+    public static short floatToHalf(float value) {
+        int bits = Float.floatToIntBits(value);
+        int sign = (bits >>> 16) & 0x8000;
+        int abs = bits & 0x7FFFFFFF;
+
+        //无穷大、NaN、以及舍入后超过半精度最大值65504的数
+        if (abs >= 0x7F800000) {
+            return (short) (sign | 0x7C00 | (abs > 0x7F800000 ? 0x200 : 0));
+        }
+        if (abs >= 0x477FF000) {
+            return (short) (sign | 0x7C00);
+        }
+
+        //半精度的非规格化数，单位为2^-24
+        int exponent = abs >>> 23;
+        if (exponent < 113) {
+            return (short) (sign | (int) Math.rint(Float.intBitsToFloat(abs) * 0x1p24f));
+        }
+
+        //规格化数，尾数截去13位后就近舍入，进位可以进到指数
+        int mantissa = abs & 0x7FFFFF;
+        int half = ((exponent - 112) << 10) | (mantissa >>> 13);
+        int rest = mantissa & 0x1FFF;
+        if (rest > 0x1000 || (rest == 0x1000 && (half & 1) == 1)) {
+            half++;
+        }
+
+        return (short) (sign | half);
+    }
+
+    private static float halfBitsToFloat(int half) {
+        int sign = (half & 0x8000) << 16;
+        int exponent = (half >>> 10) & 0x1F;
+        int mantissa = half & 0x3FF;
+        if (exponent == 0x1F) {
+            return Float.intBitsToFloat(sign | 0x7F800000 | (mantissa << 13));
+        }
+        if (exponent == 0) {
+            float value = mantissa * 0x1p-24f;
+            return 0 == sign ? value : -value;
+        }
+
+        return Float.intBitsToFloat(sign | ((exponent + 112) << 23) | (mantissa << 13));
+    }
+
     /**
      * 加载数据  数据格式如下：
      * id#value1,value2,....,value1024
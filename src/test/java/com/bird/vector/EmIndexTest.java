@@ -5,13 +5,18 @@ import com.bird.vector.EmPQ;
 import com.bird.vector.common.VectorTools;
 import com.bird.vector.utils.ArrayTools;
 import com.bird.vector.utils.Separators;
+import com.google.common.util.concurrent.RateLimiter;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.tuple.Pair;
+import org.roaringbitmap.RoaringBitmap;
 
 import java.lang.management.ManagementFactory;
 import java.lang.management.MemoryMXBean;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 /**
  * Created with IntelliJ IDEA.
@@ -162,13 +167,12 @@ public class EmIndexTest {
     public static void loadIndexTest(EmPQ pq, String indexDir, String indexPrefix, int clusterTopn, int topn) {
         EmIndex emIndex = new EmIndex(pq);
         emIndex.load(indexDir, indexPrefix);
-        List<Pair<Integer, Float>> docs = emIndex.searchDocs(floatVector, clusterTopn, topn);
+        SearchHits docs = emIndex.searchDocs(floatVector, clusterTopn, topn);
         for (int i = 0; i < docs.size(); i++) {
-            Pair<Integer, Float> pair = docs.get(i);
-            int id = pair.getKey();
-            float dis = pair.getValue();
+            int id = docs.getId(i);
+            float dis = docs.getScore(i);
 
-            List<float[]> vectors = emIndex.getIndexVectors().get(id);
+            List<float[]> vectors = emIndex.getVectors(id);
             StringBuilder sb = new StringBuilder();
             for (int j = 0; j < vectors.size(); j++) {
                 float[] vector = vectors.get(j);
@@ -179,7 +183,148 @@ public class EmIndexTest {
         }
     }
 
-    public static void main(String[] args) {
+    /**
+     * 对比不同向量编码的召回率和耗时，召回率以FLOAT32编码的结果为准
+     */
+    public static void encodingTest(EmPQ pq, int clusterTopn, int topn) {
+        log.info("--------------向量编码召回率测试----------------");
+        String csvFile = "data/test.txt";
+        Pair<List<Integer>, List<float[]>> idsAndVectorsPair = VectorTools.laodIdsAndVectors(csvFile);
+        List<float[]> vectors = idsAndVectorsPair.getValue();
+        List<Integer> ids = idsAndVectorsPair.getKey();
+        int queryCount = 100;
+
+        EmIndex floatIndex = new EmIndex(pq);
+        floatIndex.addVector(vectors, ids);
+        EmIndex halfIndex = new EmIndex(pq);
+        halfIndex.setVectorEncoding(VectorEncoding.FLOAT16);
+        halfIndex.addVector(vectors, ids);
+        EmIndex int8Index = new EmIndex(pq);
+        int8Index.setVectorEncoding(VectorEncoding.INT8);
+        int8Index.setExactRecheck(false);
+        int8Index.addVector(vectors, ids);
+        EmIndex recheckIndex = new EmIndex(pq);
+        recheckIndex.setVectorEncoding(VectorEncoding.INT8);
+        recheckIndex.addVector(vectors, ids);
+
+        int halfHit = 0;
+        int int8Hit = 0;
+        int recheckHit = 0;
+        for (int q = 0; q < queryCount; q++) {
+            float[] query = vectors.get(q * (vectors.size() / queryCount));
+            Set<Integer> expected = new HashSet<>();
+            for (int id : floatIndex.searchDocs(query, clusterTopn, topn).getIds()) {
+                expected.add(id);
+            }
+            for (int id : halfIndex.searchDocs(query, clusterTopn, topn).getIds()) {
+                halfHit += expected.contains(id) ? 1 : 0;
+            }
+            for (int id : int8Index.searchDocs(query, clusterTopn, topn).getIds()) {
+                int8Hit += expected.contains(id) ? 1 : 0;
+            }
+            for (int id : recheckIndex.searchDocs(query, clusterTopn, topn).getIds()) {
+                recheckHit += expected.contains(id) ? 1 : 0;
+            }
+        }
+        log.info("FLOAT16召回率:{} INT8召回率:{} INT8精确复核召回率:{}", halfHit / (float) (queryCount * topn),
+                int8Hit / (float) (queryCount * topn), recheckHit / (float) (queryCount * topn));
+    }
+
+    /**
+     * 余弦度量：训练COSINE量化模型，存储后重新加载，检查返回的分数与直接计算的余弦相似度一致
+     */
+    public static void metricTest(int pqSegmentCount, int clusterCount, int vectorDimention, int clusterTopn,
+                                  int topn) {
+        log.info("--------------余弦度量测试----------------");
+        String csvFile = "data/test.txt";
+        Pair<List<Integer>, List<float[]>> idsAndVectorsPair = VectorTools.laodIdsAndVectors(csvFile);
+        List<float[]> vectors = idsAndVectorsPair.getValue();
+        List<Integer> ids = idsAndVectorsPair.getKey();
+
+        String modelDir = "pqmodel-cosine/";
+        EmPQ cosinePq = new EmPQ(pqSegmentCount, clusterCount, 20, vectorDimention);
+        cosinePq.setMetric(Metric.COSINE);
+        cosinePq.train(new ArrayList<>(vectors));
+        cosinePq.store(modelDir);
+        EmPQ loadedPq = new EmPQ(pqSegmentCount, clusterCount, 20, vectorDimention);
+        loadedPq.load(modelDir);
+
+        EmIndex emIndex = new EmIndex(loadedPq);
+        emIndex.addVector(vectors, ids);
+        float[] query = vectors.get(0);
+        SearchHits hits = emIndex.searchDocs(query, clusterTopn, topn);
+        float maxError = 0.0f;
+        for (int i = 0; i < hits.size(); i++) {
+            float[] vector = vectors.get(hits.getId(i));
+            float cosine = VectorTools.dot(query, vector)
+                    / (float) Math.sqrt(VectorTools.dot(query, query) * VectorTools.dot(vector, vector));
+            maxError = Math.max(maxError, Math.abs(cosine - hits.getScore(i)));
+        }
+        log.info("度量:{} 结果:{} 分数最大误差:{}", loadedPq.getMetric(), hits, maxError);
+    }
+
+    /**
+     * 对比固定聚类数与自适应聚类数的召回文档数和结果
+     */
+    public static void adaptiveTest(EmPQ pq, String indexDir, String indexPrefix, int topn) {
+        EmIndex emIndex = new EmIndex(pq);
+        emIndex.load(indexDir, indexPrefix);
+        for (int clusterTopn : new int[]{1, 2, 3, 4, 8}) {
+            RoaringBitmap recallRb = emIndex.searchRb(floatVector, clusterTopn);
+            SearchHits hits = emIndex.searchDocs(floatVector, clusterTopn, topn);
+            log.info("聚类数:{} 召回文档数:{} 结果:{}", clusterTopn, recallRb.getCardinality(), hits);
+        }
+
+        RoaringBitmap recallRb = emIndex.searchRb(floatVector, 0);
+        SearchHits hits = emIndex.searchDocs(floatVector, 0, topn);
+        log.info("自适应 召回文档数:{} 结果:{}", recallRb.getCardinality(), hits);
+    }
+
+    /**
+     * 合并期间删除文档并存储，合并提交后重新加载，删除的文档不能再被查到
+     * 合并限速为全部向量字节数的一半每秒，保证删除和存储发生在合并期间
+     */
+    public static void mergeDeleteTest(EmPQ pq, String indexDir, String indexPrefix, int clusterTopn)
+            throws InterruptedException {
+        log.info("--------------合并期间删除测试----------------");
+        String csvFile = "data/test.txt";
+        Pair<List<Integer>, List<float[]>> idsAndVectorsPair = VectorTools.laodIdsAndVectors(csvFile);
+        List<float[]> vectors = idsAndVectorsPair.getValue();
+        List<Integer> ids = idsAndVectorsPair.getKey();
+
+        EmIndex emIndex = new EmIndex(pq);
+        emIndex.setMergeEnabled(false);
+        emIndex.setRefreshVectors(vectors.size() / 4 + 1);
+        for (int i = 0; i < vectors.size(); i++) {
+            emIndex.addVector(vectors.get(i), ids.get(i));
+        }
+        emIndex.store(indexDir, indexPrefix);
+
+        long bytes = (long) vectors.size() * (pq.getVectorDimension() * 4 + pq.getPqSegmentCount());
+        emIndex.setMergeRateLimiter(RateLimiter.create(bytes / 2.0));
+        Thread compactThread = new Thread(emIndex::compact);
+        compactThread.start();
+        Thread.sleep(200);
+        int deleteCount = 10;
+        for (int i = 0; i < deleteCount; i++) {
+            emIndex.delete(ids.get(i));
+        }
+        emIndex.store(indexDir, indexPrefix);
+        compactThread.join();
+
+        EmIndex loaded = new EmIndex(pq);
+        loaded.load(indexDir, indexPrefix);
+        int found = 0;
+        for (int i = 0; i < deleteCount; i++) {
+            for (int id : loaded.searchDocs(vectors.get(i), clusterTopn, 1).getIds()) {
+                found += id == ids.get(i) ? 1 : 0;
+            }
+        }
+        log.info("合并后段数:{} 重新加载后段数:{} 仍能查到的删除文档数:{}", emIndex.getSegments().size(),
+                loaded.getSegments().size(), found);
+    }
+
+    public static void main(String[] args) throws InterruptedException {
         int pqSegmentCount = 16;
         int clusterCount = 16;
         int maxIterCount = 100;
@@ -201,5 +346,17 @@ public class EmIndexTest {
         //向量索引加载与访问
         log.info("查询向量:{}", Arrays.toString(floatVector));
         loadIndexTest(pq, indexDir, indexPrefix, clusterTopn, topn);
+
+        //向量编码对召回率的影响
+        encodingTest(pq, clusterTopn, topn);
+
+        //余弦度量的分数
+        metricTest(pqSegmentCount, clusterCount, vectorDimention, clusterTopn, topn);
+
+        //自适应聚类数
+        adaptiveTest(pq, indexDir, indexPrefix, topn);
+
+        //合并期间的删除在重新加载后仍然生效
+        mergeDeleteTest(pq, indexDir, "merge", clusterTopn);
     }
 }
@@ -0,0 +1,88 @@
+package com.bird.vector;
+
+import com.bird.vector.common.VectorTools;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.tuple.Pair;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Created with IntelliJ IDEA.
+ *
+ * @description：
+ * @author： liuxiangqian
+ * @date： 2024/10/18
+ */
+@Slf4j
+public class HnswIndexTest {
+
+    /**
+     * 不同efSearch下的召回率和耗时，召回率以精确计算的topn为准
+     */
+    private static void recallTest(HnswIndex hnswIndex, List<float[]> vectors, int queryCount, int topn) {
+        for (int ef : new int[]{16, 64, 200}) {
+            int hit = 0;
+            long took = 0;
+            for (int q = 0; q < queryCount; q++) {
+                float[] query = vectors.get(q * (vectors.size() / queryCount));
+                TopkHeap heap = new TopkHeap(topn);
+                for (int i = 0; i < vectors.size(); i++) {
+                    heap.offer(i, VectorTools.diffSquare(query, vectors.get(i)));
+                }
+                Set<Integer> expected = new HashSet<>();
+                for (int id : heap.ids()) {
+                    expected.add(id);
+                }
+
+                long start = System.currentTimeMillis();
+                SearchHits hits = hnswIndex.searchDocs(query, ef, topn);
+                took += System.currentTimeMillis() - start;
+                for (int id : hits.getIds()) {
+                    hit += expected.contains(id) ? 1 : 0;
+                }
+            }
+
+            log.info("efSearch:{} 召回率:{} 耗时:{}ms", ef, hit / (float) (queryCount * topn), took);
+        }
+    }
+
+    public static void main(String[] args) {
+        int pqSegmentCount = 16;
+        int clusterCount = 16;
+        int maxIterCount = 100;
+        int vectorDimention = 1024;
+        int topn = 10;
+
+        //图索引只用量化模型取向量维数
+        EmPQ pq = new EmPQ(pqSegmentCount, clusterCount, maxIterCount, vectorDimention);
+        HnswIndex hnswIndex = new HnswIndex(pq);
+        hnswIndex.setEfSearch(1);
+
+        String csvFile = "data/test.txt";
+        Pair<List<Integer>, List<float[]>> idsAndVectorsPair = VectorTools.laodIdsAndVectors(csvFile);
+        List<float[]> vectors = idsAndVectorsPair.getValue();
+        List<Integer> ids = idsAndVectorsPair.getKey();
+        hnswIndex.addVector(vectors, ids);
+
+        //测试文件中id与行号一致
+        recallTest(hnswIndex, vectors, 100, topn);
+
+        //存储与加载：加载后向量为只读映射，仍可继续写入
+        String indexDir = "index/";
+        hnswIndex.store(indexDir, "hnsw");
+        HnswIndex loaded = new HnswIndex(pq);
+        loaded.load(indexDir, "hnsw");
+        log.info("加载前:{}", hnswIndex.searchDocs(vectors.get(0), 64, topn));
+        log.info("加载后:{}", loaded.searchDocs(vectors.get(0), 64, topn));
+
+        loaded.delete(0);
+        loaded.addVector(vectors.get(0), vectors.size());
+        log.info("删除并重新写入后:{}", loaded.searchDocs(vectors.get(0), 64, topn));
+
+        //重建图：清除删除的节点，结果不变
+        loaded.compact();
+        log.info("重建后:{}", loaded.searchDocs(vectors.get(0), 64, topn));
+    }
+}
@@ -0,0 +1,100 @@
+package com.bird.vector;
+
+import com.bird.vector.common.VectorTools;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.tuple.Pair;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Created with IntelliJ IDEA.
+ *
+ * @description：
+ * @author： liuxiangqian
+ * @date： 2024/10/18
+ */
+@Slf4j
+public class IvfPqIndexTest {
+
+    /**
+     * 对比EmIndex与IvfPqIndex的召回率和耗时，召回率以精确计算的topn为准
+     */
+    private static void compareTest(EmIndex emIndex, IvfPqIndex ivfIndex, List<float[]> vectors, int queryCount,
+                                    int topn) {
+        for (int probe : new int[]{1, 4, 16, 64}) {
+            int emHit = 0;
+            int ivfHit = 0;
+            long emTook = 0;
+            long ivfTook = 0;
+            for (int q = 0; q < queryCount; q++) {
+                float[] query = vectors.get(q * (vectors.size() / queryCount));
+                TopkHeap heap = new TopkHeap(topn);
+                for (int i = 0; i < vectors.size(); i++) {
+                    heap.offer(i, VectorTools.diffSquare(query, vectors.get(i)));
+                }
+                Set<Integer> expected = new HashSet<>();
+                for (int id : heap.ids()) {
+                    expected.add(id);
+                }
+
+                long start = System.currentTimeMillis();
+                SearchHits emHits = emIndex.searchDocs(query, Math.min(probe, emIndex.getPq().getClusterCount()), topn);
+                emTook += System.currentTimeMillis() - start;
+                start = System.currentTimeMillis();
+                SearchHits ivfHits = ivfIndex.searchDocs(query, probe, topn);
+                ivfTook += System.currentTimeMillis() - start;
+
+                for (int id : emHits.getIds()) {
+                    emHit += expected.contains(id) ? 1 : 0;
+                }
+                for (int id : ivfHits.getIds()) {
+                    ivfHit += expected.contains(id) ? 1 : 0;
+                }
+            }
+
+            log.info("probe:{} EmIndex召回率:{} 耗时:{}ms IvfPqIndex召回率:{} 耗时:{}ms", probe,
+                    emHit / (float) (queryCount * topn), emTook, ivfHit / (float) (queryCount * topn), ivfTook);
+        }
+    }
+
+    public static void main(String[] args) {
+        int pqSegmentCount = 16;
+        int clusterCount = 256;
+        int maxIterCount = 20;
+        int vectorDimention = 1024;
+        int listCount = 256;
+        int topn = 10;
+
+        String csvFile = "data/test.txt";
+        Pair<List<Integer>, List<float[]>> idsAndVectorsPair = VectorTools.laodIdsAndVectors(csvFile);
+        List<float[]> vectors = idsAndVectorsPair.getValue();
+        List<Integer> ids = idsAndVectorsPair.getKey();
+
+        //EmIndex：量化模型直接对向量训练
+        EmPQ pq = new EmPQ(pqSegmentCount, clusterCount, maxIterCount, vectorDimention);
+        pq.train(new ArrayList<>(vectors));
+        EmIndex emIndex = new EmIndex(pq);
+        emIndex.addVector(vectors, ids);
+
+        //IvfPqIndex：量化模型对粗聚类残差训练
+        EmPQ residualPq = new EmPQ(pqSegmentCount, clusterCount, maxIterCount, vectorDimention);
+        IvfPqIndex ivfIndex = new IvfPqIndex(residualPq, listCount);
+        ivfIndex.train(vectors);
+        ivfIndex.addVector(vectors, ids);
+
+        //测试文件中id与行号一致
+        compareTest(emIndex, ivfIndex, vectors, 100, topn);
+
+        //存储与加载
+        String indexDir = "index/";
+        ivfIndex.store(indexDir, "ivf");
+        residualPq.store("pqmodel_ivf/");
+        IvfPqIndex loaded = new IvfPqIndex(residualPq, listCount);
+        loaded.load(indexDir, "ivf");
+        log.info("加载前:{}", ivfIndex.searchDocs(vectors.get(0), 16, topn));
+        log.info("加载后:{}", loaded.searchDocs(vectors.get(0), 16, topn));
+    }
+}
@@ -5,7 +5,9 @@ import com.bird.vector.utils.ArrayTools;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.tuple.Pair;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Random;
 
 /**
  * Created with IntelliJ IDEA.
@@ -134,6 +136,41 @@ public class PQTest {
 
     private static float[] floatVector = ArrayTools.toFloatArr(vector);
 
+    /**
+     * 聚类中心的顺序：第s段的向量均值为10*s，第s组聚类中心的均值应与之一致
+     */
+    public static void segmentOrderTest(int pqSegmentCount, int clusterCount, int vectorDimension) {
+        int segLength = vectorDimension / pqSegmentCount;
+        Random random = new Random(7);
+        List<float[]> vectors = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            float[] vector = new float[vectorDimension];
+            for (int j = 0; j < vectorDimension; j++) {
+                vector[j] = 10.0f * (j / segLength) + random.nextFloat();
+            }
+            vectors.add(vector);
+        }
+
+        EmPQ pq = new EmPQ(pqSegmentCount, clusterCount, 10, vectorDimension);
+        pq.train(vectors);
+        boolean ordered = true;
+        StringBuilder means = new StringBuilder();
+        for (int segNum = 0; segNum < pqSegmentCount; segNum++) {
+            double sum = 0;
+            int count = 0;
+            for (Pair<Integer, float[]> center : pq.getCentersList().get(segNum)) {
+                for (float value : center.getRight()) {
+                    sum += value;
+                    count++;
+                }
+            }
+            long mean = Math.round((sum / count - 0.5) / 10.0);
+            ordered &= mean == segNum;
+            means.append(mean).append(' ');
+        }
+        log.info("各段聚类中心均值/10:{} 顺序正确:{}", means.toString().trim(), ordered);
+    }
+
     public static void main(String[] args) {
         int pqSegmentCount = 16;
         int clusterCount = 16;
@@ -162,5 +199,8 @@ public class PQTest {
 
         log.info("聚类中心:{}", centersList);
         log.info("量化结果:{}", clusterIds);
+
+        //测试： 聚类中心与向量段一一对应
+        segmentOrderTest(pqSegmentCount, clusterCount, vectorDimension);
     }
 }
@@ -0,0 +1,286 @@
+package com.bird.vector;
+
+import com.alibaba.fastjson.JSONArray;
+import com.alibaba.fastjson.JSONObject;
+import com.bird.vector.common.VectorTools;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.tuple.Pair;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.stream.IntStream;
+
+/**
+ * 召回率与延迟基准测试
+ * 1.数据集：参数指定向量文件（格式同data/test.txt：id#v1,v2,...）时加载，否则按聚类分布生成，末尾QUERY_COUNT个向量留作查询
+ * 2.真值：查询向量对全部入库向量并行暴力计算欧式距离，保留最近的100个文档
+ * 3.遍历pqSegmentCount、clusterCount：训练量化模型并建索引，记录建索引耗时和堆内存增量
+ * 4.每个索引再遍历clusterTopn（0为自适应）和maxRecall（0表示使用ADC，大于0时关闭ADC、精确距离计算最多maxRecall个文档）
+ * 5.单线程逐个查询，输出recall@1/10/100、QPS、p50/p99延迟，结果写入 data/benchmark/recall.csv 和 recall.json
+ * 查询期间EmIndex每次查询都会打印召回日志，测延迟时建议把com.bird.vector的日志级别调为WARN
+ *
+ * @description：
+ * @author： liuxiangqian
+ * @date： 2024/10/28
+ */
+@Slf4j
+public class RecallBenchmark {
+    /**
+     * 遍历的参数
+     */
+    private static final int[] PQ_SEGMENT_COUNTS = {8, 16, 32};
+    private static final int[] CLUSTER_COUNTS = {16, 64, 256};
+    private static final int[] CLUSTER_TOPNS = {1, 2, 4, 8, 0};
+    private static final int[] MAX_RECALLS = {0, 2000, EmIndex.MAX_RECALL};
+
+    /**
+     * RECALL_KS：      计算召回率的k，最大值即查询的topn和真值个数
+     * MAX_ITER_COUNT： 量化模型训练的最大迭代次数
+     * TRAIN_COUNT：    量化模型训练的最大样本数
+     * QUERY_COUNT：    查询数
+     * WARMUP_COUNT：   每组参数正式计时前的预热查询数
+     * 生成数据集时的向量数、维数和聚类中心数
+     */
+    private static final int[] RECALL_KS = {1, 10, 100};
+    private static final int MAX_ITER_COUNT = 20;
+    private static final int TRAIN_COUNT = 20000;
+    private static final int QUERY_COUNT = 200;
+    private static final int WARMUP_COUNT = 20;
+    private static final int GEN_VECTOR_COUNT = 100000;
+    private static final int GEN_DIMENSION = 128;
+    private static final int GEN_CENTER_COUNT = 100;
+    private static final String OUTPUT_DIR = "data/benchmark/";
+
+    /**
+     * @param dataPath 向量文件路径，null时生成数据集
+     * @return 文档id和向量，末尾QUERY_COUNT个作为查询
+     */
+    private static Pair<List<Integer>, List<float[]>> loadDataset(String dataPath) {
+        if (null != dataPath) {
+            log.info("加载数据集:{}", dataPath);
+            return VectorTools.laodIdsAndVectors(dataPath);
+        }
+
+        log.info("生成数据集, 向量数:{} 维数:{} 中心数:{}", GEN_VECTOR_COUNT, GEN_DIMENSION, GEN_CENTER_COUNT);
+        Random random = new Random(2024);
+        float[][] centers = new float[GEN_CENTER_COUNT][GEN_DIMENSION];
+        for (float[] center : centers) {
+            for (int i = 0; i < GEN_DIMENSION; i++) {
+                center[i] = (float) random.nextGaussian() * 3;
+            }
+        }
+
+        int total = GEN_VECTOR_COUNT + QUERY_COUNT;
+        List<Integer> ids = new ArrayList<>(total);
+        List<float[]> vectors = new ArrayList<>(total);
+        for (int id = 0; id < total; id++) {
+            float[] center = centers[random.nextInt(GEN_CENTER_COUNT)];
+            float scale = 0.5f + random.nextFloat();
+            float[] vector = new float[GEN_DIMENSION];
+            for (int i = 0; i < GEN_DIMENSION; i++) {
+                vector[i] = center[i] + (float) random.nextGaussian() * scale;
+            }
+            ids.add(id);
+            vectors.add(vector);
+        }
+
+        return Pair.of(ids, vectors);
+    }
+
+    /**
+     * 暴力计算真值，各查询并行
+     *
+     * @param ids     入库文档id
+     * @param vectors 入库向量
+     * @param queries 查询向量
+     * @param topn    每个查询保留的文档数
+     * @return 每个查询按距离升序的文档id
+     */
+    private static int[][] groundTruth(List<Integer> ids, List<float[]> vectors, float[][] queries, int topn) {
+        long start = System.currentTimeMillis();
+        int[][] truth = new int[queries.length][];
+        IntStream.range(0, queries.length).parallel().forEach(q -> {
+            TopkHeap heap = new TopkHeap(topn);
+            for (int i = 0; i < vectors.size(); i++) {
+                heap.offer(ids.get(i), VectorTools.diffSquare(queries[q], vectors.get(i)));
+            }
+            truth[q] = heap.toHits().getIds();
+        });
+        log.info("真值计算完毕, 查询数:{} 耗时:{}ms", queries.length, System.currentTimeMillis() - start);
+
+        return truth;
+    }
+
+    /**
+     * @param result 查询结果
+     * @param truth  真值
+     * @param k      取前k个
+     * @return 结果前k个中属于真值前k个的比例
+     */
+    private static double recall(int[] result, int[] truth, int k) {
+        Set<Integer> truthSet = new HashSet<>();
+        for (int i = 0; i < Math.min(k, truth.length); i++) {
+            truthSet.add(truth[i]);
+        }
+
+        int hit = 0;
+        for (int i = 0; i < Math.min(k, result.length); i++) {
+            if (truthSet.contains(result[i])) {
+                hit++;
+            }
+        }
+
+        return truthSet.isEmpty() ? 0.0 : (double) hit / truthSet.size();
+    }
+
+    /**
+     * @param sortedNanos 升序的延迟
+     * @param percentile  分位数，0到1之间
+     * @return 分位延迟，单位毫秒
+     */
+    private static double percentileMs(long[] sortedNanos, double percentile) {
+        int index = Math.max(0, (int) Math.ceil(percentile * sortedNanos.length) - 1);
+        return sortedNanos[index] / 1e6;
+    }
+
+    private static long usedMemory() {
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * 一组查询参数的测试结果
+     */
+    private static JSONObject searchTest(EmIndex emIndex, float[][] queries, int[][] truth, int clusterTopn,
+                                         int maxRecall) {
+        emIndex.setAdcEnabled(0 == maxRecall);
+        emIndex.setMaxRecall(0 == maxRecall ? EmIndex.MAX_RECALL : maxRecall);
+        int topn = RECALL_KS[RECALL_KS.length - 1];
+        for (int q = 0; q < Math.min(WARMUP_COUNT, queries.length); q++) {
+            emIndex.searchDocs(queries[q], clusterTopn, topn);
+        }
+
+        double[] recalls = new double[RECALL_KS.length];
+        long[] nanos = new long[queries.length];
+        for (int q = 0; q < queries.length; q++) {
+            long start = System.nanoTime();
+            SearchHits hits = emIndex.searchDocs(queries[q], clusterTopn, topn);
+            nanos[q] = System.nanoTime() - start;
+            for (int i = 0; i < RECALL_KS.length; i++) {
+                recalls[i] += recall(hits.getIds(), truth[q], RECALL_KS[i]);
+            }
+        }
+
+        long totalNanos = 0;
+        for (long nano : nanos) {
+            totalNanos += nano;
+        }
+        Arrays.sort(nanos);
+
+        JSONObject result = new JSONObject(true);
+        result.put("clusterTopn", clusterTopn);
+        result.put("maxRecall", maxRecall);
+        result.put("adc", 0 == maxRecall);
+        for (int i = 0; i < RECALL_KS.length; i++) {
+            result.put("recall@" + RECALL_KS[i], recalls[i] / queries.length);
+        }
+        result.put("qps", queries.length / (totalNanos / 1e9));
+        result.put("p50Ms", percentileMs(nanos, 0.5));
+        result.put("p99Ms", percentileMs(nanos, 0.99));
+        return result;
+    }
+
+    /**
+     * 结果写入csv和json，列顺序与第一条结果的字段顺序一致
+     */
+    private static void writeResults(JSONArray results) {
+        if (results.isEmpty()) {
+            return;
+        }
+
+        List<String> lines = new ArrayList<>(results.size() + 1);
+        List<String> columns = new ArrayList<>(results.getJSONObject(0).keySet());
+        lines.add(String.join(",", columns));
+        for (int i = 0; i < results.size(); i++) {
+            JSONObject result = results.getJSONObject(i);
+            List<String> values = new ArrayList<>(columns.size());
+            for (String column : columns) {
+                values.add(String.valueOf(result.get(column)));
+            }
+            lines.add(String.join(",", values));
+        }
+
+        try {
+            new File(OUTPUT_DIR).mkdirs();
+            Files.write(Paths.get(OUTPUT_DIR + "recall.csv"), lines, StandardCharsets.UTF_8);
+            Files.write(Paths.get(OUTPUT_DIR + "recall.json"),
+                    results.toJSONString().getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            log.error("测试结果写入失败, dir:{}", OUTPUT_DIR, e);
+        }
+    }
+
+    public static void main(String[] args) {
+        //步骤一： 数据集、查询和真值
+        Pair<List<Integer>, List<float[]>> dataset = loadDataset(args.length > 0 ? args[0] : null);
+        List<Integer> allIds = dataset.getKey();
+        List<float[]> allVectors = dataset.getValue();
+        int queryCount = Math.min(QUERY_COUNT, allVectors.size() / 10);
+        int docCount = allVectors.size() - queryCount;
+        List<Integer> ids = new ArrayList<>(allIds.subList(0, docCount));
+        List<float[]> vectors = new ArrayList<>(allVectors.subList(0, docCount));
+        float[][] queries = allVectors.subList(docCount, allVectors.size()).toArray(new float[0][]);
+        int dimension = vectors.get(0).length;
+        int[][] truth = groundTruth(ids, vectors, queries, RECALL_KS[RECALL_KS.length - 1]);
+
+        //步骤二： 遍历建索引参数和查询参数
+        JSONArray results = new JSONArray();
+        List<float[]> samples = vectors.size() <= TRAIN_COUNT ? vectors : vectors.subList(0, TRAIN_COUNT);
+        for (int pqSegmentCount : PQ_SEGMENT_COUNTS) {
+            if (dimension % pqSegmentCount != 0) {
+                log.info("维数:{} 不能被向量段数:{} 整除, 跳过", dimension, pqSegmentCount);
+                continue;
+            }
+
+            for (int clusterCount : CLUSTER_COUNTS) {
+                long baseMemory = usedMemory();
+                long start = System.currentTimeMillis();
+                EmPQ pq = new EmPQ(pqSegmentCount, clusterCount, MAX_ITER_COUNT, dimension);
+                pq.train(new ArrayList<>(samples));
+                EmIndex emIndex = new EmIndex(pq);
+                emIndex.addVector(vectors, ids);
+                long buildMs = System.currentTimeMillis() - start;
+                double memoryMb = (usedMemory() - baseMemory) / (1024.0 * 1024.0);
+                log.info("索引创建完毕, 向量段数:{} 聚类数:{} 耗时:{}ms 内存:{}MB", pqSegmentCount, clusterCount,
+                        buildMs, memoryMb);
+
+                for (int clusterTopn : CLUSTER_TOPNS) {
+                    for (int maxRecall : MAX_RECALLS) {
+                        JSONObject result = new JSONObject(true);
+                        result.put("pqSegmentCount", pqSegmentCount);
+                        result.put("clusterCount", clusterCount);
+                        result.putAll(searchTest(emIndex, queries, truth, clusterTopn, maxRecall));
+                        result.put("buildMs", buildMs);
+                        result.put("memoryMb", memoryMb);
+                        log.info("测试结果:{}", result);
+                        results.add(result);
+                    }
+                }
+            }
+        }
+
+        //步骤三： 输出
+        writeResults(results);
+        log.info("基准测试完毕, 结果数:{} 输出目录:{}", results.size(), OUTPUT_DIR);
+    }
+}
@@ -82,8 +82,8 @@ public class VectorSearchTest {
         vectorSearch.load(vectorDir);
 
         String query = "高精度光纤大气光学湍流强度与结构测量系统";
-        List<Pair<Integer, Pair<Float, List<String>>>> recallDocs = vectorSearch.searchText(query, clusterTopn, topn);
-        printRecallDocs(recallDocs);
+        SearchHits recallDocs = vectorSearch.searchText(query, clusterTopn, topn);
+        printRecallDocs(vectorSearch, recallDocs);
     }
 
 
@@ -110,12 +110,11 @@ public class VectorSearchTest {
         return vectors;
     }
 
-    private static void printRecallDocs(List<Pair<Integer, Pair<Float, List<String>>>> recallDocs) {
+    private static void printRecallDocs(VectorSearch vectorSearch, SearchHits recallDocs) {
         for (int i = 0; i < recallDocs.size(); i++) {
-            Pair<Integer, Pair<Float, List<String>>> doc = recallDocs.get(i);
-            int id = doc.getKey();
-            float dis = doc.getValue().getKey();
-            List<String> contents = doc.getValue().getValue();
+            int id = recallDocs.getId(i);
+            float dis = recallDocs.getScore(i);
+            List<String> contents = vectorSearch.getTexts(id);
 
             StringBuilder sb = new StringBuilder();
             sb.append(Separators.NEW_LINE).append("id:").append(id).append(Separators.COMMA)